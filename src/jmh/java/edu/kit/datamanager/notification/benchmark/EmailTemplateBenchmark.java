@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.benchmark;
+
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
+import edu.kit.datamanager.notification.subscription.impl.EmailTemplates;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of rendering email bodies. FULL renders the body of a digest of 1000
+ * notifications using the compiled template, STRING_BUILDING renders the same
+ * body by formatting each notification separately as a naive implementation
+ * would do. SHORT renders the body of a SHORT digest, which is shared by all
+ * receipients with the same counts. The score is reported in microseconds
+ * per body. Run with '-prof gc' in order to compare the allocation rate, e.g.
+ * via './gradlew jmh -Djmh.include=EmailTemplateBenchmark'.
+ *
+ * @author jejkal
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailTemplateBenchmark{
+
+  private static final int NOTIFICATIONS = 1000;
+
+  private EmailTemplates templates;
+  private Notification[] notifications;
+  private NotificationDigest digest;
+
+  @Setup
+  public void setUp() throws IOException{
+    templates = EmailTemplates.load();
+    notifications = new Notification[NOTIFICATIONS];
+    digest = new NotificationDigest();
+    Instant now = Instant.now();
+    for(int i = 0; i < NOTIFICATIONS; i++){
+      Notification notification = new Notification();
+      notification.setId((long) i);
+      notification.setSeverity(Notification.SEVERITY.values()[i % Notification.SEVERITY.values().length]);
+      notification.setContent("Resource " + i + " has been updated by its owner.");
+      notification.setCreatedAt(now.minusSeconds(NOTIFICATIONS - i));
+      notification.setSenderType(Notification.SENDER_TYPE.SYSTEM);
+      notification.setSenderId("repository");
+      notifications[i] = notification;
+      digest.add(notification, 0);
+    }
+  }
+
+  @Benchmark
+  public String full(){
+    return templates.renderFull(notifications);
+  }
+
+  @Benchmark
+  public String stringBuilding(){
+    String body = String.format("You have received %d new notification(s).\n", notifications.length);
+    for(Notification notification : notifications){
+      body += String.format("\n[%s] %s by %s %s\n%s\n", notification.getSeverity(), notification.getCreatedAt(), notification.getSenderType(), notification.getSenderId(), notification.getContent());
+    }
+    return body;
+  }
+
+  @Benchmark
+  public String shortDigest(){
+    return templates.renderShort(digest);
+  }
+}
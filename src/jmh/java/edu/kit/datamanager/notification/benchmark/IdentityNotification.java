@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.benchmark;
+
+import edu.kit.datamanager.notification.domain.Notification;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.PrePersist;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * Copy of the notification entity using IDENTITY-based id generation, which
+ * serves as baseline for comparing insert throughput. Columns and indexes
+ * have to match the notification entity, so that only the id generation
+ * differs.
+ *
+ * @author jejkal
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_identity_notification_fingerprint", columnNames = {"fingerprint"}),
+        indexes = {
+          @Index(name = "idx_identity_notification_receipient_id", columnList = "receipientId, id"),
+          @Index(name = "idx_identity_notification_receipient_stored_at", columnList = "receipientId, storedAt")})
+public class IdentityNotification{
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  Long id;
+  @Enumerated(EnumType.STRING)
+  Notification.SEVERITY severity;
+  String receipientId;
+  String content;
+  Instant createdAt;
+  Instant expiresAt;
+  @Enumerated(EnumType.STRING)
+  Notification.SENDER_TYPE senderType;
+  String senderId;
+  Boolean recognized;
+  @Column(length = 64)
+  String fingerprint;
+  Instant storedAt;
+
+  @PrePersist
+  void onPersist(){
+    storedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+  }
+}
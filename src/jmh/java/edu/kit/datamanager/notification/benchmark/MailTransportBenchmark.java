@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.benchmark;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.subscription.impl.MailTransportPool;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+/**
+ * Time for sending the emails of one dispatch cycle to a local GreenMail SMTP
+ * server. PER_MESSAGE sends each email via JavaMailSender.send(), which
+ * connects to the server for each email as done by previous versions, POOLED
+ * queues all emails at the {@link MailTransportPool} and waits until they
+ * have been sent via its long-lived connections. As the local server is
+ * neither remote nor uses TLS, the connection costs and thus the benefit are
+ * lower than with a real mail server. The score is reported in milliseconds
+ * per cycle, e.g. via './gradlew jmh -Djmh.include=MailTransportBenchmark'.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailTransportBenchmark{
+
+  private static final int EMAILS_PER_CYCLE = 100;
+
+  private GreenMail greenMail;
+  private JavaMailSenderImpl sender;
+  private MailTransportPool pool;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    greenMail = new GreenMail(ServerSetupTest.SMTP);
+    greenMail.start();
+    sender = new JavaMailSenderImpl();
+    sender.setHost(ServerSetupTest.SMTP.getBindAddress());
+    sender.setPort(ServerSetupTest.SMTP.getPort());
+    ApplicationProperties properties = new ApplicationProperties();
+    properties.setMailConnections(2);
+    properties.setMailBatchSize(50);
+    properties.setMailIdleMillis(60000);
+    pool = new MailTransportPool(Optional.of(sender), properties);
+  }
+
+  @TearDown(Level.Iteration)
+  public void purge() throws Exception{
+    greenMail.purgeEmailFromAllMailboxes();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown(){
+    pool.stop();
+    greenMail.stop();
+  }
+
+  @Benchmark
+  public int perMessage() throws MessagingException{
+    for(int i = 0; i < EMAILS_PER_CYCLE; i++){
+      sender.send(createMessage(sender.createMimeMessage(), i));
+    }
+    return EMAILS_PER_CYCLE;
+  }
+
+  @Benchmark
+  public int pooled() throws Exception{
+    List<CompletableFuture<Boolean>> results = new ArrayList<>(EMAILS_PER_CYCLE);
+    for(int i = 0; i < EMAILS_PER_CYCLE; i++){
+      results.add(pool.send(createMessage(pool.createMimeMessage(), i)));
+    }
+    int sent = 0;
+    for(CompletableFuture<Boolean> result : results){
+      sent += result.get() ? 1 : 0;
+    }
+    return sent;
+  }
+
+  private static MimeMessage createMessage(MimeMessage message, int index) throws MessagingException{
+    MimeMessageHelper helper = new MimeMessageHelper(message, "UTF-8");
+    helper.setFrom("service@localhost");
+    helper.setTo("user" + (index % 10) + "@localhost");
+    helper.setSubject("New Notifications from KITDM Instance");
+    helper.setText("You have received " + index + " new notification(s).");
+    return message;
+  }
+}
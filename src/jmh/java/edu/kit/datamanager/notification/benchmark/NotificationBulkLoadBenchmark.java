@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.benchmark;
+
+import edu.kit.datamanager.notification.dao.NotificationBulkLoader;
+import edu.kit.datamanager.notification.domain.Notification;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.orm.jpa.hibernate.SpringPhysicalNamingStrategy;
+
+/**
+ * Load throughput of notifications into a local PostgreSQL database using
+ * batched inserts (BATCHED) and the COPY protocol (COPY) as done by
+ * {@link NotificationBulkLoader}. The score is reported in rows per second.
+ *
+ * The database is configured via the system properties 'benchmark.pg.url'
+ * (default jdbc:postgresql://localhost:5432/benchmark), 'benchmark.pg.user'
+ * and 'benchmark.pg.password' (both default 'postgres'). The notification
+ * table is created and dropped by the benchmark, so do not use a production
+ * database. Run e.g. via './gradlew jmh -Djmh.include=NotificationBulkLoadBenchmark'.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotificationBulkLoadBenchmark{
+
+  private static final int ROWS_PER_TRANSACTION = 10000;
+
+  @Param({"BATCHED", "COPY"})
+  private String loadMode;
+
+  private StandardServiceRegistry registry;
+  private SessionFactory sessionFactory;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    Map<String, Object> settings = new HashMap<>();
+    settings.put("hibernate.connection.url", System.getProperty("benchmark.pg.url", "jdbc:postgresql://localhost:5432/benchmark"));
+    settings.put("hibernate.connection.username", System.getProperty("benchmark.pg.user", "postgres"));
+    settings.put("hibernate.connection.password", System.getProperty("benchmark.pg.password", "postgres"));
+    settings.put("hibernate.dialect", "org.hibernate.dialect.PostgreSQL95Dialect");
+    settings.put("hibernate.physical_naming_strategy", SpringPhysicalNamingStrategy.class.getName());
+    settings.put("hibernate.hbm2ddl.auto", "create-drop");
+    settings.put("hibernate.jdbc.batch_size", "50");
+    settings.put("hibernate.order_inserts", "true");
+    settings.put("hibernate.id.optimizer.pooled.preferred", "pooled-lo");
+    registry = new StandardServiceRegistryBuilder().applySettings(settings).build();
+    sessionFactory = new MetadataSources(registry).addAnnotatedClass(Notification.class).buildMetadata().buildSessionFactory();
+  }
+
+  @Setup(Level.Iteration)
+  public void cleanUp(){
+    try(Session session = sessionFactory.openSession()){
+      session.beginTransaction();
+      session.createNativeQuery("TRUNCATE notification").executeUpdate();
+      session.getTransaction().commit();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown(){
+    sessionFactory.close();
+    StandardServiceRegistryBuilder.destroy(registry);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS_PER_TRANSACTION)
+  public void load(){
+    List<Notification> notifications = createNotifications();
+    try(Session session = sessionFactory.openSession()){
+      session.beginTransaction();
+      if("COPY".equals(loadMode)){
+        session.doWork((connection) -> {
+          try{
+            NotificationBulkLoader.copy(connection, notifications);
+          } catch(IOException ex){
+            throw new SQLException("Failed to copy notifications.", ex);
+          }
+        });
+      } else{
+        notifications.forEach(session::persist);
+      }
+      session.getTransaction().commit();
+    }
+  }
+
+  private List<Notification> createNotifications(){
+    List<Notification> notifications = new ArrayList<>(ROWS_PER_TRANSACTION);
+    Instant now = Instant.now();
+    for(int i = 0; i < ROWS_PER_TRANSACTION; i++){
+      Notification n = new Notification();
+      n.setContent("Notification " + i);
+      n.setSeverity(Notification.SEVERITY.INFO);
+      n.setReceipientId("user" + (i % 100));
+      n.setCreatedAt(now);
+      n.setSenderType(Notification.SENDER_TYPE.SYSTEM);
+      n.setSenderId("benchmark");
+      n.setRecognized(Boolean.FALSE);
+      notifications.add(n);
+    }
+    return notifications;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.benchmark;
+
+import edu.kit.datamanager.notification.domain.Notification;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Insert throughput of notifications into an in-memory H2 database using
+ * IDENTITY-based ids (before) and pooled sequence-based ids (after). The
+ * score is reported in rows per second. Run via './gradlew jmh'. As the
+ * in-memory tables grow during each iteration, the benchmark runs with a
+ * fixed heap and a long warmup, otherwise GC and JIT compilation dominate
+ * the error. In-memory H2 involves no network round trips, so the benchmark
+ * only shows the overhead of both strategies within Hibernate, not the
+ * round trips saved by JDBC batching against a remote database.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class NotificationInsertBenchmark{
+
+  private static final int ROWS_PER_TRANSACTION = 1000;
+
+  @Param({"IDENTITY", "SEQUENCE"})
+  private String idGeneration;
+
+  private StandardServiceRegistry registry;
+  private SessionFactory sessionFactory;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    Map<String, Object> settings = new HashMap<>();
+    settings.put("hibernate.connection.url", "jdbc:h2:mem:benchmark_" + idGeneration + ";DB_CLOSE_DELAY=-1");
+    settings.put("hibernate.connection.username", "sa");
+    settings.put("hibernate.connection.password", "sa");
+    settings.put("hibernate.hbm2ddl.auto", "create-drop");
+    settings.put("hibernate.jdbc.batch_size", "50");
+    settings.put("hibernate.order_inserts", "true");
+    settings.put("hibernate.id.optimizer.pooled.preferred", "pooled-lo");
+    registry = new StandardServiceRegistryBuilder().applySettings(settings).build();
+    MetadataSources sources = new MetadataSources(registry);
+    if("IDENTITY".equals(idGeneration)){
+      sources.addAnnotatedClass(IdentityNotification.class);
+    } else{
+      sources.addAnnotatedClass(Notification.class);
+    }
+    sessionFactory = sources.buildMetadata().buildSessionFactory();
+  }
+
+  @Setup(Level.Iteration)
+  public void cleanUp(){
+    try(Session session = sessionFactory.openSession()){
+      session.beginTransaction();
+      session.createQuery("DELETE FROM " + ("IDENTITY".equals(idGeneration) ? "IdentityNotification" : "Notification")).executeUpdate();
+      session.getTransaction().commit();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown(){
+    sessionFactory.close();
+    StandardServiceRegistryBuilder.destroy(registry);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS_PER_TRANSACTION)
+  public void insert(){
+    try(Session session = sessionFactory.openSession()){
+      session.beginTransaction();
+      Instant now = Instant.now();
+      for(int i = 0; i < ROWS_PER_TRANSACTION; i++){
+        session.persist("IDENTITY".equals(idGeneration) ? createIdentityNotification(i, now) : createNotification(i, now));
+      }
+      session.getTransaction().commit();
+    }
+  }
+
+  private Notification createNotification(int i, Instant now){
+    Notification n = new Notification();
+    n.setContent("Notification " + i);
+    n.setSeverity(Notification.SEVERITY.INFO);
+    n.setReceipientId("user" + (i % 100));
+    n.setCreatedAt(now);
+    n.setSenderType(Notification.SENDER_TYPE.SYSTEM);
+    n.setSenderId("benchmark");
+    n.setRecognized(Boolean.FALSE);
+    return n;
+  }
+
+  private IdentityNotification createIdentityNotification(int i, Instant now){
+    IdentityNotification n = new IdentityNotification();
+    n.content = "Notification " + i;
+    n.severity = Notification.SEVERITY.INFO;
+    n.receipientId = "user" + (i % 100);
+    n.createdAt = now;
+    n.senderType = Notification.SENDER_TYPE.SYSTEM;
+    n.senderId = "benchmark";
+    n.recognized = Boolean.FALSE;
+    return n;
+  }
+}
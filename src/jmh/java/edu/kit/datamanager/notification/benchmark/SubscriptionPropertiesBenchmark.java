@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of obtaining the properties of a subscription once per dispatch, e.g.
+ * by the processor and by the handler's subscription check. LEGACY parses
+ * the serialized properties using a new ObjectMapper on each call as done by
+ * previous versions, CACHED uses
+ * {@link Subscription#getSubscriptionPropertiesAsMap()}. The score is
+ * reported in nanoseconds per dispatch. Run with '-prof gc' in order to
+ * compare the allocation rate, e.g. via './gradlew jmh
+ * -Djmh.include=SubscriptionPropertiesBenchmark'.
+ *
+ * @author jejkal
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionPropertiesBenchmark{
+
+  private static final int CALLS_PER_DISPATCH = 2;
+
+  private Subscription subscription;
+
+  @Setup
+  public void setUp() throws IOException{
+    Map<String, String> properties = new HashMap<>();
+    properties.put("emailAddress", "someone@example.org");
+    properties.put("details", "FULL");
+    properties.put("filename", "/tmp/notifications.log");
+    subscription = new Subscription();
+    subscription.setSubscriptionPropertiesFromMap(properties);
+  }
+
+  @Benchmark
+  public int legacy() throws IOException{
+    int size = 0;
+    for(int i = 0; i < CALLS_PER_DISPATCH; i++){
+      Map<String, String> properties = new ObjectMapper().readValue(subscription.getSubscriptionProperties(), Map.class);
+      size += properties.size();
+    }
+    return size;
+  }
+
+  @Benchmark
+  public int cached() throws IOException{
+    int size = 0;
+    for(int i = 0; i < CALLS_PER_DISPATCH; i++){
+      size += subscription.getSubscriptionPropertiesAsMap().size();
+    }
+    return size;
+  }
+}
@@ -18,6 +18,7 @@ package edu.kit.datamanager.notification.configuration;
 import edu.kit.datamanager.configuration.GenericApplicationProperties;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.annotation.Validated;
 
@@ -31,4 +32,241 @@ import org.springframework.validation.annotation.Validated;
 @EqualsAndHashCode(callSuper = true)
 public class ApplicationProperties extends GenericApplicationProperties{
 
+  /**
+   * The max. number of notifications received via messaging which are
+   * persisted together in one transaction. A value of 1 disables batching.
+   */
+  @Value("${repo.ingest.batchSize:1}")
+  private int ingestBatchSize;
+  /**
+   * The max. time in milliseconds a received notification waits for its batch
+   * to be filled before the batch is persisted anyway.
+   */
+  @Value("${repo.ingest.lingerMillis:100}")
+  private long ingestLingerMillis;
+  /**
+   * The max. number of message fingerprints kept in memory for detecting
+   * redelivered messages without querying the database. A value of 0 disables
+   * the in-memory cache, duplicates are then only detected by the database.
+   */
+  @Value("${repo.ingest.dedupCacheSize:100000}")
+  private int ingestDedupCacheSize;
+  /**
+   * The interval in milliseconds after which the in-memory subscription
+   * schedule is reloaded from the database in order to include changes not
+   * made via the subscription endpoints.
+   */
+  @Value("${repo.schedule.resyncMillis:300000}")
+  private long scheduleResyncMillis;
+  /**
+   * Dispatch notifications to LIVE subscriptions as soon as they have been
+   * persisted. Otherwise, LIVE subscriptions are handled in each processing
+   * cycle.
+   */
+  @Value("${repo.schedule.liveEvents:true}")
+  private boolean scheduleLiveEvents;
+  /**
+   * The interval in milliseconds after which the in-memory subscription index
+   * is checked for subscriptions changed in the database, e.g. by other
+   * service instances.
+   */
+  @Value("${repo.index.refreshMillis:60000}")
+  private long indexRefreshMillis;
+  /**
+   * The interval in milliseconds in which LIVE subscriptions are handled
+   * anyway if 'repo.schedule.liveEvents' is enabled, e.g. in order to deliver
+   * notifications persisted by other service instances.
+   */
+  @Value("${repo.schedule.liveIntervalMillis:60000}")
+  private long scheduleLiveIntervalMillis;
+  /**
+   * The max. number of receipients whose notifications are dispatched in
+   * parallel. A value of 1 dispatches all notifications sequentially by the
+   * scheduler thread.
+   */
+  @Value("${repo.dispatch.threads:1}")
+  private int dispatchThreads;
+  /**
+   * Use virtual threads for dispatching notifications if supported by the JVM
+   * (Java 21+). The number of concurrently dispatching virtual threads is
+   * still limited by 'repo.dispatch.threads'.
+   */
+  @Value("${repo.dispatch.virtualThreads:false}")
+  private boolean dispatchVirtualThreads;
+  /**
+   * The number of threads of each subscription handler, e.g. the max. number
+   * of concurrent calls of a single handler.
+   */
+  @Value("${repo.dispatch.handlerThreads:4}")
+  private int dispatchHandlerThreads;
+  /**
+   * The max. time in milliseconds a subscription handler may take for
+   * handling notifications before the call is regarded as failed.
+   */
+  @Value("${repo.dispatch.handlerTimeoutMillis:60000}")
+  private long dispatchHandlerTimeoutMillis;
+  /**
+   * The number of consecutive failures of a subscription handler after which
+   * the handler is not called anymore for 'repo.dispatch.breakerOpenMillis'.
+   */
+  @Value("${repo.dispatch.breakerFailureThreshold:5}")
+  private int dispatchBreakerFailureThreshold;
+  /**
+   * The time in milliseconds a failing subscription handler is not called
+   * before a trial call is permitted.
+   */
+  @Value("${repo.dispatch.breakerOpenMillis:60000}")
+  private long dispatchBreakerOpenMillis;
+  /**
+   * The max. time in milliseconds a failing subscription handler is not
+   * called. The time is doubled after each failed trial call up to this
+   * value.
+   */
+  @Value("${repo.dispatch.breakerMaxOpenMillis:3600000}")
+  private long dispatchBreakerMaxOpenMillis;
+  /**
+   * The max. number of notifications passed to a handler at once. Larger
+   * numbers of pending notifications are passed in multiple chunks. A value of
+   * 0 or less passes all pending notifications at once.
+   */
+  @Value("${repo.dispatch.chunkSize:1000}")
+  private int dispatchChunkSize;
+  /**
+   * The max. number of notifications obtained by the single query for all
+   * receipients handled at once. Receipients whose notifications exceed this
+   * number are read page by page. A value of 0 or less disables the limit.
+   */
+  @Value("${repo.dispatch.maxNotificationsPerQuery:10000}")
+  private int dispatchMaxNotificationsPerQuery;
+  /**
+   * The max. number of handler calls in flight at once. If greater than 0,
+   * handlers are called asynchronously and results are processed as soon as
+   * they are available instead of dispatching by 'repo.dispatch.threads'
+   * blocking threads. A value of 0 or less disables asynchronous dispatching.
+   */
+  @Value("${repo.dispatch.maxInFlight:0}")
+  private int dispatchMaxInFlight;
+  /**
+   * The max. time in milliseconds between persisting and committing a
+   * notification. As ids are not assigned in commit order, notifications
+   * committed after a subscription's cursor has passed their id are looked up
+   * within this time before the subscription fired last. A value of 0 or less
+   * disables the lookup.
+   */
+  @Value("${repo.dispatch.commitLagMillis:60000}")
+  private long dispatchCommitLagMillis;
+  /**
+   * The time in milliseconds before a failed delivery is retried for the
+   * first time. The time is doubled after each further failure.
+   */
+  @Value("${repo.delivery.retryBaseMillis:60000}")
+  private long deliveryRetryBaseMillis;
+  /**
+   * The max. time in milliseconds between two delivery attempts.
+   */
+  @Value("${repo.delivery.retryMaxMillis:3600000}")
+  private long deliveryRetryMaxMillis;
+  /**
+   * The relative amount by which the time between two delivery attempts is
+   * randomized, e.g. 0.2 for +/- 20%, in order to spread retries.
+   */
+  @Value("${repo.delivery.retryJitter:0.2}")
+  private double deliveryRetryJitter;
+  /**
+   * The number of newest notifications kept in the digest of aggregated
+   * subscriptions, e.g. of subscriptions whose handler only needs a summary.
+   */
+  @Value("${repo.digest.newestCount:10}")
+  private int digestNewestCount;
+  /**
+   * The number of long-lived SMTP connections used for sending emails. A
+   * value of 0 opens a new connection for each email.
+   */
+  @Value("${repo.mail.connections:2}")
+  private int mailConnections;
+  /**
+   * The max. number of queued emails sent at once via one SMTP connection.
+   */
+  @Value("${repo.mail.batchSize:50}")
+  private int mailBatchSize;
+  /**
+   * The time in milliseconds after which an unused SMTP connection is closed.
+   */
+  @Value("${repo.mail.idleMillis:30000}")
+  private long mailIdleMillis;
+  /**
+   * The max. number of log files kept open by the logfile handler.
+   */
+  @Value("${repo.logfile.maxOpenFiles:64}")
+  private int logfileMaxOpenFiles;
+  /**
+   * The time in milliseconds after which an unused log file is closed.
+   */
+  @Value("${repo.logfile.idleMillis:60000}")
+  private long logfileIdleMillis;
+  /**
+   * The number of threads writing to log files in the background.
+   */
+  @Value("${repo.logfile.writerThreads:2}")
+  private int logfileWriterThreads;
+  /**
+   * The durability policy of log files, which is either NEVER (written
+   * content is not forced to disk), INTERVAL (forced every
+   * 'repo.logfile.fsyncIntervalMillis' milliseconds) or BATCH (forced after
+   * each write). Deliveries succeed only after their content was written
+   * according to this policy.
+   */
+  @Value("${repo.logfile.fsyncPolicy:NEVER}")
+  private String logfileFsyncPolicy;
+  /**
+   * The interval in milliseconds in which log files are forced to disk if
+   * 'repo.logfile.fsyncPolicy' is INTERVAL.
+   */
+  @Value("${repo.logfile.fsyncIntervalMillis:1000}")
+  private long logfileFsyncIntervalMillis;
+  /**
+   * Enable the cluster-aware dispatch mode, which is required if multiple
+   * service instances share one database. Due subscriptions are leased by one
+   * instance before notifications are dispatched.
+   */
+  @Value("${repo.cluster.enabled:false}")
+  private boolean clusterEnabled;
+  /**
+   * The unique id of this instance used as lease owner. If empty, a random
+   * id is generated at startup.
+   */
+  @Value("${repo.cluster.instanceId:}")
+  private String clusterInstanceId;
+  /**
+   * The time in milliseconds after which the lease of a subscription expires
+   * and the subscription can be taken over by another instance. The lease
+   * time must exceed the time needed for dispatching one batch of
+   * subscriptions.
+   */
+  @Value("${repo.cluster.leaseMillis:300000}")
+  private long clusterLeaseMillis;
+  /**
+   * The max. number of subscriptions leased at once in cluster mode.
+   */
+  @Value("${repo.cluster.claimSize:100}")
+  private int clusterClaimSize;
+  /**
+   * The number of notifications persisted in one transaction during a bulk
+   * import.
+   */
+  @Value("${repo.import.chunkSize:1000}")
+  private int importChunkSize;
+  /**
+   * Enables loading notifications via the COPY protocol during a bulk import
+   * if the datasource is a PostgreSQL database.
+   */
+  @Value("${repo.import.copyEnabled:true}")
+  private boolean importCopyEnabled;
+  /**
+   * The max. number of statements Hibernate sends to the database in one JDBC
+   * batch. A value of 1 disables JDBC batching.
+   */
+  @Value("${repo.persistence.jdbcBatchSize:50}")
+  private int jdbcBatchSize;
+
 }
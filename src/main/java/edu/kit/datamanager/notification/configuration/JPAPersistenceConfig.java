@@ -15,7 +15,10 @@
  */
 package edu.kit.datamanager.notification.configuration;
 
+import java.util.Map;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
@@ -30,4 +33,26 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 @EntityScan(basePackages = {"edu.kit.datamanager.notification.domain"})
 public class JPAPersistenceConfig{
 
+  /**
+   * Enable JDBC batching in Hibernate according to
+   * 'repo.persistence.jdbcBatchSize' and prefer the pooled-lo optimizer for
+   * sequence-based ids, which allows to batch inserts without fetching each
+   * generated key separately. Explicitly configured Hibernate properties, e.g.
+   * 'spring.jpa.properties.hibernate.jdbc.batch_size', are not overwritten.
+   *
+   * @param applicationProperties The application properties.
+   *
+   * @return The customizer.
+   */
+  @Bean
+  public HibernatePropertiesCustomizer jdbcBatchingCustomizer(ApplicationProperties applicationProperties){
+    return (Map<String, Object> hibernateProperties) -> {
+      hibernateProperties.putIfAbsent("hibernate.id.optimizer.pooled.preferred", "pooled-lo");
+      if(applicationProperties.getJdbcBatchSize() > 1){
+        hibernateProperties.putIfAbsent("hibernate.jdbc.batch_size", Integer.toString(applicationProperties.getJdbcBatchSize()));
+        hibernateProperties.putIfAbsent("hibernate.order_inserts", "true");
+        hibernateProperties.putIfAbsent("hibernate.order_updates", "true");
+      }
+    };
+  }
 }
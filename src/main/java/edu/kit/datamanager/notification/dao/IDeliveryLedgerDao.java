@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.dao;
+
+import edu.kit.datamanager.notification.domain.DeliveryLedgerEntry;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+/**
+ *
+ * @author jejkal
+ */
+@RepositoryRestResource(exported = false)
+public interface IDeliveryLedgerDao extends JpaRepository<DeliveryLedgerEntry, Long>{
+
+  List<DeliveryLedgerEntry> findBySubscriptionIdIn(Collection<Long> subscriptionIds);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.dao;
+
+import edu.kit.datamanager.notification.domain.Notification;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queries for pending notifications based on receipient-specific cursors,
+ * which are not expressible as derived queries.
+ *
+ * @author jejkal
+ */
+public interface INotificationCursorDao{
+
+  /**
+   * Obtain the notifications of all provided receipients having an id larger
+   * than the receipient's cursor, ordered by receipient id and id. In
+   * contrast to a paged query, no count query is issued.
+   *
+   * @param cursorsByReceipient The cursor by receipient id. If the cursor of a
+   * receipient is null, all notifications of the receipient are matched.
+   * @param maxResults The max. number of notifications returned.
+   *
+   * @return A list of notifications.
+   */
+  List<Notification> findByReceipientCursors(Map<String, Long> cursorsByReceipient, int maxResults);
+
+  /**
+   * Obtain id and storage time of all notifications of the provided
+   * receipients having an id up to the receipient's cursor and being stored
+   * since a receipient-specific time. Used for detecting notifications
+   * committed after the cursor has passed their id. Only the ids are loaded,
+   * as most of the matching notifications have been delivered before.
+   *
+   * @param cursorsByReceipient The cursor by receipient id.
+   * @param storedFromByReceipient The min. storage time by receipient id.
+   *
+   * @return The storage time by notification id by receipient id.
+   */
+  Map<String, Map<Long, Instant>> findStoredUpToCursors(Map<String, Long> cursorsByReceipient, Map<String, Instant> storedFromByReceipient);
+
+  /**
+   * Count the notifications of all provided receipients having an id larger
+   * than the receipient's cursor and being stored before the provided time
+   * using a single grouped query.
+   *
+   * @param cursorsByReceipient The cursor by receipient id. If the cursor of a
+   * receipient is null, all notifications of the receipient are counted.
+   * @param storedBefore The time before which notifications have been stored.
+   *
+   * @return The number of notifications by receipient id. Receipients without
+   * matching notifications are not contained.
+   */
+  Map<String, Long> countAfterCursors(Map<String, Long> cursorsByReceipient, Instant storedBefore);
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.dao;
+
+import edu.kit.datamanager.notification.dao.spec.NotificationReceipientCursorSpec;
+import edu.kit.datamanager.notification.domain.Notification;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+/**
+ * Implementation of {@link INotificationCursorDao}, which is picked up by
+ * Spring Data as fragment of {@link INotificationDao}.
+ *
+ * @author jejkal
+ */
+public class INotificationCursorDaoImpl implements INotificationCursorDao{
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  @Override
+  public List<Notification> findByReceipientCursors(Map<String, Long> cursorsByReceipient, int maxResults){
+    CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+    CriteriaQuery<Notification> query = builder.createQuery(Notification.class);
+    Root<Notification> root = query.from(Notification.class);
+    query.where(NotificationReceipientCursorSpec.toSpecification(cursorsByReceipient).toPredicate(root, query, builder));
+    query.orderBy(builder.asc(root.get("receipientId")), builder.asc(root.get("id")));
+    return entityManager.createQuery(query).setMaxResults(maxResults).getResultList();
+  }
+
+  @Override
+  public Map<String, Map<Long, Instant>> findStoredUpToCursors(Map<String, Long> cursorsByReceipient, Map<String, Instant> storedFromByReceipient){
+    CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+    CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+    Root<Notification> root = query.from(Notification.class);
+    List<Predicate> predicates = new ArrayList<>(cursorsByReceipient.size());
+    for(Entry<String, Long> entry : cursorsByReceipient.entrySet()){
+      predicates.add(builder.and(builder.equal(root.get("receipientId"), entry.getKey()),
+              builder.greaterThanOrEqualTo(root.get("storedAt"), storedFromByReceipient.get(entry.getKey())),
+              builder.lessThanOrEqualTo(root.get("id"), entry.getValue())));
+    }
+    query.multiselect(root.get("receipientId"), root.get("id"), root.get("storedAt"));
+    query.where(builder.or(predicates.toArray(new Predicate[]{})));
+    Map<String, Map<Long, Instant>> result = new HashMap<>();
+    for(Object[] row : entityManager.createQuery(query).getResultList()){
+      result.computeIfAbsent((String) row[0], (k) -> new HashMap<>()).put((Long) row[1], (Instant) row[2]);
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> countAfterCursors(Map<String, Long> cursorsByReceipient, Instant storedBefore){
+    CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+    CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+    Root<Notification> root = query.from(Notification.class);
+    query.multiselect(root.get("receipientId"), builder.count(root));
+    query.where(builder.and(NotificationReceipientCursorSpec.toSpecification(cursorsByReceipient).toPredicate(root, query, builder),
+            builder.lessThan(root.get("storedAt"), storedBefore)));
+    query.groupBy(root.get("receipientId"));
+    Map<String, Long> result = new HashMap<>();
+    for(Object[] row : entityManager.createQuery(query).getResultList()){
+      result.put((String) row[0], (Long) row[1]);
+    }
+    return result;
+  }
+}
@@ -16,13 +16,52 @@
 package edu.kit.datamanager.notification.dao;
 
 import edu.kit.datamanager.notification.domain.Notification;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.rest.core.annotation.RestResource;
 
 /**
  *
  * @author jejkal
  */
-public interface INotificationDao extends JpaRepository<Notification, Long>, JpaSpecificationExecutor<Notification>{
+public interface INotificationDao extends JpaRepository<Notification, Long>, JpaSpecificationExecutor<Notification>, INotificationCursorDao{
 
+  boolean existsByFingerprint(String fingerprint);
+
+  /**
+   * Obtain the largest id of all notifications.
+   *
+   * @return The largest id or null if there are no notifications.
+   */
+  @RestResource(exported = false)
+  @Query("SELECT MAX(n.id) FROM Notification n")
+  Long findMaxId();
+
+  /**
+   * Obtain the first notifications of a receipient ordered by id.
+   *
+   * @param receipientId The receipient id.
+   * @param pageable The page, whose size limits the number of notifications.
+   *
+   * @return A list of notifications.
+   */
+  @RestResource(exported = false)
+  List<Notification> findByReceipientIdOrderByIdAsc(String receipientId, Pageable pageable);
+
+  /**
+   * Obtain the notifications of a receipient following the provided id
+   * ordered by id. Used for reading large numbers of notifications page by
+   * page with the last read id as keyset.
+   *
+   * @param receipientId The receipient id.
+   * @param id The id after which notifications are obtained.
+   * @param pageable The page, whose size limits the number of notifications.
+   *
+   * @return A list of notifications.
+   */
+  @RestResource(exported = false)
+  List<Notification> findByReceipientIdAndIdGreaterThanOrderByIdAsc(String receipientId, Long id, Pageable pageable);
 }
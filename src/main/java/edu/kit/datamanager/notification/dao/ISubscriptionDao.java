@@ -16,8 +16,16 @@
 package edu.kit.datamanager.notification.dao;
 
 import edu.kit.datamanager.notification.domain.Subscription;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.data.rest.core.annotation.RestResource;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  *
@@ -25,4 +33,81 @@ import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
  */
 public interface ISubscriptionDao extends JpaRepository<Subscription, Long>, JpaSpecificationExecutor<Subscription>{
 
+  /**
+   * Projection of a subscription to the attributes required for scheduling.
+   */
+  interface SubscriptionSchedule{
+
+    Long getId();
+
+    Instant getFiresNext();
+
+    String getReceipientId();
+
+    Subscription.FREQUENCY getFrequency();
+  }
+
+  /**
+   * Projection of a subscription to its id and version.
+   */
+  interface SubscriptionVersion{
+
+    Long getId();
+
+    Long getVersion();
+  }
+
+  /**
+   * Obtain id and version of all enabled subscriptions, e.g. in order to
+   * detect changed subscriptions without loading them.
+   *
+   * @return A list of subscription versions.
+   */
+  @RestResource(exported = false)
+  @Query("SELECT s.id AS id, s.version AS version FROM Subscription s WHERE s.disabled IS NULL OR s.disabled = false")
+  List<SubscriptionVersion> findAllVersions();
+
+  /**
+   * Obtain id, next firing time, receipient and frequency of all enabled
+   * subscriptions.
+   *
+   * @return A list of subscription schedules.
+   */
+  @RestResource(exported = false)
+  @Query("SELECT s.id AS id, s.firesNext AS firesNext, s.receipientId AS receipientId, s.frequency AS frequency FROM Subscription s WHERE s.disabled IS NULL OR s.disabled = false")
+  List<SubscriptionSchedule> findAllSchedules();
+
+  /**
+   * Acquire the lease of all subscriptions with the provided ids, which are
+   * due and which are not leased by another owner. Expired leases of other
+   * owners are taken over. As the update is executed atomically by the
+   * database, each subscription is leased by at most one owner at a time.
+   *
+   * @param ids The ids of the subscriptions to lease.
+   * @param owner The unique id of the lease owner.
+   * @param now The current time.
+   * @param expiresAt The time at which the leases expire.
+   *
+   * @return The number of leased subscriptions.
+   */
+  @RestResource(exported = false)
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query("UPDATE Subscription s SET s.leaseOwner = :owner, s.leaseExpiresAt = :expiresAt WHERE s.id IN :ids AND (s.firesNext IS NULL OR s.firesNext <= :now) AND (s.leaseOwner IS NULL OR s.leaseOwner = :owner OR s.leaseExpiresAt < :now)")
+  int acquireLeases(@Param("ids") Collection<Long> ids, @Param("owner") String owner, @Param("now") Instant now, @Param("expiresAt") Instant expiresAt);
+
+  /**
+   * Release the leases of all subscriptions with the provided ids, which are
+   * leased by the provided owner.
+   *
+   * @param ids The ids of the leased subscriptions.
+   * @param owner The unique id of the lease owner.
+   *
+   * @return The number of released subscriptions.
+   */
+  @RestResource(exported = false)
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query("UPDATE Subscription s SET s.leaseOwner = NULL, s.leaseExpiresAt = NULL WHERE s.id IN :ids AND s.leaseOwner = :owner")
+  int releaseLeases(@Param("ids") Collection<Long> ids, @Param("owner") String owner);
 }
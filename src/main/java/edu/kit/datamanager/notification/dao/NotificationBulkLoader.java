@@ -0,0 +1,241 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.dao;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.domain.Notification;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Loader for large numbers of notifications, e.g. during a bulk import. If
+ * the datasource is a PostgreSQL database and 'repo.import.copyEnabled' is
+ * TRUE, notifications are streamed into the database using the COPY protocol
+ * in CSV format. Otherwise, e.g. for H2, notifications are persisted via
+ * batched JPA inserts.
+ *
+ * For COPY, ids are obtained from the sequence 'notification_seq' in blocks of
+ * {@link Notification#ID_ALLOCATION_SIZE}, which is compatible to the
+ * 'pooled-lo' optimizer used by Hibernate for all other inserts.
+ *
+ * @author jejkal
+ */
+@Component
+public class NotificationBulkLoader{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NotificationBulkLoader.class);
+
+  private static final String COPY_STATEMENT = "COPY notification (id, content, created_at, expires_at, fingerprint, receipient_id, recognized, sender_id, sender_type, severity, stored_at) FROM STDIN WITH (FORMAT csv)";
+
+  private final DataSource dataSource;
+  private final TransactionTemplate transactionTemplate;
+  private final INotificationDao notificationDao;
+  private final boolean copyEnabled;
+  private volatile Boolean copySupported = null;
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  @Autowired
+  public NotificationBulkLoader(DataSource dataSource, PlatformTransactionManager transactionManager, INotificationDao notificationDao, ApplicationProperties applicationProperties){
+    this.dataSource = dataSource;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.notificationDao = notificationDao;
+    this.copyEnabled = applicationProperties.isImportCopyEnabled();
+  }
+
+  /**
+   * Check if notifications are loaded using the PostgreSQL COPY protocol,
+   * which is the case if enabled and if the datasource is a PostgreSQL
+   * database.
+   *
+   * @return TRUE if COPY is used.
+   */
+  public boolean isCopySupported(){
+    if(copySupported == null){
+      boolean supported = false;
+      if(copyEnabled){
+        try(Connection connection = dataSource.getConnection()){
+          supported = connection.isWrapperFor(PGConnection.class);
+        } catch(SQLException ex){
+          LOGGER.warn("Failed to check datasource for COPY support. Using batched inserts.", ex);
+        }
+      }
+      LOGGER.info("Bulk loading notifications via {}.", (supported) ? "PostgreSQL COPY" : "batched inserts");
+      copySupported = supported;
+    }
+    return copySupported;
+  }
+
+  /**
+   * Persist the provided notifications in one transaction. Afterwards, the
+   * persistence context is cleared, so that loaded notifications are not kept
+   * in memory. Ids are assigned to the provided notifications.
+   *
+   * @param notifications The notifications to persist.
+   */
+  public void load(List<Notification> notifications){
+    if(notifications.isEmpty()){
+      return;
+    }
+    if(isCopySupported()){
+      transactionTemplate.executeWithoutResult((status) -> {
+        //use the connection bound to the current transaction
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try{
+          copy(connection, notifications);
+        } catch(SQLException | IOException ex){
+          throw new DataAccessResourceFailureException("Failed to copy " + notifications.size() + " notification(s).", ex);
+        } finally{
+          DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+      });
+    } else{
+      transactionTemplate.executeWithoutResult((status) -> {
+        notificationDao.saveAll(notifications);
+        entityManager.flush();
+        entityManager.clear();
+      });
+    }
+  }
+
+  /**
+   * Stream the provided notifications into the notification table of a
+   * PostgreSQL database using the COPY protocol. Ids are assigned to all
+   * notifications before. Transaction handling is up to the caller.
+   *
+   * @param connection The connection to a PostgreSQL database.
+   * @param notifications The notifications to copy.
+   *
+   * @throws SQLException if obtaining ids or copying fails.
+   * @throws IOException if writing to the COPY stream fails.
+   */
+  public static void copy(Connection connection, List<Notification> notifications) throws SQLException, IOException{
+    List<Long> ids = allocateIds(connection, notifications.size());
+    //not set via JPA callbacks, as entities are not persisted by Hibernate
+    Instant storedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    PGConnection pgConnection = connection.unwrap(PGConnection.class);
+    LOGGER.trace("Copying {} notification(s).", notifications.size());
+    try(Writer writer = new BufferedWriter(new OutputStreamWriter(new PGCopyOutputStream(pgConnection, COPY_STATEMENT), StandardCharsets.UTF_8), 65536)){
+      StringBuilder row = new StringBuilder();
+      for(int i = 0; i < notifications.size(); i++){
+        Notification notification = notifications.get(i);
+        notification.setId(ids.get(i));
+        notification.setStoredAt(storedAt);
+        row.setLength(0);
+        appendCsvRow(row, notification);
+        writer.append(row);
+      }
+    }
+  }
+
+  /**
+   * Obtain the provided number of ids from the notification sequence. Each
+   * sequence value v is the lower bound of a block of ids [v, v +
+   * ID_ALLOCATION_SIZE) in the same way the 'pooled-lo' optimizer uses it.
+   */
+  private static List<Long> allocateIds(Connection connection, int count) throws SQLException{
+    int blocks = (count + Notification.ID_ALLOCATION_SIZE - 1) / Notification.ID_ALLOCATION_SIZE;
+    List<Long> ids = new ArrayList<>(count);
+    try(PreparedStatement statement = connection.prepareStatement("SELECT nextval('" + Notification.ID_SEQUENCE_NAME + "') FROM generate_series(1, ?)")){
+      statement.setInt(1, blocks);
+      try(ResultSet result = statement.executeQuery()){
+        while(result.next() && ids.size() < count){
+          long lo = result.getLong(1);
+          for(int i = 0; i < Notification.ID_ALLOCATION_SIZE && ids.size() < count; i++){
+            ids.add(lo + i);
+          }
+        }
+      }
+    }
+    if(ids.size() < count){
+      throw new SQLException("Failed to allocate " + count + " notification id(s).");
+    }
+    return ids;
+  }
+
+  /**
+   * Append the provided notification as CSV row in the column order of
+   * {@link #COPY_STATEMENT}. NULL values are written as unquoted empty
+   * fields, all other values are quoted.
+   *
+   * @param row The builder to append to.
+   * @param notification The notification.
+   */
+  static void appendCsvRow(StringBuilder row, Notification notification){
+    appendCsvValue(row, notification.getId()).append(',');
+    appendCsvValue(row, notification.getContent()).append(',');
+    appendCsvValue(row, toTimestamp(notification.getCreatedAt())).append(',');
+    appendCsvValue(row, toTimestamp(notification.getExpiresAt())).append(',');
+    appendCsvValue(row, notification.getFingerprint()).append(',');
+    appendCsvValue(row, notification.getReceipientId()).append(',');
+    appendCsvValue(row, notification.getRecognized()).append(',');
+    appendCsvValue(row, notification.getSenderId()).append(',');
+    appendCsvValue(row, notification.getSenderType()).append(',');
+    appendCsvValue(row, notification.getSeverity()).append(',');
+    appendCsvValue(row, toTimestamp(notification.getStoredAt())).append('\n');
+  }
+
+  private static StringBuilder appendCsvValue(StringBuilder row, Object value){
+    if(value == null){
+      return row;
+    }
+    String text = value.toString();
+    row.append('"');
+    for(int i = 0; i < text.length(); i++){
+      char c = text.charAt(i);
+      if(c == '"'){
+        row.append('"');
+      }
+      row.append(c);
+    }
+    return row.append('"');
+  }
+
+  /**
+   * Convert the provided instant to a local timestamp in the JVM's default
+   * time zone, which is what Hibernate writes to timestamp columns.
+   */
+  private static LocalDateTime toTimestamp(Instant instant){
+    return (instant == null) ? null : LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+  }
+}
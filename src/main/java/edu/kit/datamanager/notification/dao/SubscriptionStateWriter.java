@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.dao;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlParameterValue;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writer for the dispatch state of subscriptions, e.g. firedLast, firesNext,
+ * lastNotificationId and recentNotificationIds, which are updated by the subscription processor in
+ * each cycle. All provided subscriptions are written using a single batched
+ * UPDATE statement in chunks of 'repo.persistence.jdbcBatchSize'.
+ *
+ * In contrast to merging the subscriptions via JPA, no SELECT is issued per
+ * subscription and all other columns remain untouched. Furthermore,
+ * subscriptions deleted in the meantime are not inserted again. As with JPA,
+ * the version of each subscription is checked and incremented, so that the
+ * state is neither written over concurrent changes, e.g. via the
+ * subscription endpoints, nor missed by instances refreshing their index.
+ * Optionally, the state is only written while the subscription is leased by
+ * the provided owner. The recent notification ids, which might contain
+ * thousands of ids, are only written if they have changed.
+ *
+ * @author jejkal
+ */
+@Component
+public class SubscriptionStateWriter{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionStateWriter.class);
+
+  private static final String UPDATE_STATEMENT = "UPDATE subscription SET fired_last = ?, fires_next = ?, last_notification_id = ?, version = version + 1 WHERE id = ? AND version = ?";
+  private static final String RECENT_IDS_UPDATE_STATEMENT = "UPDATE subscription SET fired_last = ?, fires_next = ?, last_notification_id = ?, recent_notification_ids = ?, version = version + 1 WHERE id = ? AND version = ?";
+  private static final String LEASE_CONDITION = " AND lease_owner = ?";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final int batchSize;
+
+  @Autowired
+  public SubscriptionStateWriter(DataSource dataSource, ApplicationProperties applicationProperties){
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.batchSize = Math.max(1, applicationProperties.getJdbcBatchSize());
+  }
+
+  /**
+   * Write the dispatch state of the provided subscriptions. If called within a
+   * transaction, the connection bound to the transaction is used.
+   *
+   * @param subscriptions The subscriptions to write.
+   *
+   * @return The subscriptions whose state was not written, e.g. as they were
+   * changed or deleted in the meantime.
+   */
+  public List<Subscription> write(Collection<Subscription> subscriptions){
+    return write(subscriptions, (subscription) -> true, null);
+  }
+
+  /**
+   * Write the dispatch state of the provided subscriptions if they are leased
+   * by the provided owner. If called within a transaction, the connection
+   * bound to the transaction is used. The version of each written
+   * subscription is incremented.
+   *
+   * @param subscriptions The subscriptions to write.
+   * @param recentIdsChanged Selects the subscriptions whose recent
+   * notification ids have changed. The recent notification ids of all other
+   * subscriptions remain untouched.
+   * @param leaseOwner The owner of the leases or null if not leased.
+   *
+   * @return The subscriptions whose state was not written, e.g. as they were
+   * changed or deleted in the meantime or as they are not leased by the
+   * provided owner anymore. Their state has to be obtained from the database
+   * again.
+   */
+  public List<Subscription> write(Collection<Subscription> subscriptions, Predicate<Subscription> recentIdsChanged, String leaseOwner){
+    List<Subscription> rejected = new ArrayList<>();
+    if(subscriptions.isEmpty()){
+      return rejected;
+    }
+    LOGGER.trace("Writing state of {} subscription(s).", subscriptions.size());
+    Map<Boolean, List<Subscription>> partitions = subscriptions.stream().collect(Collectors.partitioningBy(recentIdsChanged));
+    write(partitions.get(Boolean.FALSE), false, leaseOwner, rejected);
+    write(partitions.get(Boolean.TRUE), true, leaseOwner, rejected);
+    if(!rejected.isEmpty()){
+      LOGGER.debug("State of {} subscription(s) not written due to concurrent changes.", rejected.size());
+    }
+    return rejected;
+  }
+
+  /**
+   * Write the provided subscriptions in batches and add all subscriptions not
+   * written to the provided list.
+   */
+  private void write(List<Subscription> list, boolean withRecentIds, String leaseOwner, List<Subscription> rejected){
+    if(list.isEmpty()){
+      return;
+    }
+    List<Object[]> arguments = list.stream().map((subscription) -> {
+      List<Object> values = new ArrayList<>(7);
+      values.add(toTimestamp(subscription.getFiredLast()));
+      values.add(toTimestamp(subscription.getFiresNext()));
+      values.add(new SqlParameterValue(Types.BIGINT, subscription.getLastNotificationId()));
+      if(withRecentIds){
+        values.add(new SqlParameterValue(Types.VARCHAR, subscription.getRecentNotificationIds()));
+      }
+      values.add(subscription.getId());
+      values.add(getVersion(subscription));
+      if(leaseOwner != null){
+        values.add(leaseOwner);
+      }
+      return values.toArray();
+    }).collect(Collectors.toList());
+    String statement = ((withRecentIds) ? RECENT_IDS_UPDATE_STATEMENT : UPDATE_STATEMENT) + ((leaseOwner != null) ? LEASE_CONDITION : "");
+    for(int i = 0; i < arguments.size(); i += batchSize){
+      int[] counts = jdbcTemplate.batchUpdate(statement, arguments.subList(i, Math.min(i + batchSize, arguments.size())));
+      for(int j = 0; j < counts.length; j++){
+        Subscription subscription = list.get(i + j);
+        //some drivers do not report the count of batched statements
+        if(counts[j] > 0 || counts[j] == Statement.SUCCESS_NO_INFO){
+          subscription.setVersion(getVersion(subscription) + 1);
+        } else{
+          rejected.add(subscription);
+        }
+      }
+    }
+  }
+
+  private static long getVersion(Subscription subscription){
+    return (subscription.getVersion() != null) ? subscription.getVersion() : 0l;
+  }
+
+  private static SqlParameterValue toTimestamp(Instant instant){
+    return new SqlParameterValue(Types.TIMESTAMP, (instant == null) ? null : Timestamp.from(instant));
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.dao.spec;
+
+import edu.kit.datamanager.notification.domain.Notification;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import org.springframework.data.jpa.domain.Specification;
+
+/**
+ * Specification for all notifications of a set of receipients having an id
+ * larger than a receipient-specific cursor, e.g. the id of the last delivered
+ * notification. For each receipient, the query is a range scan on the index
+ * (receipientId, id).
+ *
+ * @author jejkal
+ */
+public class NotificationReceipientCursorSpec{
+
+  private NotificationReceipientCursorSpec(){
+  }
+
+  /**
+   * Create the specification.
+   *
+   * @param cursorsByReceipient The cursor by receipient id. If the cursor of a
+   * receipient is null, all notifications of the receipient are matched.
+   *
+   * @return The specification.
+   */
+  public static Specification<Notification> toSpecification(final Map<String, Long> cursorsByReceipient){
+    return (Root<Notification> root, CriteriaQuery<?> query, CriteriaBuilder builder) -> {
+      List<Predicate> predicates = new ArrayList<>(cursorsByReceipient.size());
+      for(Entry<String, Long> entry : cursorsByReceipient.entrySet()){
+        if(entry.getValue() == null){
+          predicates.add(builder.equal(root.get("receipientId"), entry.getKey()));
+        } else{
+          predicates.add(builder.and(builder.equal(root.get("receipientId"), entry.getKey()), builder.greaterThan(root.get("id"), entry.getValue())));
+        }
+      }
+      return builder.or(predicates.toArray(new Predicate[]{}));
+    };
+  }
+}
@@ -17,6 +17,10 @@ package edu.kit.datamanager.notification.dao.spec;
 
 import edu.kit.datamanager.dao.StringFieldSpecification;
 import edu.kit.datamanager.notification.domain.Notification;
+import java.util.Collection;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
 import org.springframework.data.jpa.domain.Specification;
 
 /**
@@ -31,4 +35,10 @@ public class NotificationReceipientIdSpec{
   public static Specification<Notification> toSpecification(final String reseipientId, final boolean exactMatch){
     return StringFieldSpecification.createSpecification("receipientId", reseipientId, exactMatch);
   }
+
+  public static Specification<Notification> toSpecification(final Collection<String> receipientIds){
+    return (Root<Notification> root, CriteriaQuery<?> query, CriteriaBuilder builder) -> {
+      return root.get("receipientId").in(receipientIds);
+    };
+  }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.domain;
+
+import java.io.Serializable;
+import java.time.Instant;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import lombok.Data;
+
+/**
+ * Entry of the delivery ledger describing a delivery attempt of a
+ * subscription, which is either running (IN_FLIGHT) or which has failed and
+ * is retried at 'nextAttemptAt' (FAILED). The attempt covers all pending
+ * notifications of the subscription with an id up to 'toNotificationId'.
+ * Entries of successful deliveries are removed.
+ *
+ * @author jejkal
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_delivery_ledger_subscription", columnNames = {"subscriptionId"}))
+@Data
+public class DeliveryLedgerEntry implements Serializable{
+
+  public enum STATE{
+    IN_FLIGHT,
+    FAILED;
+  }
+  /**
+   * The name of the database sequence used for generating ids.
+   */
+  public static final String ID_SEQUENCE_NAME = "delivery_ledger_seq";
+  /**
+   * The max. length of the stored error message.
+   */
+  public static final int MAX_ERROR_LENGTH = 1024;
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "delivery_ledger_id_generator")
+  @SequenceGenerator(name = "delivery_ledger_id_generator", sequenceName = ID_SEQUENCE_NAME, allocationSize = 50)
+  private Long id;
+  private Long subscriptionId;
+  private Long fromNotificationId;
+  private Long toNotificationId;
+  private int attempts;
+  private Instant nextAttemptAt;
+  @Column(length = MAX_ERROR_LENGTH)
+  private String lastError;
+  @Enumerated(EnumType.STRING)
+  private STATE state;
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.domain;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
+import lombok.Data;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Persistent {@link NotificationDigest} of a subscription, which is stored in
+ * JSON format in a single row. The aggregate is updated whenever
+ * notifications for the subscription's receipient are persisted and is
+ * reduced after the digest has been delivered. Concurrent updates are
+ * detected via the version. After the digest has been rebuilt from the
+ * notification table, the ids of rebuilt notifications, whose updates might
+ * still be pending, are kept in order to not add them twice.
+ *
+ * @author jejkal
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_digest_aggregate_subscription", columnNames = {"subscriptionId"}))
+@Data
+public class DigestAggregate implements Serializable{
+
+  /**
+   * The name of the database sequence used for generating ids.
+   */
+  public static final String ID_SEQUENCE_NAME = "digest_aggregate_seq";
+  /**
+   * The max. length of the serialized digest.
+   */
+  public static final int MAX_DIGEST_LENGTH = 65535;
+  /**
+   * The max. number of rebuilt notification ids kept. If exceeded, the
+   * smallest ids are dropped.
+   */
+  public static final int MAX_REBUILT_NOTIFICATION_IDS = 3000;
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "digest_aggregate_id_generator")
+  @SequenceGenerator(name = "digest_aggregate_id_generator", sequenceName = ID_SEQUENCE_NAME, allocationSize = 50)
+  private Long id;
+  private Long subscriptionId;
+  @Version
+  private Long version;
+  @Column(length = MAX_DIGEST_LENGTH)
+  private String digest;
+  @Column(length = MAX_DIGEST_LENGTH)
+  private String rebuiltNotificationIds;
+
+  /**
+   * Get the ids of notifications added while rebuilding the digest, which
+   * are skipped if they are added again.
+   *
+   * @return A sorted, modifiable set of ids, which might be empty.
+   */
+  public Set<Long> getRebuiltNotificationIdsAsSet(){
+    Set<Long> ids = new TreeSet<>();
+    if(StringUtils.isNotEmpty(rebuiltNotificationIds)){
+      for(String id : rebuiltNotificationIds.split(",")){
+        ids.add(Long.parseLong(id));
+      }
+    }
+    return ids;
+  }
+
+  public void setRebuiltNotificationIdsFromSet(Collection<Long> ids){
+    TreeSet<Long> sorted = new TreeSet<>(ids);
+    while(sorted.size() > MAX_REBUILT_NOTIFICATION_IDS){
+      sorted.pollFirst();
+    }
+    this.rebuiltNotificationIds = (sorted.isEmpty()) ? null : StringUtils.join(sorted, ',');
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import io.swagger.v3.oas.annotations.media.Schema;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+
+/**
+ * Summary of a bulk import of notifications.
+ *
+ * @author jejkal
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@Schema(description = "Summary of a bulk import")
+@Data
+public class ImportSummary{
+
+  /**
+   * The max. number of error messages kept in the summary.
+   */
+  public static final int MAX_ERRORS = 100;
+
+  @Schema(description = "The number of persisted notifications.")
+  private long accepted = 0;
+  @Schema(description = "The number of rejected notifications.")
+  private long rejected = 0;
+  @Schema(description = "TRUE if the import was aborted due to malformed input. Notifications accepted before are persisted anyway.")
+  private boolean aborted = false;
+  @Schema(description = "Error messages for rejected notifications. Only the first " + MAX_ERRORS + " errors are listed.")
+  private List<String> errors = new ArrayList<>();
+
+  public void accept(int count){
+    accepted += count;
+  }
+
+  public void reject(int count, String error){
+    rejected += count;
+    if(errors.size() < MAX_ERRORS){
+      errors.add(error);
+    }
+  }
+}
@@ -16,6 +16,7 @@
 package edu.kit.datamanager.notification.domain;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -24,12 +25,19 @@ import edu.kit.datamanager.util.json.CustomInstantSerializer;
 import io.swagger.v3.oas.annotations.media.Schema;
 import java.io.Serializable;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.PrePersist;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 import lombok.Data;
 
 /**
@@ -37,6 +45,10 @@ import lombok.Data;
  * @author jejkal
  */
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_notification_fingerprint", columnNames = {"fingerprint"}),
+        indexes = {
+          @Index(name = "idx_notification_receipient_id", columnList = "receipientId, id"),
+          @Index(name = "idx_notification_receipient_stored_at", columnList = "receipientId, storedAt")})
 @JsonIgnoreProperties(ignoreUnknown = true)
 @Schema(description = "Notification element")
 @Data
@@ -52,8 +64,19 @@ public class Notification implements Serializable{
     USER,
     SYSTEM;
   }
+  /**
+   * The name of the database sequence used for generating ids.
+   */
+  public static final String ID_SEQUENCE_NAME = "notification_seq";
+  /**
+   * The number of ids obtained from the sequence at once. Must match the
+   * increment of the database sequence.
+   */
+  public static final int ID_ALLOCATION_SIZE = 50;
+
   @Id
-  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "notification_id_generator")
+  @SequenceGenerator(name = "notification_id_generator", sequenceName = ID_SEQUENCE_NAME, allocationSize = ID_ALLOCATION_SIZE)
   private Long id;
   @Schema(description = "The notification severity.", required = true)
   @Enumerated(EnumType.STRING)
@@ -79,5 +102,21 @@ public class Notification implements Serializable{
   private String senderId;
   @Schema(description = "A flag for marking the notification as read.", required = false)
   private Boolean recognized;
+  @Schema(hidden = true)
+  @JsonIgnore
+  @Column(length = 64)
+  private String fingerprint;
+  @Schema(hidden = true)
+  @JsonIgnore
+  private Instant storedAt;
+
+  /**
+   * Set the time the notification is persisted at, which is used for
+   * detecting notifications committed after notifications with a larger id.
+   */
+  @PrePersist
+  void onPersist(){
+    storedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+  }
 
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.domain;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import edu.kit.datamanager.util.json.CustomInstantDeserializer;
+import edu.kit.datamanager.util.json.CustomInstantSerializer;
+import io.swagger.v3.oas.annotations.media.Schema;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Data;
+
+/**
+ * Summary of the notifications pending for a subscription, e.g. the number of
+ * notifications per severity and sender type, the creation dates of the
+ * first and the last notification and the newest notifications themselves.
+ * Digests are maintained while notifications are persisted, so that handlers
+ * only interested in a summary do not have to load all pending notifications.
+ *
+ * @author jejkal
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@Schema(description = "Summary of pending notifications")
+@Data
+public class NotificationDigest implements Serializable{
+
+  /**
+   * Order of notifications from the newest to the oldest.
+   */
+  private static final Comparator<Notification> NEWEST_FIRST = Comparator.comparing(Notification::getCreatedAt, Comparator.nullsFirst(Comparator.naturalOrder())).
+          thenComparing(Notification::getId, Comparator.nullsFirst(Comparator.naturalOrder())).reversed();
+
+  @Schema(description = "The total number of pending notifications.")
+  private long total = 0;
+  @Schema(description = "The number of pending notifications per severity.")
+  private Map<Notification.SEVERITY, Long> countsBySeverity = new HashMap<>();
+  @Schema(description = "The number of pending notifications per sender type.")
+  private Map<Notification.SENDER_TYPE, Long> countsBySenderType = new HashMap<>();
+  @Schema(description = "The creation date of the oldest pending notification.")
+  @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'", timezone = "UTC")
+  @JsonDeserialize(using = CustomInstantDeserializer.class)
+  @JsonSerialize(using = CustomInstantSerializer.class)
+  private Instant firstCreatedAt;
+  @Schema(description = "The creation date of the newest pending notification.")
+  @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'", timezone = "UTC")
+  @JsonDeserialize(using = CustomInstantDeserializer.class)
+  @JsonSerialize(using = CustomInstantSerializer.class)
+  private Instant lastCreatedAt;
+  @Schema(description = "The largest id of all pending notifications.")
+  private Long lastNotificationId;
+  @Schema(description = "The newest pending notifications, newest first.")
+  private List<Notification> newest = new ArrayList<>();
+
+  /**
+   * Check if there are no pending notifications.
+   *
+   * @return TRUE if the digest is empty.
+   */
+  @JsonIgnore
+  public boolean isEmpty(){
+    return total <= 0;
+  }
+
+  /**
+   * Add the provided notification to the digest.
+   *
+   * @param notification The notification.
+   * @param maxNewest The max. number of newest notifications kept.
+   */
+  public void add(Notification notification, int maxNewest){
+    total++;
+    if(notification.getSeverity() != null){
+      countsBySeverity.merge(notification.getSeverity(), 1l, Long::sum);
+    }
+    if(notification.getSenderType() != null){
+      countsBySenderType.merge(notification.getSenderType(), 1l, Long::sum);
+    }
+    Instant createdAt = notification.getCreatedAt();
+    if(createdAt != null){
+      if(firstCreatedAt == null || createdAt.isBefore(firstCreatedAt)){
+        firstCreatedAt = createdAt;
+      }
+      if(lastCreatedAt == null || createdAt.isAfter(lastCreatedAt)){
+        lastCreatedAt = createdAt;
+      }
+    }
+    if(notification.getId() != null && (lastNotificationId == null || notification.getId() > lastNotificationId)){
+      lastNotificationId = notification.getId();
+    }
+    if(maxNewest > 0){
+      newest.add(notification);
+      newest.sort(NEWEST_FIRST);
+      while(newest.size() > maxNewest){
+        newest.remove(newest.size() - 1);
+      }
+    }
+  }
+
+  /**
+   * Remove all notifications summarized by the provided digest, e.g. after
+   * the provided digest has been delivered while further notifications have
+   * been added. As the creation dates of the remaining notifications are not
+   * known individually, firstCreatedAt is approximated by the oldest remaining
+   * newest notification.
+   *
+   * @param delivered The delivered digest.
+   */
+  public void subtract(NotificationDigest delivered){
+    total = Math.max(0, total - delivered.total);
+    delivered.countsBySeverity.forEach((severity, count) -> countsBySeverity.computeIfPresent(severity, (k, v) -> (v > count) ? v - count : null));
+    delivered.countsBySenderType.forEach((senderType, count) -> countsBySenderType.computeIfPresent(senderType, (k, v) -> (v > count) ? v - count : null));
+    Set<Long> deliveredIds = new HashSet<>();
+    delivered.newest.forEach((notification) -> deliveredIds.add(notification.getId()));
+    newest.removeIf((notification) -> deliveredIds.contains(notification.getId()));
+    if(isEmpty()){
+      firstCreatedAt = null;
+      lastCreatedAt = null;
+      newest.clear();
+    } else if(!newest.isEmpty()){
+      firstCreatedAt = newest.get(newest.size() - 1).getCreatedAt();
+    }
+  }
+}
@@ -19,7 +19,10 @@ import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import edu.kit.datamanager.util.json.CustomInstantDeserializer;
@@ -28,15 +31,26 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import java.io.IOException;
 import java.io.Serializable;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Version;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -54,8 +68,32 @@ public class Subscription implements Serializable{
     HOURLY,
     DAILY;
   }
+  /**
+   * The name of the database sequence used for generating ids.
+   */
+  public static final String ID_SEQUENCE_NAME = "subscription_seq";
+  /**
+   * The number of ids obtained from the sequence at once. Must match the
+   * increment of the database sequence.
+   */
+  public static final int ID_ALLOCATION_SIZE = 50;
+  /**
+   * The max. number of recently delivered notification ids kept. If exceeded,
+   * the smallest ids are dropped, which may cause these notifications to be
+   * delivered again.
+   */
+  public static final int MAX_RECENT_NOTIFICATION_IDS = 3000;
+  /**
+   * Shared, thread-safe reader and writer for subscription properties.
+   */
+  private static final ObjectReader PROPERTIES_READER = new ObjectMapper().readerFor(new TypeReference<Map<String, String>>(){
+  });
+  private static final ObjectWriter PROPERTIES_WRITER = new ObjectMapper().writerFor(new TypeReference<Map<String, String>>(){
+  });
+
   @Id
-  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "subscription_id_generator")
+  @SequenceGenerator(name = "subscription_id_generator", sequenceName = ID_SEQUENCE_NAME, allocationSize = ID_ALLOCATION_SIZE)
   private Long id;
   @Schema(description = "The subscription name, e.g. the unique name of the subscription.", required = true)
   private String subscriptionName;
@@ -76,21 +114,125 @@ public class Subscription implements Serializable{
   @JsonDeserialize(using = CustomInstantDeserializer.class)
   @JsonSerialize(using = CustomInstantSerializer.class)
   private Instant firesNext;
+  @Schema(description = "The id of the last notification delivered via this subscription.", required = false)
+  private Long lastNotificationId;
   @Schema(description = "Flag to disable the subscription, e.g. temporarily.", required = false)
   private Boolean disabled;
+  @JsonIgnore
+  @Version
+  @Column(nullable = false, columnDefinition = "BIGINT DEFAULT 0")
+  private Long version;
+  @JsonIgnore
+  private String leaseOwner;
+  @JsonIgnore
+  private Instant leaseExpiresAt;
+  @JsonIgnore
+  @Column(length = 65535)
+  private String recentNotificationIds;
+  @JsonIgnore
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private transient ParsedProperties parsedProperties;
 
+  /**
+   * Get the subscription properties as map. The properties are parsed once
+   * and are cached until the serialized properties change.
+   *
+   * @return An unmodifiable map of properties, which might be empty.
+   *
+   * @throws IOException if the serialized properties are invalid.
+   */
   @JsonIgnore
   public Map<String, String> getSubscriptionPropertiesAsMap() throws IOException{
-    if(StringUtils.isNotEmpty(subscriptionProperties)){
-      return new ObjectMapper().readValue(subscriptionProperties, Map.class);
+    ParsedProperties parsed = parsedProperties;
+    String source = subscriptionProperties;
+    if(parsed == null || !parsed.isParsedFrom(source)){
+      Map<String, String> properties = Collections.emptyMap();
+      if(StringUtils.isNotEmpty(source)){
+        properties = Collections.unmodifiableMap(PROPERTIES_READER.readValue(source));
+      }
+      parsed = new ParsedProperties(source, properties);
+      parsedProperties = parsed;
     }
-    return new HashMap<>();
+    return parsed.properties;
   }
 
   @JsonIgnore
   public void setSubscriptionPropertiesFromMap(Map<String, String> properties) throws JsonProcessingException{
     if(properties != null){
-      this.subscriptionProperties = new ObjectMapper().writeValueAsString(properties);
+      this.subscriptionProperties = PROPERTIES_WRITER.writeValueAsString(properties);
+    }
+  }
+
+  /**
+   * Get the ids of notifications delivered recently, i.e. stored within
+   * 'repo.dispatch.commitLagMillis' before the subscription fired last. These
+   * notifications are not delivered again if found below the cursor.
+   *
+   * @return A sorted, modifiable set of ids, which might be empty.
+   */
+  @JsonIgnore
+  public Set<Long> getRecentNotificationIdsAsSet(){
+    Set<Long> ids = new TreeSet<>();
+    if(StringUtils.isNotEmpty(recentNotificationIds)){
+      for(String id : recentNotificationIds.split(",")){
+        ids.add(Long.parseLong(id));
+      }
+    }
+    return ids;
+  }
+
+  @JsonIgnore
+  public void setRecentNotificationIdsFromSet(Collection<Long> ids){
+    TreeSet<Long> sorted = new TreeSet<>(ids);
+    while(sorted.size() > MAX_RECENT_NOTIFICATION_IDS){
+      sorted.pollFirst();
+    }
+    this.recentNotificationIds = (sorted.isEmpty()) ? null : StringUtils.join(sorted, ',');
+  }
+
+  /**
+   * Create a copy of this subscription sharing the parsed properties.
+   *
+   * @return The copy.
+   */
+  public Subscription copy(){
+    Subscription copy = new Subscription();
+    copy.id = id;
+    copy.subscriptionName = subscriptionName;
+    copy.receipientId = receipientId;
+    copy.subscriptionProperties = subscriptionProperties;
+    copy.frequency = frequency;
+    copy.firedLast = firedLast;
+    copy.firesNext = firesNext;
+    copy.lastNotificationId = lastNotificationId;
+    copy.disabled = disabled;
+    copy.version = version;
+    copy.leaseOwner = leaseOwner;
+    copy.leaseExpiresAt = leaseExpiresAt;
+    copy.recentNotificationIds = recentNotificationIds;
+    copy.parsedProperties = parsedProperties;
+    return copy;
+  }
+
+  /**
+   * Properties parsed from a certain serialized representation.
+   */
+  private static final class ParsedProperties{
+
+    private final String source;
+    private final Map<String, String> properties;
+
+    ParsedProperties(String source, Map<String, String> properties){
+      this.source = source;
+      this.properties = properties;
+    }
+
+    boolean isParsedFrom(String value){
+      //identity check first, as the source is usually the same instance
+      return source == value || (source != null && source.equals(value));
     }
   }
 
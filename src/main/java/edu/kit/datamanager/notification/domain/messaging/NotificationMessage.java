@@ -22,6 +22,7 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 import lombok.Data;
 
 /**
@@ -55,6 +56,7 @@ public class NotificationMessage extends BasicMessage{
   public final static String SEVERITY_KEY = "severity";
   public final static String RECEIPIENT_ID_KEY = "receipientId";
   public final static String EXPIRES_AT_KEY = "expiresAt";
+  public final static String MESSAGE_ID_KEY = "messageId";
 
   public static NotificationMessage createMessage(NotificationMessage.ACTION action, String principal, String content, Notification.SEVERITY severity, String receipientId, Notification.SENDER_TYPE senderType, String senderId, Instant expiresAt){
     NotificationMessage msg = new NotificationMessage();
@@ -69,6 +71,7 @@ public class NotificationMessage extends BasicMessage{
     metadata.put(SEVERITY_KEY, severity.toString());
     metadata.put(RECEIPIENT_ID_KEY, receipientId);
     metadata.put(EXPIRES_AT_KEY, DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC).format(expiresAt));
+    metadata.put(MESSAGE_ID_KEY, UUID.randomUUID().toString());
     msg.setMetadata(metadata);
 
     return msg;
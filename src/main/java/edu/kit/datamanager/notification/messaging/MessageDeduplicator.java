@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.messaging;
+
+import edu.kit.datamanager.entities.messaging.BasicMessage;
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.INotificationDao;
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.messaging.NotificationMessage;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Detection of redelivered notification messages. Each message is identified
+ * by a fingerprint, which is either derived from an explicit message id
+ * provided in the message metadata or from sender, timestamp, receipient and
+ * content of the message. The fingerprint is stored with the notification and
+ * a unique database constraint serves as authoritative check. In addition,
+ * the fingerprints of the most recently persisted notifications are kept in a
+ * bounded LRU cache, which allows to acknowledge most duplicates without
+ * accessing the database.
+ *
+ * @author jejkal
+ */
+@Component
+public class MessageDeduplicator{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MessageDeduplicator.class);
+
+  private final INotificationDao notificationDao;
+  private final Map<String, Boolean> recentFingerprints;
+
+  @Autowired
+  public MessageDeduplicator(INotificationDao notificationDao, ApplicationProperties applicationProperties){
+    this.notificationDao = notificationDao;
+    final int cacheSize = Math.max(0, applicationProperties.getIngestDedupCacheSize());
+    this.recentFingerprints = new LinkedHashMap<String, Boolean>(16, 0.75f, true){
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest){
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Create the fingerprint of the provided message.
+   *
+   * @param message The message.
+   *
+   * @return The fingerprint as hex-encoded SHA-256 hash.
+   */
+  public static String fingerprint(BasicMessage message){
+    Map<String, String> metadata = message.getMetadata();
+    String messageId = metadata.get(NotificationMessage.MESSAGE_ID_KEY);
+    String source;
+    if(StringUtils.isNotEmpty(messageId)){
+      source = "id|" + message.getSender() + "|" + messageId;
+    } else{
+      source = "content|" + message.getSender() + "|" + message.getTimestamp() + "|" + metadata.get(NotificationMessage.RECEIPIENT_ID_KEY) + "|" + metadata.get(NotificationMessage.CONTENT_KEY);
+    }
+    try{
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+      StringBuilder builder = new StringBuilder(hash.length * 2);
+      for(byte b : hash){
+        builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return builder.toString();
+    } catch(NoSuchAlgorithmException ex){
+      //SHA-256 is available on every Java platform
+      throw new IllegalStateException("Failed to obtain SHA-256 message digest.", ex);
+    }
+  }
+
+  /**
+   * Check if a notification with the provided fingerprint was persisted
+   * recently. This check only covers the in-memory cache and never accesses
+   * the database, e.g. a return value of FALSE does not guarantee that the
+   * fingerprint is unknown.
+   *
+   * @param fingerprint The fingerprint to check.
+   *
+   * @return TRUE if the fingerprint is a known duplicate.
+   */
+  public boolean isKnownDuplicate(String fingerprint){
+    synchronized(recentFingerprints){
+      return recentFingerprints.containsKey(fingerprint);
+    }
+  }
+
+  /**
+   * Remember the fingerprints of the provided notifications after they were
+   * persisted or accepted for persisting.
+   *
+   * @param notifications The notifications.
+   */
+  public void remember(Collection<Notification> notifications){
+    synchronized(recentFingerprints){
+      for(Notification notification : notifications){
+        if(notification.getFingerprint() != null){
+          recentFingerprints.put(notification.getFingerprint(), Boolean.TRUE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Persist a single notification. If persisting fails due to a constraint
+   * violation and a notification with the same fingerprint already exists,
+   * the notification is regarded as duplicate and not persisted again.
+   *
+   * @param notification The notification to persist.
+   *
+   * @throws DataIntegrityViolationException if persisting failed due to
+   * another constraint violation.
+   */
+  public void persist(Notification notification){
+    try{
+      notificationDao.save(notification);
+    } catch(DataIntegrityViolationException ex){
+      if(notification.getFingerprint() == null || !notificationDao.existsByFingerprint(notification.getFingerprint())){
+        throw ex;
+      }
+      LOGGER.debug("Notification with fingerprint {} already exists. Skipping duplicate.", notification.getFingerprint());
+      notification.setId(null);
+    }
+    remember(Collections.singletonList(notification));
+  }
+}
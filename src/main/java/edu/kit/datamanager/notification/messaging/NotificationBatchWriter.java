@@ -0,0 +1,217 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.messaging;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.INotificationDao;
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.subscription.NotificationsPersistedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+/**
+ * Group commit writer for notifications received via messaging. Each caller
+ * of {@link #write(edu.kit.datamanager.notification.domain.Notification)}
+ * joins the currently open batch and blocks until this batch was persisted.
+ * A batch is persisted as soon as it contains 'repo.ingest.batchSize'
+ * notifications or as soon as the oldest notification waited
+ * 'repo.ingest.lingerMillis' milliseconds. Persisting is done by the caller
+ * closing the batch using a single saveAll() call, e.g. in one transaction.
+ *
+ * As the caller only returns after the batch was committed, a message is not
+ * acknowledged before its notification was persisted. Consumer threads
+ * waiting for their batch therefore limit the number of notifications in
+ * flight, so that no additional buffer is needed.
+ *
+ * The size of the open batch, persisted and failed notifications as well as
+ * the time for persisting a batch are published as metrics with prefix
+ * 'notification.ingest'.
+ *
+ * @author jejkal
+ */
+@Component
+public class NotificationBatchWriter{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NotificationBatchWriter.class);
+
+  private final INotificationDao notificationDao;
+  private final MessageDeduplicator deduplicator;
+  private final ApplicationEventPublisher eventPublisher;
+  private final int batchSize;
+  private final long lingerMillis;
+  private final Counter persistedCounter;
+  private final Counter failedCounter;
+  private final Timer writeTimer;
+  private final Object lock = new Object();
+  private List<PendingNotification> currentBatch = new ArrayList<>();
+
+  public NotificationBatchWriter(INotificationDao notificationDao, MessageDeduplicator deduplicator, ApplicationProperties applicationProperties){
+    this(notificationDao, deduplicator, applicationProperties, Optional.empty(), null);
+  }
+
+  @Autowired
+  public NotificationBatchWriter(INotificationDao notificationDao, MessageDeduplicator deduplicator, ApplicationProperties applicationProperties, Optional<MeterRegistry> meterRegistry, ApplicationEventPublisher eventPublisher){
+    this.notificationDao = notificationDao;
+    this.deduplicator = deduplicator;
+    this.eventPublisher = eventPublisher;
+    this.batchSize = Math.max(1, applicationProperties.getIngestBatchSize());
+    this.lingerMillis = Math.max(0, applicationProperties.getIngestLingerMillis());
+
+    MeterRegistry registry = meterRegistry.orElseGet(SimpleMeterRegistry::new);
+    Gauge.builder("notification.ingest.batch.open", this, NotificationBatchWriter::getOpenBatchSize).description("Number of received notifications in the open batch.").register(registry);
+    persistedCounter = Counter.builder("notification.ingest.persisted").description("Number of received notifications persisted in batches.").register(registry);
+    failedCounter = Counter.builder("notification.ingest.failed").description("Number of received notifications which could not be persisted and were rejected for redelivery.").register(registry);
+    writeTimer = Timer.builder("notification.ingest.batch.write").description("Time for persisting one batch of notifications.").register(registry);
+  }
+
+  /**
+   * Check if batching is enabled, which is the case if the configured batch
+   * size is larger than 1.
+   *
+   * @return TRUE if batching is enabled.
+   */
+  public boolean isEnabled(){
+    return batchSize > 1;
+  }
+
+  /**
+   * Get the number of notifications in the open batch.
+   *
+   * @return The number of notifications waiting for the batch to be persisted.
+   */
+  public int getOpenBatchSize(){
+    synchronized(lock){
+      return currentBatch.size();
+    }
+  }
+
+  /**
+   * Add the provided notification to the current batch and wait until the
+   * batch was persisted.
+   *
+   * @param notification The notification to persist.
+   *
+   * @return TRUE if the batch containing the notification was committed, FALSE
+   * if persisting the batch failed or if the calling thread was interrupted.
+   */
+  public boolean write(Notification notification){
+    PendingNotification pending = new PendingNotification(notification);
+    List<PendingNotification> batchToFlush = null;
+    List<PendingNotification> joinedBatch;
+
+    synchronized(lock){
+      joinedBatch = currentBatch;
+      joinedBatch.add(pending);
+      if(currentBatch.size() >= batchSize){
+        LOGGER.trace("Batch size of {} reached. Closing batch.", batchSize);
+        batchToFlush = closeBatch();
+      }
+    }
+
+    if(batchToFlush != null){
+      flush(batchToFlush);
+    }
+
+    try{
+      try{
+        return pending.result.get(lingerMillis, TimeUnit.MILLISECONDS);
+      } catch(TimeoutException ex){
+        synchronized(lock){
+          //still in the current batch, so nobody else took it...close and flush it
+          if(joinedBatch == currentBatch){
+            LOGGER.trace("Linger time of {} ms exceeded. Closing batch with {} notification(s).", lingerMillis, currentBatch.size());
+            batchToFlush = closeBatch();
+          }
+        }
+        if(batchToFlush != null){
+          flush(batchToFlush);
+        }
+        //wait for the flush, either done by this or by another thread
+        return pending.result.get();
+      }
+    } catch(InterruptedException ex){
+      LOGGER.warn("Interrupted while waiting for batch commit.", ex);
+      Thread.currentThread().interrupt();
+      return false;
+    } catch(ExecutionException ex){
+      LOGGER.error("Failed to wait for batch commit.", ex);
+      return false;
+    }
+  }
+
+  private List<PendingNotification> closeBatch(){
+    List<PendingNotification> batch = currentBatch;
+    currentBatch = new ArrayList<>();
+    return batch;
+  }
+
+  private void flush(List<PendingNotification> batch){
+    List<Notification> notifications = new ArrayList<>(batch.size());
+    batch.forEach((pending) -> notifications.add(pending.notification));
+    try{
+      LOGGER.trace("Persisting batch of {} notification(s).", notifications.size());
+      writeTimer.record(() -> notificationDao.saveAll(notifications));
+      deduplicator.remember(notifications);
+      persistedCounter.increment(batch.size());
+      batch.forEach((pending) -> pending.result.complete(true));
+      NotificationsPersistedEvent.publish(eventPublisher, notifications);
+    } catch(RuntimeException ex){
+      //e.g. caused by a redelivered message, persist separately in order to skip duplicates
+      LOGGER.warn("Failed to persist batch of " + notifications.size() + " notification(s). Persisting notifications separately.", ex);
+      //ids are assigned before inserting, so failed notifications have to be excluded explicitly
+      List<Notification> persisted = new ArrayList<>(batch.size());
+      for(PendingNotification pending : batch){
+        pending.notification.setId(null);
+        try{
+          deduplicator.persist(pending.notification);
+          persisted.add(pending.notification);
+          persistedCounter.increment();
+          pending.result.complete(true);
+        } catch(RuntimeException e){
+          LOGGER.error("Failed to persist notification " + pending.notification + ".", e);
+          failedCounter.increment();
+          pending.result.complete(false);
+        }
+      }
+      NotificationsPersistedEvent.publish(eventPublisher, persisted);
+    }
+  }
+
+  private static final class PendingNotification{
+
+    private final Notification notification;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+    PendingNotification(Notification notification){
+      this.notification = notification;
+    }
+  }
+}
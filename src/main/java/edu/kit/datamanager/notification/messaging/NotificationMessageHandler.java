@@ -17,15 +17,19 @@ package edu.kit.datamanager.notification.messaging;
 
 import edu.kit.datamanager.entities.messaging.BasicMessage;
 import edu.kit.datamanager.messaging.client.handler.IMessageHandler;
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
 import edu.kit.datamanager.notification.dao.INotificationDao;
 import edu.kit.datamanager.notification.domain.Notification;
 import edu.kit.datamanager.notification.domain.messaging.NotificationMessage;
+import edu.kit.datamanager.notification.subscription.NotificationsPersistedEvent;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Component;
 
 /**
@@ -40,8 +44,26 @@ public class NotificationMessageHandler implements IMessageHandler{
   @Autowired
   private final INotificationDao notificationDao;
 
+  private final MessageDeduplicator deduplicator;
+
+  private final NotificationBatchWriter batchWriter;
+
+  private final ApplicationEventPublisher eventPublisher;
+
   public NotificationMessageHandler(INotificationDao notificationDao){
+    this(notificationDao, new MessageDeduplicator(notificationDao, new ApplicationProperties()), null);
+  }
+
+  public NotificationMessageHandler(INotificationDao notificationDao, MessageDeduplicator deduplicator, NotificationBatchWriter batchWriter){
+    this(notificationDao, deduplicator, batchWriter, null);
+  }
+
+  @Autowired
+  public NotificationMessageHandler(INotificationDao notificationDao, MessageDeduplicator deduplicator, NotificationBatchWriter batchWriter, ApplicationEventPublisher eventPublisher){
     this.notificationDao = notificationDao;
+    this.deduplicator = deduplicator;
+    this.batchWriter = batchWriter;
+    this.eventPublisher = eventPublisher;
   }
 
   @Override
@@ -51,6 +73,11 @@ public class NotificationMessageHandler implements IMessageHandler{
 
   @Override
   public RESULT handle(BasicMessage message){
+    String fingerprint = MessageDeduplicator.fingerprint(message);
+    if(deduplicator.isKnownDuplicate(fingerprint)){
+      logger.debug("Message with fingerprint {} was already processed. Skipping duplicate.", fingerprint);
+      return RESULT.SUCCEEDED;
+    }
     logger.trace("Reconstructing notification from message {}.", message);
     Notification n = new Notification();
     n.setContent(message.getMetadata().get(NotificationMessage.CONTENT_KEY));
@@ -61,8 +88,18 @@ public class NotificationMessageHandler implements IMessageHandler{
     n.setSenderId(message.getSender());
     n.setSenderType(Notification.SENDER_TYPE.valueOf(message.getMetadata().get(NotificationMessage.SENDER_TYPE_KEY)));
     n.setSeverity(Notification.SEVERITY.valueOf(message.getMetadata().get(NotificationMessage.SEVERITY_KEY)));
+    n.setFingerprint(fingerprint);
+    if(batchWriter != null && batchWriter.isEnabled()){
+      logger.trace("Adding notification {} to current batch.", n);
+      if(!batchWriter.write(n)){
+        logger.error("Failed to persist batch containing notification {}.", n);
+        return RESULT.FAILED;
+      }
+      return RESULT.SUCCEEDED;
+    }
     logger.trace("Persisting notification {}.", n);
-    notificationDao.save(n);
+    deduplicator.persist(n);
+    NotificationsPersistedEvent.publish(eventPublisher, Collections.singletonList(n));
     return RESULT.SUCCEEDED;
   }
 
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.IDeliveryLedgerDao;
+import edu.kit.datamanager.notification.domain.DeliveryLedgerEntry;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Persistent record of delivery attempts. Before notifications are passed to
+ * a subscription handler, an IN_FLIGHT entry is written for the subscription.
+ * If the delivery succeeds, the entry is removed. If it fails, the entry is
+ * marked as FAILED and the next attempt is scheduled with exponential backoff
+ * starting at 'repo.delivery.retryBaseMillis' up to
+ * 'repo.delivery.retryMaxMillis', randomized by 'repo.delivery.retryJitter'.
+ *
+ * An IN_FLIGHT entry found while processing a subscription is a leftover of
+ * a crashed instance. As the handler might have delivered the notifications
+ * already, the covered notifications are regarded as delivered in order to
+ * avoid duplicates.
+ *
+ * @author jejkal
+ */
+@Component
+public class DeliveryLedger{
+
+  private final IDeliveryLedgerDao ledgerDao;
+  private final long retryBaseMillis;
+  private final long retryMaxMillis;
+  private final double retryJitter;
+
+  @Autowired
+  public DeliveryLedger(IDeliveryLedgerDao ledgerDao, ApplicationProperties applicationProperties){
+    this.ledgerDao = ledgerDao;
+    this.retryBaseMillis = Math.max(0, applicationProperties.getDeliveryRetryBaseMillis());
+    this.retryMaxMillis = Math.max(retryBaseMillis, applicationProperties.getDeliveryRetryMaxMillis());
+    this.retryJitter = Math.min(1.0, Math.max(0.0, applicationProperties.getDeliveryRetryJitter()));
+  }
+
+  /**
+   * Obtain the ledger entries of the provided subscriptions.
+   *
+   * @param subscriptionIds The ids of the subscriptions.
+   *
+   * @return The entries by subscription id.
+   */
+  public Map<Long, DeliveryLedgerEntry> findEntries(Collection<Long> subscriptionIds){
+    Map<Long, DeliveryLedgerEntry> result = new HashMap<>();
+    if(!subscriptionIds.isEmpty()){
+      ledgerDao.findBySubscriptionIdIn(subscriptionIds).forEach((entry) -> result.put(entry.getSubscriptionId(), entry));
+    }
+    return result;
+  }
+
+  /**
+   * Record the start of a delivery attempt. The entry is persisted
+   * immediately.
+   *
+   * @param subscription The subscription.
+   * @param entry The entry of a previously failed attempt or null.
+   * @param toNotificationId The largest id of the notifications to deliver.
+   *
+   * @return The persisted IN_FLIGHT entry.
+   */
+  public DeliveryLedgerEntry begin(Subscription subscription, DeliveryLedgerEntry entry, Long toNotificationId){
+    if(entry == null){
+      entry = new DeliveryLedgerEntry();
+      entry.setSubscriptionId(subscription.getId());
+      entry.setFromNotificationId(subscription.getLastNotificationId());
+      entry.setToNotificationId(toNotificationId);
+    }
+    entry.setAttempts(entry.getAttempts() + 1);
+    entry.setState(DeliveryLedgerEntry.STATE.IN_FLIGHT);
+    return ledgerDao.save(entry);
+  }
+
+  /**
+   * Remove the entry of a successful or of a recovered delivery.
+   *
+   * @param entry The entry.
+   */
+  public void succeeded(DeliveryLedgerEntry entry){
+    if(entry != null){
+      ledgerDao.delete(entry);
+      //Hibernate executes inserts before deletes, so flush before a new entry
+      //for the same subscription might be inserted within one transaction
+      ledgerDao.flush();
+    }
+  }
+
+  /**
+   * Mark the provided entry as FAILED and schedule the next attempt.
+   *
+   * @param entry The entry.
+   * @param error The error message.
+   * @param now The current time.
+   *
+   * @return The updated entry.
+   */
+  public DeliveryLedgerEntry failed(DeliveryLedgerEntry entry, String error, Instant now){
+    entry.setState(DeliveryLedgerEntry.STATE.FAILED);
+    entry.setLastError(StringUtils.abbreviate(error, DeliveryLedgerEntry.MAX_ERROR_LENGTH));
+    entry.setNextAttemptAt(now.plusMillis(getBackoffMillis(entry.getAttempts())));
+    return ledgerDao.save(entry);
+  }
+
+  /**
+   * Revert the provided entry if the handler was not called, e.g. because the
+   * call was rejected.
+   *
+   * @param entry The entry.
+   */
+  public void cancel(DeliveryLedgerEntry entry){
+    if(entry == null){
+      return;
+    }
+    if(entry.getAttempts() <= 1){
+      ledgerDao.delete(entry);
+      return;
+    }
+    entry.setAttempts(entry.getAttempts() - 1);
+    entry.setState(DeliveryLedgerEntry.STATE.FAILED);
+    ledgerDao.save(entry);
+  }
+
+  /**
+   * Get the time to wait before the next attempt after the provided number
+   * of attempts, e.g. retryBaseMillis * 2^(attempts - 1) limited to
+   * retryMaxMillis and randomized by +/- retryJitter.
+   *
+   * @param attempts The number of attempts made so far.
+   *
+   * @return The backoff in milliseconds.
+   */
+  long getBackoffMillis(int attempts){
+    int exponent = Math.min(Math.max(0, attempts - 1), 30);
+    //avoid overflows for large exponents
+    long backoff = (retryBaseMillis > (retryMaxMillis >> exponent)) ? retryMaxMillis : Math.min(retryMaxMillis, retryBaseMillis << exponent);
+    if(retryJitter > 0 && backoff > 0){
+      double factor = 1.0 + ThreadLocalRandom.current().nextDouble(-retryJitter, retryJitter);
+      backoff = (long) (backoff * factor);
+    }
+    return backoff;
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.IDigestAggregateDao;
+import edu.kit.datamanager.notification.dao.INotificationDao;
+import edu.kit.datamanager.notification.domain.DigestAggregate;
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Maintenance of the {@link NotificationDigest} of all aggregated
+ * subscriptions, e.g. of all HOURLY and DAILY subscriptions whose handler only
+ * needs a summary of pending notifications. Whenever notifications are
+ * persisted, they are added to the digests of the aggregated subscriptions of
+ * their receipients. After a digest has been delivered, it is reduced by the
+ * delivered notifications. Thus, delivering a digest requires reading a
+ * single row independent of the number of pending notifications.
+ *
+ * Digests are updated after the notifications have been committed. Concurrent
+ * updates, e.g. by other service instances, are detected via the aggregate's
+ * version and are retried up to {@value #MAX_ATTEMPTS} times. As an update
+ * might still get lost, e.g. if the instance stops after the commit or if
+ * the subscription was not yet known to the instance, the digests are
+ * verified against the notification table before they are delivered and are
+ * rebuilt if they miss notifications.
+ *
+ * @author jejkal
+ */
+@Component
+public class DigestAggregator{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DigestAggregator.class);
+  /**
+   * Max. number of attempts for updating digests concurrently changed by
+   * others.
+   */
+  static final int MAX_ATTEMPTS = 3;
+  /**
+   * Number of notifications read at once while rebuilding a digest.
+   */
+  private static final int REBUILD_PAGE_SIZE = 1000;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule());
+  private static final ObjectReader DIGEST_READER = MAPPER.readerFor(NotificationDigest.class);
+  private static final ObjectWriter DIGEST_WRITER = MAPPER.writerFor(NotificationDigest.class);
+
+  private final IDigestAggregateDao aggregateDao;
+  private final INotificationDao notificationDao;
+  private final SubscriptionIndex index;
+  private final TransactionTemplate transactionTemplate;
+  private final int newestCount;
+  private final long commitLagMillis;
+
+  @Autowired
+  public DigestAggregator(IDigestAggregateDao aggregateDao, INotificationDao notificationDao, SubscriptionIndex index, PlatformTransactionManager transactionManager, ApplicationProperties applicationProperties){
+    this.aggregateDao = aggregateDao;
+    this.notificationDao = notificationDao;
+    this.index = index;
+    //a new transaction is required as the event might be handled after another transaction has been committed
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    this.newestCount = Math.max(0, applicationProperties.getDigestNewestCount());
+    this.commitLagMillis = Math.max(0, applicationProperties.getDispatchCommitLagMillis());
+  }
+
+  /**
+   * Check if the provided subscription is aggregated, e.g. if it is no LIVE
+   * subscription and if its handler only needs a digest.
+   *
+   * @param subscription The subscription.
+   * @param handler The handler of the subscription, which might be null.
+   *
+   * @return TRUE if the subscription is aggregated.
+   */
+  public static boolean isAggregated(Subscription subscription, ISubscriptionHandler handler){
+    if(handler == null || subscription.getFrequency() == null || Subscription.FREQUENCY.LIVE.equals(subscription.getFrequency())){
+      return false;
+    }
+    try{
+      return handler.isAggregateOnly(subscription.getSubscriptionPropertiesAsMap());
+    } catch(IOException ex){
+      return false;
+    }
+  }
+
+  /**
+   * Add newly persisted notifications to the digests of all aggregated
+   * subscriptions of their receipients. If the event was published within a
+   * transaction, it is handled after commit.
+   *
+   * @param event The event.
+   */
+  @TransactionalEventListener(fallbackExecution = true)
+  public void onNotificationsPersisted(NotificationsPersistedEvent event){
+    if(event.getNotifications().isEmpty()){
+      return;
+    }
+    index.refreshIfRequired();
+    Map<String, List<Notification>> notificationsByReceipient = new HashMap<>();
+    for(Notification notification : event.getNotifications()){
+      notificationsByReceipient.computeIfAbsent(notification.getReceipientId(), (k) -> new ArrayList<>()).add(notification);
+    }
+    Map<Long, List<Notification>> notificationsBySubscription = new HashMap<>();
+    notificationsByReceipient.forEach((receipientId, notifications) -> {
+      for(SubscriptionIndex.Entry entry : index.findByReceipient(receipientId)){
+        if(isAggregated(entry.getSubscription(), entry.getHandler())){
+          notificationsBySubscription.put(entry.getSubscription().getId(), notifications);
+        }
+      }
+    });
+    if(notificationsBySubscription.isEmpty()){
+      return;
+    }
+    LOGGER.trace("Adding {} notification(s) to the digests of {} subscription(s).", event.getNotifications().size(), notificationsBySubscription.size());
+    update(notificationsBySubscription.keySet(), (aggregate, digest) -> {
+      Set<Long> rebuiltIds = aggregate.getRebuiltNotificationIdsAsSet();
+      for(Notification notification : notificationsBySubscription.get(aggregate.getSubscriptionId())){
+        //already added while rebuilding the digest
+        if(!rebuiltIds.remove(notification.getId())){
+          digest.add(notification, newestCount);
+        }
+      }
+      aggregate.setRebuiltNotificationIdsFromSet(rebuiltIds);
+      return digest;
+    });
+  }
+
+  /**
+   * Obtain the digests of the provided subscriptions using a single query.
+   *
+   * @param subscriptionIds The ids of the subscriptions.
+   *
+   * @return The digests by subscription id. Subscriptions without pending
+   * notifications are not contained.
+   */
+  public Map<Long, NotificationDigest> findDigests(Collection<Long> subscriptionIds){
+    if(subscriptionIds.isEmpty()){
+      return Collections.emptyMap();
+    }
+    Map<Long, NotificationDigest> result = new HashMap<>();
+    for(DigestAggregate aggregate : aggregateDao.findBySubscriptionIdIn(subscriptionIds)){
+      try{
+        result.put(aggregate.getSubscriptionId(), DIGEST_READER.readValue(aggregate.getDigest()));
+      } catch(IOException ex){
+        LOGGER.warn("Failed to read digest of subscription " + aggregate.getSubscriptionId() + ". Ignoring digest.", ex);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Verify the provided digests of the provided subscriptions against the
+   * notification table before they are delivered. Each digest has to contain
+   * at least all notifications following the subscription's cursor, which
+   * have been stored more than 'repo.dispatch.commitLagMillis' ago, as their
+   * updates should have been applied. These notifications are counted for
+   * all subscriptions using a single grouped query, which is only repeated
+   * for receipients having several aggregated subscriptions with different
+   * cursors. Incomplete digests are rebuilt from all notifications following
+   * the cursor. Rebuilt notifications, whose updates might still be pending,
+   * are not added again afterwards.
+   *
+   * @param subscriptions The aggregated subscriptions.
+   * @param digests The current digests by subscription id. Subscriptions
+   * without digest are verified against an empty digest.
+   * @param now The current time.
+   *
+   * @return The provided or rebuilt digest of each subscription by
+   * subscription id.
+   */
+  public Map<Long, NotificationDigest> verify(Collection<Subscription> subscriptions, Map<Long, NotificationDigest> digests, Instant now){
+    Instant settledBefore = now.minusMillis(commitLagMillis);
+    //each round contains one cursor per receipient
+    List<Map<String, Long>> rounds = new ArrayList<>();
+    Map<Long, Integer> roundBySubscription = new HashMap<>();
+    for(Subscription subscription : subscriptions){
+      Long cursor = getCursor(subscription);
+      int round = 0;
+      while(round < rounds.size() && rounds.get(round).containsKey(subscription.getReceipientId()) && !cursor.equals(rounds.get(round).get(subscription.getReceipientId()))){
+        round++;
+      }
+      if(round == rounds.size()){
+        rounds.add(new HashMap<>());
+      }
+      rounds.get(round).put(subscription.getReceipientId(), cursor);
+      roundBySubscription.put(subscription.getId(), round);
+    }
+    List<Map<String, Long>> settledCounts = new ArrayList<>(rounds.size());
+    for(Map<String, Long> cursors : rounds){
+      settledCounts.add(notificationDao.countAfterCursors(cursors, settledBefore));
+    }
+
+    Map<Long, NotificationDigest> result = new HashMap<>();
+    for(Subscription subscription : subscriptions){
+      NotificationDigest digest = digests.getOrDefault(subscription.getId(), new NotificationDigest());
+      long settled = settledCounts.get(roundBySubscription.get(subscription.getId())).getOrDefault(subscription.getReceipientId(), 0l);
+      if(settled > digest.getTotal()){
+        LOGGER.warn("Digest of subscription {} contains {} of at least {} notification(s). Rebuilding digest.", subscription.getId(), digest.getTotal(), settled);
+        digest = rebuild(subscription, digest, settledBefore);
+      }
+      result.put(subscription.getId(), digest);
+    }
+    return result;
+  }
+
+  /**
+   * Rebuild the digest of the provided subscription from all notifications
+   * following the subscription's cursor.
+   *
+   * @return The rebuilt digest or the provided digest if the rebuilt digest
+   * could not be committed.
+   */
+  private NotificationDigest rebuild(Subscription subscription, NotificationDigest digest, Instant settledBefore){
+    NotificationDigest[] rebuilt = new NotificationDigest[1];
+    boolean updated = update(Collections.singleton(subscription.getId()), (aggregate, current) -> {
+      rebuilt[0] = new NotificationDigest();
+      Set<Long> rebuiltIds = new HashSet<>();
+      Long afterId = getCursor(subscription);
+      List<Notification> page;
+      do{
+        page = notificationDao.findByReceipientIdAndIdGreaterThanOrderByIdAsc(subscription.getReceipientId(), afterId, PageRequest.of(0, REBUILD_PAGE_SIZE));
+        for(Notification notification : page){
+          rebuilt[0].add(notification, newestCount);
+          if(notification.getStoredAt() == null || !notification.getStoredAt().isBefore(settledBefore)){
+            rebuiltIds.add(notification.getId());
+          }
+          afterId = notification.getId();
+        }
+      } while(page.size() == REBUILD_PAGE_SIZE);
+      aggregate.setRebuiltNotificationIdsFromSet(rebuiltIds);
+      return rebuilt[0];
+    });
+    return (updated) ? rebuilt[0] : digest;
+  }
+
+  private static Long getCursor(Subscription subscription){
+    return (subscription.getLastNotificationId() != null) ? subscription.getLastNotificationId() : 0l;
+  }
+
+  /**
+   * Remove the provided, delivered digest from the digest of the provided
+   * subscription. Notifications added in the meantime remain.
+   *
+   * @param subscriptionId The id of the subscription.
+   * @param delivered The delivered digest.
+   */
+  public void consume(Long subscriptionId, NotificationDigest delivered){
+    update(Collections.singleton(subscriptionId), (aggregate, digest) -> {
+      digest.subtract(delivered);
+      return digest;
+    });
+  }
+
+  /**
+   * Remove the digest of the provided subscription, e.g. if the subscription
+   * was deleted.
+   *
+   * @param subscriptionId The id of the subscription.
+   */
+  public void remove(Long subscriptionId){
+    transactionTemplate.execute((status) -> {
+      aggregateDao.deleteAll(aggregateDao.findBySubscriptionIdIn(Collections.singleton(subscriptionId)));
+      return null;
+    });
+  }
+
+  /**
+   * Apply the provided change to the digests of all provided subscriptions
+   * within one transaction. The change obtains the aggregate and its current
+   * digest and returns the changed digest. Empty digests are deleted. If the
+   * digests were changed concurrently, the change is applied again to the
+   * current digests.
+   *
+   * @return TRUE if the change has been committed.
+   */
+  private boolean update(Collection<Long> subscriptionIds, BiFunction<DigestAggregate, NotificationDigest, NotificationDigest> change){
+    for(int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++){
+      try{
+        transactionTemplate.execute((status) -> {
+          Map<Long, DigestAggregate> aggregates = new HashMap<>();
+          aggregateDao.findBySubscriptionIdIn(subscriptionIds).forEach((aggregate) -> aggregates.put(aggregate.getSubscriptionId(), aggregate));
+          List<DigestAggregate> changed = new ArrayList<>();
+          List<DigestAggregate> empty = new ArrayList<>();
+          for(Long subscriptionId : subscriptionIds){
+            DigestAggregate aggregate = aggregates.get(subscriptionId);
+            NotificationDigest digest = read(aggregate);
+            if(aggregate == null){
+              aggregate = new DigestAggregate();
+              aggregate.setSubscriptionId(subscriptionId);
+            }
+            digest = change.apply(aggregate, digest);
+            if(digest.isEmpty() && aggregate.getRebuiltNotificationIds() == null){
+              if(aggregate.getId() != null){
+                empty.add(aggregate);
+              }
+              continue;
+            }
+            aggregate.setDigest(write(digest));
+            changed.add(aggregate);
+          }
+          aggregateDao.saveAll(changed);
+          aggregateDao.deleteAll(empty);
+          return null;
+        });
+        return true;
+      } catch(OptimisticLockingFailureException | DataIntegrityViolationException ex){
+        if(attempt == MAX_ATTEMPTS){
+          LOGGER.error("Failed to update digests of subscription(s) " + subscriptionIds + " after " + MAX_ATTEMPTS + " attempts.", ex);
+        } else{
+          LOGGER.debug("Digests of subscription(s) {} were changed concurrently. Retrying update.", subscriptionIds);
+        }
+      }
+    }
+    return false;
+  }
+
+  private static NotificationDigest read(DigestAggregate aggregate){
+    if(aggregate != null && aggregate.getDigest() != null){
+      try{
+        return DIGEST_READER.readValue(aggregate.getDigest());
+      } catch(IOException ex){
+        LOGGER.warn("Failed to read digest of subscription " + aggregate.getSubscriptionId() + ". Starting with an empty digest.", ex);
+      }
+    }
+    return new NotificationDigest();
+  }
+
+  /**
+   * Serialize the provided digest. If the digest exceeds the max. length, the
+   * oldest of the newest notifications are removed until it fits.
+   */
+  private static String write(NotificationDigest digest){
+    try{
+      String value = DIGEST_WRITER.writeValueAsString(digest);
+      while(value.length() > DigestAggregate.MAX_DIGEST_LENGTH && !digest.getNewest().isEmpty()){
+        digest.getNewest().remove(digest.getNewest().size() - 1);
+        value = DIGEST_WRITER.writeValueAsString(digest);
+      }
+      return value;
+    } catch(JsonProcessingException ex){
+      throw new IllegalStateException("Failed to serialize digest.", ex);
+    }
+  }
+}
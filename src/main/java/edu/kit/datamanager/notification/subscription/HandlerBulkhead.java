@@ -0,0 +1,402 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Isolation of a single subscription handler. Calls to the handler are
+ * executed by a separate thread pool of 'repo.dispatch.handlerThreads'
+ * threads. The number of concurrent calls is limited to the same number, also
+ * for asynchronous handlers, which do not occupy a thread while waiting. Each
+ * call has to finish within 'repo.dispatch.handlerTimeoutMillis'
+ * milliseconds. A timeout of 0 or less disables the timeout. On timeout, the
+ * threads of the call are interrupted, but the call only gives back its
+ * permit as soon as all of its tasks have actually ended. The task queue of
+ * the thread pool is bounded, further tasks are rejected. If calls are
+ * dispatched asynchronously, e.g. if 'repo.dispatch.maxInFlight' is greater
+ * than 0, calls are rejected immediately if no permit is available instead
+ * of blocking the dispatching thread.
+ *
+ * In addition, a circuit breaker stops calling the handler after
+ * 'repo.dispatch.breakerFailureThreshold' consecutive failures. While the
+ * circuit is open, calls are rejected immediately. After the open interval
+ * has elapsed, a single trial call is permitted. If it succeeds, the circuit
+ * is closed again, otherwise it is opened again with twice the previous open
+ * interval, up to 'repo.dispatch.breakerMaxOpenMillis'.
+ *
+ * @author jejkal
+ */
+public class HandlerBulkhead{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HandlerBulkhead.class);
+  /**
+   * Max. number of queued tasks per thread of the handler's thread pool.
+   */
+  static final int MAX_QUEUED_TASKS_PER_THREAD = 16;
+
+  public enum RESULT{
+    SUCCEEDED,
+    FAILED,
+    REJECTED;
+  }
+
+  private enum STATE{
+    CLOSED,
+    OPEN,
+    HALF_OPEN;
+  }
+
+  private final ISubscriptionHandler handler;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService timeoutScheduler;
+  private final Semaphore permits;
+  private final long timeoutMillis;
+  private final boolean failFast;
+  private final int failureThreshold;
+  private final long initialOpenMillis;
+  private final long maxOpenMillis;
+
+  private STATE state = STATE.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openMillis;
+  private Instant retryAt = Instant.EPOCH;
+
+  public HandlerBulkhead(ISubscriptionHandler handler, ApplicationProperties applicationProperties){
+    this.handler = handler;
+    int threads = Math.max(1, applicationProperties.getDispatchHandlerThreads());
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * MAX_QUEUED_TASKS_PER_THREAD), new CustomizableThreadFactory(handler.getSubscriptionName() + "-handler-"));
+    this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory(handler.getSubscriptionName() + "-timeout-"));
+    this.permits = new Semaphore(threads);
+    this.timeoutMillis = applicationProperties.getDispatchHandlerTimeoutMillis();
+    this.failFast = applicationProperties.getDispatchMaxInFlight() > 0;
+    this.failureThreshold = Math.max(1, applicationProperties.getDispatchBreakerFailureThreshold());
+    this.initialOpenMillis = Math.max(0, applicationProperties.getDispatchBreakerOpenMillis());
+    this.maxOpenMillis = Math.max(initialOpenMillis, applicationProperties.getDispatchBreakerMaxOpenMillis());
+    this.openMillis = initialOpenMillis;
+  }
+
+  /**
+   * Check if the handler may currently be called, which is not the case if
+   * the circuit is open or if a trial call is already running.
+   *
+   * @return TRUE if a call is permitted.
+   */
+  public synchronized boolean isCallPermitted(){
+    switch(state){
+      case OPEN:
+        return !Instant.now().isBefore(retryAt);
+      case HALF_OPEN:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Get the earliest time at which calls will be permitted again.
+   *
+   * @return The time at which the open circuit allows a trial call.
+   */
+  public synchronized Instant getRetryAt(){
+    return retryAt;
+  }
+
+  /**
+   * Call the handler using the provided arguments and wait for the result.
+   *
+   * @param notifications The notifications to handle.
+   * @param properties The subscription properties.
+   *
+   * @return SUCCEEDED if the handler returned TRUE in time, FAILED if the
+   * handler returned FALSE, failed or timed out, REJECTED if the circuit is
+   * open or if no thread became available in time.
+   */
+  public RESULT call(Notification[] notifications, Map<String, String> properties){
+    return await(execute((callExecutor) -> CompletableFuture.supplyAsync(() -> handler.handleNotifications(notifications, properties), callExecutor)));
+  }
+
+  /**
+   * Call the handler using the provided chunk of notifications without
+   * waiting for the result. The handler is called via
+   * {@link ISubscriptionHandler#handleNotificationsAsync(edu.kit.datamanager.notification.domain.Notification[], edu.kit.datamanager.notification.subscription.NotificationChunkCursor, java.util.Map, java.util.concurrent.Executor)}.
+   *
+   * @param chunk The notifications to handle.
+   * @param cursor The position of the chunk.
+   * @param properties The subscription properties.
+   *
+   * @return A future completed with SUCCEEDED if the handler returned TRUE in
+   * time, FAILED if the handler returned FALSE, failed or timed out, REJECTED
+   * if the circuit is open or if no thread became available in time. The
+   * future never completes exceptionally.
+   */
+  public CompletableFuture<RESULT> callAsync(Notification[] chunk, NotificationChunkCursor cursor, Map<String, String> properties){
+    return execute((callExecutor) -> handler.handleNotificationsAsync(chunk, cursor, properties, callExecutor));
+  }
+
+  /**
+   * Call the handler using the provided digest without waiting for the
+   * result.
+   *
+   * @param digest The digest to handle.
+   * @param properties The subscription properties.
+   *
+   * @return A future completed with the result of the call, which never
+   * completes exceptionally.
+   */
+  public CompletableFuture<RESULT> callAsync(NotificationDigest digest, Map<String, String> properties){
+    return execute((callExecutor) -> CompletableFuture.supplyAsync(() -> handler.handleDigest(digest, properties), callExecutor));
+  }
+
+  /**
+   * Wait for the result of the provided call.
+   *
+   * @param call The call.
+   *
+   * @return The result or REJECTED if the current thread was interrupted.
+   */
+  public static RESULT await(CompletableFuture<RESULT> call){
+    try{
+      return call.get();
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      return RESULT.REJECTED;
+    } catch(ExecutionException ex){
+      return RESULT.FAILED;
+    }
+  }
+
+  /**
+   * Start the provided call. The call obtains an executor, which runs its
+   * tasks using the handler's thread pool. On timeout, these tasks are
+   * interrupted. The permit of the call is released as soon as the handler's
+   * result is completed, e.g. also after a timeout, and all tasks of the call
+   * have ended.
+   */
+  private CompletableFuture<RESULT> execute(Function<Executor, CompletionStage<Boolean>> call){
+    if(!acquireCall()){
+      return CompletableFuture.completedFuture(RESULT.REJECTED);
+    }
+    boolean permitted;
+    try{
+      if(failFast){
+        permitted = permits.tryAcquire();
+      } else if(timeoutMillis > 0){
+        permitted = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+      } else{
+        permits.acquire();
+        permitted = true;
+      }
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      releaseCall();
+      return CompletableFuture.completedFuture(RESULT.REJECTED);
+    }
+    if(!permitted){
+      if(failFast){
+        LOGGER.debug("No thread of handler {} available. Rejecting call.", handler.getSubscriptionName());
+      } else{
+        LOGGER.warn("No thread of handler {} available within {} ms. Rejecting call.", handler.getSubscriptionName(), timeoutMillis);
+      }
+      releaseCall();
+      return CompletableFuture.completedFuture(RESULT.REJECTED);
+    }
+    CallTasks tasks = new CallTasks();
+    CompletableFuture<Boolean> handlerResult;
+    try{
+      CompletionStage<Boolean> stage = call.apply(tasks);
+      handlerResult = (stage != null) ? stage.toCompletableFuture() : CompletableFuture.completedFuture(Boolean.FALSE);
+    } catch(RejectedExecutionException ex){
+      tasks.cancel();
+      tasks.taskEnded();
+      releaseCall();
+      return CompletableFuture.completedFuture(RESULT.REJECTED);
+    } catch(RuntimeException ex){
+      handlerResult = new CompletableFuture<>();
+      handlerResult.completeExceptionally(ex);
+    }
+    CompletableFuture<RESULT> result = new CompletableFuture<>();
+    AtomicBoolean completed = new AtomicBoolean();
+    ScheduledFuture<?> timeout = null;
+    if(timeoutMillis > 0 && !handlerResult.isDone()){
+      CompletableFuture<Boolean> timedOut = handlerResult;
+      timeout = timeoutScheduler.schedule(() -> {
+        if(completed.compareAndSet(false, true)){
+          LOGGER.error("Handler {} did not return within {} ms.", handler.getSubscriptionName(), timeoutMillis);
+          tasks.cancel();
+          timedOut.cancel(true);
+          recordResult(false);
+          result.complete(RESULT.FAILED);
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    ScheduledFuture<?> scheduledTimeout = timeout;
+    handlerResult.whenComplete((success, error) -> {
+      tasks.taskEnded();
+      if(scheduledTimeout != null){
+        scheduledTimeout.cancel(false);
+      }
+      if(completed.compareAndSet(false, true)){
+        if(error != null){
+          LOGGER.error("Handler " + handler.getSubscriptionName() + " failed.", (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error);
+        }
+        boolean succeeded = error == null && Boolean.TRUE.equals(success);
+        recordResult(succeeded);
+        result.complete((succeeded) ? RESULT.SUCCEEDED : RESULT.FAILED);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Executor of the tasks of one call, which runs the tasks using the
+   * handler's thread pool and keeps track of the tasks still running. The
+   * handler's result counts as a task as well. The permit of the call is
+   * released as soon as all tasks have ended.
+   */
+  private final class CallTasks implements Executor{
+
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final Set<Thread> threads = new HashSet<>();
+    private boolean cancelled = false;
+
+    @Override
+    public void execute(Runnable task){
+      pending.incrementAndGet();
+      try{
+        executor.execute(() -> {
+          if(start()){
+            try{
+              task.run();
+            } finally{
+              end();
+            }
+          }
+          taskEnded();
+        });
+      } catch(RejectedExecutionException ex){
+        taskEnded();
+        throw ex;
+      }
+    }
+
+    /**
+     * Skip all tasks not started yet and interrupt all running tasks.
+     */
+    synchronized void cancel(){
+      cancelled = true;
+      threads.forEach(Thread::interrupt);
+    }
+
+    private synchronized boolean start(){
+      if(cancelled){
+        return false;
+      }
+      threads.add(Thread.currentThread());
+      return true;
+    }
+
+    private synchronized void end(){
+      threads.remove(Thread.currentThread());
+      //do not pass the interrupt of a cancelled task on to the next task
+      Thread.interrupted();
+    }
+
+    void taskEnded(){
+      if(pending.decrementAndGet() == 0){
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Shutdown the handler's thread pool.
+   */
+  public void shutdown(){
+    executor.shutdownNow();
+    timeoutScheduler.shutdownNow();
+  }
+
+  private synchronized boolean acquireCall(){
+    if(state == STATE.HALF_OPEN || (state == STATE.OPEN && Instant.now().isBefore(retryAt))){
+      return false;
+    }
+    if(state == STATE.OPEN){
+      LOGGER.info("Open interval of handler {} elapsed. Permitting trial call.", handler.getSubscriptionName());
+      state = STATE.HALF_OPEN;
+    }
+    return true;
+  }
+
+  private synchronized void releaseCall(){
+    //the call did not take place, so a trial call is permitted again
+    if(state == STATE.HALF_OPEN){
+      state = STATE.OPEN;
+    }
+  }
+
+  private synchronized void recordResult(boolean success){
+    if(success){
+      if(state != STATE.CLOSED){
+        LOGGER.info("Trial call of handler {} succeeded. Closing circuit.", handler.getSubscriptionName());
+      }
+      state = STATE.CLOSED;
+      consecutiveFailures = 0;
+      openMillis = initialOpenMillis;
+      return;
+    }
+    consecutiveFailures++;
+    if(state == STATE.HALF_OPEN){
+      //failed trial, back off
+      openMillis = Math.min(maxOpenMillis, openMillis * 2);
+      open();
+    } else if(state == STATE.CLOSED && consecutiveFailures >= failureThreshold){
+      open();
+    }
+  }
+
+  private void open(){
+    state = STATE.OPEN;
+    retryAt = Instant.now().plusMillis(openMillis);
+    LOGGER.warn("Handler {} failed {} time(s) in a row. Opening circuit until {}.", handler.getSubscriptionName(), consecutiveFailures, retryAt);
+  }
+}
@@ -17,8 +17,12 @@ package edu.kit.datamanager.notification.subscription;
 
 import edu.kit.datamanager.notification.domain.HandlerProperties;
 import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
 import edu.kit.datamanager.notification.domain.Subscription;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 /**
  *
@@ -75,4 +79,86 @@ public interface ISubscriptionHandler{
    */
   boolean handleNotifications(Notification[] notifications, Map<String, String> properties);
 
+  /**
+   * Handle one chunk of the notifications pending for a subscription. Large
+   * numbers of pending notifications are passed in consecutive chunks of at
+   * most 'repo.dispatch.chunkSize' notifications ordered by id, so that they
+   * never have to be held in memory at once. The provided cursor describes
+   * the position of the chunk, e.g. whether it is the first or the last one.
+   * If FALSE is returned, the delivery is stopped and the chunk is retried
+   * later, whereas previous chunks remain delivered. By default, each chunk
+   * is handled via
+   * {@link #handleNotifications(edu.kit.datamanager.notification.domain.Notification[], java.util.Map)}.
+   *
+   * @param chunk The notifications of the current chunk.
+   * @param cursor The position of the chunk.
+   * @param properties The user-specific properties holding all required
+   * subscription property values.
+   *
+   * @return TRUE if the chunk was handled according to the subscription's
+   * rules.
+   */
+  default boolean handleNotificationChunk(Notification[] chunk, NotificationChunkCursor cursor, Map<String, String> properties){
+    return handleNotifications(chunk, properties);
+  }
+
+  /**
+   * Handle one chunk of the notifications pending for a subscription
+   * asynchronously. Handlers delivering notifications via network, e.g. via
+   * non-blocking clients, should override this method and return a stage
+   * completed as soon as the delivery has finished, so that no thread is
+   * occupied while waiting. Otherwise, the same rules as for
+   * {@link #handleNotificationChunk(edu.kit.datamanager.notification.domain.Notification[], edu.kit.datamanager.notification.subscription.NotificationChunkCursor, java.util.Map)}
+   * apply. By default, handleNotificationChunk is called using the provided
+   * executor.
+   *
+   * @param chunk The notifications of the current chunk.
+   * @param cursor The position of the chunk.
+   * @param properties The user-specific properties holding all required
+   * subscription property values.
+   * @param executor The executor for blocking work, which runs tasks using
+   * the handler's thread pool. Tasks still running after the call has timed
+   * out are interrupted.
+   *
+   * @return A stage completed with TRUE if the chunk was handled according to
+   * the subscription's rules.
+   */
+  default CompletionStage<Boolean> handleNotificationsAsync(Notification[] chunk, NotificationChunkCursor cursor, Map<String, String> properties, Executor executor){
+    return CompletableFuture.supplyAsync(() -> handleNotificationChunk(chunk, cursor, properties), executor);
+  }
+
+  /**
+   * Check if the handler only needs a summary of the pending notifications
+   * for the subscription with the provided properties. If so, HOURLY and
+   * DAILY subscriptions are delivered via
+   * {@link #handleDigest(edu.kit.datamanager.notification.domain.NotificationDigest, java.util.Map)}
+   * using a digest maintained while notifications are persisted instead of
+   * loading all pending notifications. By default, all notifications are
+   * needed.
+   *
+   * @param properties The user-specific subscription properties.
+   *
+   * @return TRUE if a digest is sufficient.
+   */
+  default boolean isAggregateOnly(Map<String, String> properties){
+    return false;
+  }
+
+  /**
+   * Handle a digest of pending notifications, e.g. send a summary to the
+   * user. By default, the newest notifications contained in the digest are
+   * handled via
+   * {@link #handleNotifications(edu.kit.datamanager.notification.domain.Notification[], java.util.Map)}.
+   *
+   * @param digest The digest of all pending notifications.
+   * @param properties The user-specific properties holding all required
+   * subscription property values.
+   *
+   * @return TRUE if the digest was handled according to the subscription's
+   * rules.
+   */
+  default boolean handleDigest(NotificationDigest digest, Map<String, String> properties){
+    return handleNotifications(digest.getNewest().toArray(new Notification[]{}), properties);
+  }
+
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+/**
+ * Position of a chunk within all notifications pending for a subscription,
+ * which are passed to
+ * {@link ISubscriptionHandler#handleNotificationChunk(edu.kit.datamanager.notification.domain.Notification[], edu.kit.datamanager.notification.subscription.NotificationChunkCursor, java.util.Map)}
+ * chunk by chunk.
+ *
+ * @author jejkal
+ */
+public final class NotificationChunkCursor{
+
+  private final int chunkIndex;
+  private final long offset;
+  private final boolean last;
+  private final Long lastNotificationId;
+
+  public NotificationChunkCursor(int chunkIndex, long offset, boolean last, Long lastNotificationId){
+    this.chunkIndex = chunkIndex;
+    this.offset = offset;
+    this.last = last;
+    this.lastNotificationId = lastNotificationId;
+  }
+
+  /**
+   * Get the index of the chunk starting at 0.
+   *
+   * @return The chunk index.
+   */
+  public int getChunkIndex(){
+    return chunkIndex;
+  }
+
+  /**
+   * Get the number of notifications passed in previous chunks.
+   *
+   * @return The number of previous notifications.
+   */
+  public long getOffset(){
+    return offset;
+  }
+
+  /**
+   * Check if this is the last chunk of the current delivery.
+   *
+   * @return TRUE if no further chunk follows.
+   */
+  public boolean isLast(){
+    return last;
+  }
+
+  /**
+   * Get the largest notification id contained in the chunk.
+   *
+   * @return The largest id.
+   */
+  public Long getLastNotificationId(){
+    return lastNotificationId;
+  }
+
+  /**
+   * Check if this is the first chunk of the current delivery.
+   *
+   * @return TRUE if no chunk was passed before.
+   */
+  public boolean isFirst(){
+    return chunkIndex == 0;
+  }
+}
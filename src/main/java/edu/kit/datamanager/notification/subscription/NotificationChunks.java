@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.dao.INotificationDao;
+import edu.kit.datamanager.notification.domain.Notification;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import org.springframework.data.domain.PageRequest;
+
+/**
+ * Iterator over the notifications pending for a subscription in chunks of a
+ * bounded size, ordered by notification id. Notifications are either taken
+ * from a list loaded before or are read from the database page by page using
+ * the notification id as keyset. In the latter case, at most two chunks are
+ * held in memory independent of the number of pending notifications.
+ *
+ * @author jejkal
+ */
+final class NotificationChunks implements Iterator<Notification[]>{
+
+  private final Supplier<List<Notification>> pages;
+  private List<Notification> next;
+  private int chunkIndex = 0;
+  private long offset = 0;
+  private NotificationChunkCursor cursor;
+
+  private NotificationChunks(Supplier<List<Notification>> pages){
+    this.pages = pages;
+    this.next = pages.get();
+  }
+
+  /**
+   * Create chunks of the provided notifications.
+   *
+   * @param notifications The notifications.
+   * @param chunkSize The max. number of notifications per chunk or 0 for a
+   * single chunk.
+   *
+   * @return The chunks.
+   */
+  static NotificationChunks of(List<Notification> notifications, int chunkSize){
+    int size = (chunkSize > 0) ? chunkSize : Math.max(1, notifications.size());
+    return new NotificationChunks(pagesOf(notifications, size));
+  }
+
+  private static Supplier<List<Notification>> pagesOf(List<Notification> notifications, int size){
+    List<Notification> sorted = new ArrayList<>(notifications);
+    sorted.sort(Comparator.comparing(Notification::getId, Comparator.nullsFirst(Comparator.naturalOrder())));
+    int[] position = {0};
+    return () -> {
+      List<Notification> page = sorted.subList(position[0], Math.min(position[0] + size, sorted.size()));
+      position[0] += page.size();
+      return page;
+    };
+  }
+
+  /**
+   * Create chunks of all notifications of the provided receipient with an id
+   * larger than the provided cursor, which are read from the database page by
+   * page. The provided notifications loaded before, e.g. notifications
+   * committed after the cursor has passed their id, are returned first.
+   *
+   * @param notificationDao The notification dao.
+   * @param receipientId The receipient id.
+   * @param loaded Notifications returned before the ones read from the
+   * database.
+   * @param afterId The id of the last delivered notification or null if all
+   * notifications should be read.
+   * @param upToId The largest id to read or null, if there is no upper bound.
+   * @param filter Filter applied to read notifications, e.g. to skip
+   * notifications delivered before.
+   * @param chunkSize The max. number of notifications per chunk.
+   *
+   * @return The chunks.
+   */
+  static NotificationChunks query(INotificationDao notificationDao, String receipientId, List<Notification> loaded, Long afterId, Long upToId, Predicate<Notification> filter, int chunkSize){
+    int size = Math.max(1, chunkSize);
+    Supplier<List<Notification>> loadedPages = pagesOf(loaded, size);
+    Long[] keyset = {afterId};
+    boolean[] exhausted = {false};
+    return new NotificationChunks(() -> {
+      List<Notification> page = loadedPages.get();
+      if(!page.isEmpty()){
+        return page;
+      }
+      page = new ArrayList<>();
+      //skip pages removed completely by the filter
+      while(page.isEmpty() && !exhausted[0]){
+        PageRequest pageRequest = PageRequest.of(0, size);
+        List<Notification> read = (keyset[0] == null) ? notificationDao.findByReceipientIdOrderByIdAsc(receipientId, pageRequest) : notificationDao.findByReceipientIdAndIdGreaterThanOrderByIdAsc(receipientId, keyset[0], pageRequest);
+        exhausted[0] = read.size() < size;
+        for(Notification notification : read){
+          if(upToId != null && notification.getId() > upToId){
+            exhausted[0] = true;
+            break;
+          }
+          keyset[0] = notification.getId();
+          if(filter.test(notification)){
+            page.add(notification);
+          }
+        }
+      }
+      return page;
+    });
+  }
+
+  @Override
+  public boolean hasNext(){
+    return !next.isEmpty();
+  }
+
+  @Override
+  public Notification[] next(){
+    if(!hasNext()){
+      throw new NoSuchElementException();
+    }
+    List<Notification> current = next;
+    //read ahead in order to know whether the current chunk is the last one
+    next = pages.get();
+    if(next == null){
+      next = Collections.emptyList();
+    }
+    Long lastNotificationId = null;
+    for(Notification notification : current){
+      if(notification.getId() != null && (lastNotificationId == null || notification.getId() > lastNotificationId)){
+        lastNotificationId = notification.getId();
+      }
+    }
+    cursor = new NotificationChunkCursor(chunkIndex++, offset, next.isEmpty(), lastNotificationId);
+    offset += current.size();
+    return current.toArray(new Notification[]{});
+  }
+
+  /**
+   * Get the cursor of the chunk returned last by {@link #next()}.
+   *
+   * @return The cursor or null if no chunk was returned yet.
+   */
+  NotificationChunkCursor getCursor(){
+    return cursor;
+  }
+}
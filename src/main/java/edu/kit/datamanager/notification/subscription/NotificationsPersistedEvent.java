@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.domain.Notification;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.springframework.context.ApplicationEventPublisher;
+
+/**
+ * Event published after notifications have been persisted. The event is used
+ * by the {@link SubscriptionProcessor} in order to dispatch notifications to
+ * LIVE subscriptions of the affected receipients immediately and by the
+ * {@link DigestAggregator} in order to update the digests of aggregated
+ * subscriptions.
+ *
+ * @author jejkal
+ */
+public class NotificationsPersistedEvent{
+
+  private final Set<String> receipientIds;
+  private final List<Notification> notifications;
+
+  public NotificationsPersistedEvent(Set<String> receipientIds){
+    this(receipientIds, Collections.emptyList());
+  }
+
+  public NotificationsPersistedEvent(Set<String> receipientIds, List<Notification> notifications){
+    this.receipientIds = Collections.unmodifiableSet(receipientIds);
+    this.notifications = Collections.unmodifiableList(notifications);
+  }
+
+  /**
+   * Get the ids of all receipients of the persisted notifications.
+   *
+   * @return A set of receipient ids.
+   */
+  public Set<String> getReceipientIds(){
+    return receipientIds;
+  }
+
+  /**
+   * Get the persisted notifications.
+   *
+   * @return A list of notifications, which might be empty if the event was
+   * published without the notifications themselves.
+   */
+  public List<Notification> getNotifications(){
+    return notifications;
+  }
+
+  /**
+   * Publish an event for all provided notifications, which have been
+   * persisted, e.g. which have an id. Nothing is published if no publisher is
+   * provided or if no notification has been persisted.
+   *
+   * @param publisher The event publisher, which might be null.
+   * @param notifications The notifications.
+   */
+  public static void publish(ApplicationEventPublisher publisher, Collection<Notification> notifications){
+    if(publisher == null){
+      return;
+    }
+    Set<String> receipientIds = new HashSet<>();
+    List<Notification> persisted = new ArrayList<>(notifications.size());
+    for(Notification notification : notifications){
+      if(notification.getId() != null && notification.getReceipientId() != null){
+        receipientIds.add(notification.getReceipientId());
+        persisted.add(notification);
+      }
+    }
+    if(!receipientIds.isEmpty()){
+      publisher.publishEvent(new NotificationsPersistedEvent(receipientIds, persisted));
+    }
+  }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.ISubscriptionDao;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory index of all enabled subscriptions by id and by receipient and
+ * subscription name. Each entry holds the subscription with its properties
+ * parsed and a reference to the handler responsible for the subscription.
+ *
+ * The index is loaded from the database in the first processing cycle and is
+ * kept up to date by the subscription controller. Changes made by other means,
+ * e.g. by other service instances, are detected every
+ * 'repo.index.refreshMillis' milliseconds by comparing the version of all
+ * subscriptions. Only new or changed subscriptions are loaded then.
+ *
+ * The dispatch state of indexed subscriptions, e.g. firedLast, firesNext and
+ * lastNotificationId, is maintained by the {@link SubscriptionProcessor}. The
+ * processor handles copies of the indexed subscriptions and applies their
+ * dispatch state via {@link #updateDispatchState(java.util.Collection)}, as
+ * indexed subscriptions might be replaced concurrently. If an indexed
+ * subscription is replaced, the more recent dispatch state is retained.
+ *
+ * @author jejkal
+ */
+@Component
+public class SubscriptionIndex{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionIndex.class);
+
+  private final ISubscriptionDao subscriptionDao;
+  private final Map<String, ISubscriptionHandler> handlers = new HashMap<>();
+  private final long refreshNanos;
+  private final Object refreshLock = new Object();
+  private Map<Long, Entry> entries = new HashMap<>();
+  private Map<String, Map<String, List<Entry>>> entriesByReceipient = new HashMap<>();
+  private Set<Long> changesWhileLoading = null;
+  private long lastRefresh = 0;
+  private boolean loaded = false;
+
+  @Autowired
+  public SubscriptionIndex(ISubscriptionDao subscriptionDao, ApplicationProperties applicationProperties, Optional<ISubscriptionHandler[]> subscriptionHandlers){
+    this.subscriptionDao = subscriptionDao;
+    this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(applicationProperties.getIndexRefreshMillis());
+    subscriptionHandlers.ifPresent((array) -> {
+      for(ISubscriptionHandler handler : array){
+        handlers.put(handler.getSubscriptionName(), handler);
+      }
+    });
+  }
+
+  /**
+   * An indexed subscription.
+   */
+  public static final class Entry{
+
+    private final Subscription subscription;
+    private final ISubscriptionHandler handler;
+
+    Entry(Subscription subscription, ISubscriptionHandler handler){
+      this.subscription = subscription;
+      this.handler = handler;
+    }
+
+    /**
+     * Get the subscription.
+     *
+     * @return The subscription.
+     */
+    public Subscription getSubscription(){
+      return subscription;
+    }
+
+    /**
+     * Get the handler responsible for the subscription.
+     *
+     * @return The handler or null if no handler with the subscription's name
+     * is available.
+     */
+    public ISubscriptionHandler getHandler(){
+      return handler;
+    }
+
+    /**
+     * Get the parsed subscription properties.
+     *
+     * @return An unmodifiable map of properties.
+     *
+     * @throws IOException if the subscription properties are invalid.
+     */
+    public Map<String, String> getProperties() throws IOException{
+      return subscription.getSubscriptionPropertiesAsMap();
+    }
+  }
+
+  /**
+   * Add the provided subscription to the index or replace the indexed
+   * subscription with the same id. Disabled subscriptions are removed.
+   *
+   * @param subscription The subscription.
+   */
+  public synchronized void put(Subscription subscription){
+    if(subscription.getId() == null){
+      return;
+    }
+    if(changesWhileLoading != null){
+      changesWhileLoading.add(subscription.getId());
+    }
+    index(subscription);
+  }
+
+  /**
+   * Remove the subscription with the provided id from the index.
+   *
+   * @param subscriptionId The id of the subscription.
+   */
+  public synchronized void remove(Long subscriptionId){
+    if(changesWhileLoading != null){
+      changesWhileLoading.add(subscriptionId);
+    }
+    unindex(subscriptionId);
+  }
+
+  /**
+   * Get the indexed entry with the provided id.
+   *
+   * @param subscriptionId The id of the subscription.
+   *
+   * @return The entry or null if no enabled subscription with the provided id
+   * is indexed.
+   */
+  public synchronized Entry get(Long subscriptionId){
+    return entries.get(subscriptionId);
+  }
+
+  /**
+   * Get copies of all indexed subscriptions with the provided ids. Ids of
+   * subscriptions not indexed, e.g. as they have been deleted or disabled, are
+   * ignored.
+   *
+   * @param subscriptionIds The ids of the subscriptions.
+   *
+   * @return A list of subscriptions in the order of the provided ids.
+   */
+  public synchronized List<Subscription> getSubscriptions(Collection<Long> subscriptionIds){
+    List<Subscription> result = new ArrayList<>(subscriptionIds.size());
+    for(Long subscriptionId : subscriptionIds){
+      Entry entry = entries.get(subscriptionId);
+      if(entry != null){
+        result.add(entry.subscription.copy());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Apply the dispatch state of the provided, handled subscriptions to the
+   * indexed subscriptions with the same ids, which might have been replaced
+   * while the subscriptions were handled. The dispatch state of an indexed
+   * subscription is only overwritten if the handled one is at least as
+   * recent. The version is taken if it was incremented by writing the state,
+   * so that writing the state is not regarded as change on refresh.
+   *
+   * @param subscriptions The handled subscriptions.
+   */
+  public synchronized void updateDispatchState(Collection<Subscription> subscriptions){
+    for(Subscription subscription : subscriptions){
+      Entry entry = entries.get(subscription.getId());
+      if(entry != null && entry.subscription != subscription){
+        applyDispatchState(subscription, entry.subscription);
+      }
+    }
+  }
+
+  /**
+   * Get all indexed entries of the provided receipient.
+   *
+   * @param receipientId The receipient id.
+   *
+   * @return A list of entries, which might be empty.
+   */
+  public synchronized List<Entry> findByReceipient(String receipientId){
+    List<Entry> result = new ArrayList<>();
+    entriesByReceipient.getOrDefault(receipientId, Collections.emptyMap()).values().forEach(result::addAll);
+    return result;
+  }
+
+  /**
+   * Get all indexed entries of the provided receipient and subscription name.
+   *
+   * @param receipientId The receipient id.
+   * @param subscriptionName The subscription name.
+   *
+   * @return A list of entries, which might be empty.
+   */
+  public synchronized List<Entry> find(String receipientId, String subscriptionName){
+    return new ArrayList<>(entriesByReceipient.getOrDefault(receipientId, Collections.emptyMap()).getOrDefault(subscriptionName, Collections.emptyList()));
+  }
+
+  /**
+   * Get the number of indexed subscriptions.
+   *
+   * @return The number of indexed subscriptions.
+   */
+  public synchronized int size(){
+    return entries.size();
+  }
+
+  /**
+   * Load the index if it was not loaded before or refresh it if the last
+   * refresh is more than 'repo.index.refreshMillis' milliseconds ago.
+   */
+  public void refreshIfRequired(){
+    synchronized(this){
+      if(loaded && System.nanoTime() - lastRefresh < refreshNanos){
+        return;
+      }
+    }
+    refresh();
+  }
+
+  /**
+   * Compare the versions of all enabled subscriptions in the database with the
+   * indexed versions. New and changed subscriptions are loaded, subscriptions
+   * deleted or disabled in the meantime are removed. Changes applied while
+   * refreshing are retained.
+   */
+  public void refresh(){
+    //refreshes are serialized, as the index might be refreshed by the processor and while aggregating digests
+    synchronized(refreshLock){
+      Map<Long, Long> indexedVersions = new HashMap<>();
+      synchronized(this){
+        changesWhileLoading = new HashSet<>();
+        entries.forEach((id, entry) -> indexedVersions.put(id, entry.subscription.getVersion()));
+      }
+      Set<Long> currentIds = new HashSet<>();
+      List<Subscription> changedSubscriptions = new ArrayList<>();
+      try{
+        List<Long> changedIds = new ArrayList<>();
+        for(ISubscriptionDao.SubscriptionVersion version : subscriptionDao.findAllVersions()){
+          currentIds.add(version.getId());
+          if(!indexedVersions.containsKey(version.getId()) || !Objects.equals(indexedVersions.get(version.getId()), version.getVersion())){
+            changedIds.add(version.getId());
+          }
+        }
+        for(int i = 0; i < changedIds.size(); i += SubscriptionProcessor.MAX_SUBSCRIPTIONS_PER_QUERY){
+          changedSubscriptions.addAll(subscriptionDao.findAllById(changedIds.subList(i, Math.min(i + SubscriptionProcessor.MAX_SUBSCRIPTIONS_PER_QUERY, changedIds.size()))));
+        }
+      } catch(RuntimeException ex){
+        synchronized(this){
+          changesWhileLoading = null;
+        }
+        throw ex;
+      }
+      synchronized(this){
+        for(Long subscriptionId : new ArrayList<>(entries.keySet())){
+          if(!currentIds.contains(subscriptionId) && !changesWhileLoading.contains(subscriptionId)){
+            unindex(subscriptionId);
+          }
+        }
+        for(Subscription subscription : changedSubscriptions){
+          if(!changesWhileLoading.contains(subscription.getId())){
+            index(subscription);
+          }
+        }
+        LOGGER.debug("Refreshed index of {} subscription(s). {} subscription(s) loaded.", entries.size(), changedSubscriptions.size());
+        changesWhileLoading = null;
+        lastRefresh = System.nanoTime();
+        loaded = true;
+      }
+    }
+  }
+
+  private void index(Subscription loaded){
+    Entry previous = unindex(loaded.getId());
+    if(Boolean.TRUE.equals(loaded.getDisabled())){
+      return;
+    }
+    //indexed subscriptions are detached from the persistence context, as their dispatch state is written via JDBC
+    Subscription subscription = loaded.copy();
+    if(previous != null){
+      retainDispatchState(previous.subscription, subscription);
+    }
+    try{
+      //parse properties once while indexing
+      subscription.getSubscriptionPropertiesAsMap();
+    } catch(IOException ex){
+      LOGGER.warn("Failed to parse properties of subscription " + subscription.getId() + ".", ex);
+    }
+    Entry entry = new Entry(subscription, handlers.get(subscription.getSubscriptionName()));
+    entries.put(subscription.getId(), entry);
+    entriesByReceipient.computeIfAbsent(subscription.getReceipientId(), (k) -> new HashMap<>()).computeIfAbsent(subscription.getSubscriptionName(), (k) -> new ArrayList<>()).add(entry);
+  }
+
+  private Entry unindex(Long subscriptionId){
+    Entry entry = entries.remove(subscriptionId);
+    if(entry != null){
+      Map<String, List<Entry>> byName = entriesByReceipient.get(entry.subscription.getReceipientId());
+      List<Entry> list = byName.get(entry.subscription.getSubscriptionName());
+      list.remove(entry);
+      if(list.isEmpty()){
+        byName.remove(entry.subscription.getSubscriptionName());
+      }
+      if(byName.isEmpty()){
+        entriesByReceipient.remove(entry.subscription.getReceipientId());
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Copy the dispatch state of the handled into the indexed subscription
+   * unless the indexed one has delivered more recently, e.g. if it was loaded
+   * with the dispatch state of another instance.
+   */
+  private static void applyDispatchState(Subscription handled, Subscription indexed){
+    if(handled.getVersion() != null && (indexed.getVersion() == null || handled.getVersion() > indexed.getVersion())){
+      indexed.setVersion(handled.getVersion());
+    }
+    if(handled.getLastNotificationId() != null && (indexed.getLastNotificationId() == null || handled.getLastNotificationId() >= indexed.getLastNotificationId())){
+      indexed.setLastNotificationId(handled.getLastNotificationId());
+      indexed.setRecentNotificationIds(handled.getRecentNotificationIds());
+    }
+    if(indexed.getFiredLast() == null || (handled.getFiredLast() != null && !handled.getFiredLast().isBefore(indexed.getFiredLast()))){
+      indexed.setFiredLast(handled.getFiredLast());
+      indexed.setFiresNext(handled.getFiresNext());
+    }
+  }
+
+  /**
+   * Copy the dispatch state of the previous into the new subscription if the
+   * previous one has delivered more recently, e.g. if the processor handled it
+   * while the new subscription was loaded. In this case, the previous one
+   * also has the version incremented by writing its dispatch state.
+   */
+  private static void retainDispatchState(Subscription previous, Subscription subscription){
+    if(previous.getVersion() != null && (subscription.getVersion() == null || previous.getVersion() > subscription.getVersion())){
+      subscription.setVersion(previous.getVersion());
+    }
+    if(previous.getLastNotificationId() != null && (subscription.getLastNotificationId() == null || previous.getLastNotificationId() > subscription.getLastNotificationId())){
+      subscription.setLastNotificationId(previous.getLastNotificationId());
+      subscription.setRecentNotificationIds(previous.getRecentNotificationIds());
+    }
+    if(previous.getFiredLast() != null && (subscription.getFiredLast() == null || previous.getFiredLast().isAfter(subscription.getFiredLast()))){
+      subscription.setFiredLast(previous.getFiredLast());
+      subscription.setFiresNext(previous.getFiresNext());
+      subscription.setRecentNotificationIds(previous.getRecentNotificationIds());
+    }
+  }
+}
@@ -15,28 +15,54 @@
  */
 package edu.kit.datamanager.notification.subscription;
 
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
 import edu.kit.datamanager.notification.dao.INotificationDao;
 import edu.kit.datamanager.notification.dao.ISubscriptionDao;
-import edu.kit.datamanager.notification.dao.spec.CurrentSubscriptionsSpec;
-import edu.kit.datamanager.notification.dao.spec.NotificationCreationDateSpec;
-import edu.kit.datamanager.notification.dao.spec.NotificationReceipientIdSpec;
+import edu.kit.datamanager.notification.dao.SubscriptionStateWriter;
+import edu.kit.datamanager.notification.dao.spec.NotificationReceipientCursorSpec;
+import edu.kit.datamanager.notification.domain.DeliveryLedgerEntry;
 import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
 import edu.kit.datamanager.notification.domain.Subscription;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
 
 /**
  *
@@ -46,23 +72,152 @@ import org.springframework.stereotype.Component;
 public class SubscriptionProcessor{
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionProcessor.class);
+  /**
+   * Max. number of subscriptions obtained from the database at once. The
+   * pending notifications of these subscriptions are also obtained at once.
+   */
+  static final int MAX_SUBSCRIPTIONS_PER_QUERY = 1000;
+  /**
+   * Index of the recent notification ids within the state of a subscription.
+   */
+  private static final int RECENT_IDS_STATE_INDEX = 3;
 
   private final ISubscriptionHandler[] subscriptionHandlers;
-  private final Map<String, ISubscriptionHandler> endorsedSubscriptions = new HashMap<>();
-  private boolean INITIALIZED = false;
+  private final Map<String, ISubscriptionHandler> endorsedSubscriptions = new ConcurrentHashMap<>();
+  private final Map<String, HandlerBulkhead> bulkheads = new ConcurrentHashMap<>();
+  private final ApplicationProperties applicationProperties;
+  private volatile boolean INITIALIZED = false;
   private boolean NO_SUBSCRIPTION_HANDLER_WARNING_EMITTED = false;
   private final INotificationDao notificationDao;
   private final ISubscriptionDao subscriptionDao;
+  private final SubscriptionScheduler scheduler;
+  private final SubscriptionIndex index;
+  private final DeliveryLedger ledger;
+  private final DigestAggregator aggregator;
+  private final SubscriptionStateWriter stateWriter;
+  private final ExecutorService dispatchExecutor;
+  private final Semaphore dispatchPermits;
+  private final boolean clusterEnabled;
+  private final String instanceId;
+  private final long leaseMillis;
+  private final int subscriptionsPerQuery;
+  private final int chunkSize;
+  private final int maxNotificationsPerQuery;
+  private final int maxInFlight;
+  private final long commitLagMillis;
+  private final ExecutorService liveExecutor;
+  private final AtomicBoolean liveDispatchRequested = new AtomicBoolean(false);
+  /**
+   * Lock held during each processing cycle, as cycles are started by the
+   * scheduler and by the live dispatcher.
+   */
+  private final Object processingLock = new Object();
 
   @Autowired
-  public SubscriptionProcessor(ISubscriptionDao subscriptionDao, INotificationDao notificationDao, Optional<ISubscriptionHandler[]> subscriptionHandlers){
+  public SubscriptionProcessor(ISubscriptionDao subscriptionDao, INotificationDao notificationDao, SubscriptionScheduler scheduler, SubscriptionIndex index, DeliveryLedger ledger, DigestAggregator aggregator, SubscriptionStateWriter stateWriter, ApplicationProperties applicationProperties, Optional<ISubscriptionHandler[]> subscriptionHandlers){
     this.notificationDao = notificationDao;
     this.subscriptionDao = subscriptionDao;
+    this.scheduler = scheduler;
+    this.index = index;
+    this.ledger = ledger;
+    this.aggregator = aggregator;
+    this.stateWriter = stateWriter;
+    this.applicationProperties = applicationProperties;
     if(subscriptionHandlers.isPresent()){
       this.subscriptionHandlers = subscriptionHandlers.get();
     } else{
       this.subscriptionHandlers = null;
     }
+    int dispatchThreads = Math.max(1, applicationProperties.getDispatchThreads());
+    this.dispatchExecutor = createDispatchExecutor(dispatchThreads, applicationProperties.isDispatchVirtualThreads());
+    this.dispatchPermits = new Semaphore(dispatchThreads);
+    this.clusterEnabled = applicationProperties.isClusterEnabled();
+    this.instanceId = (StringUtils.isNotEmpty(applicationProperties.getClusterInstanceId())) ? applicationProperties.getClusterInstanceId() : UUID.randomUUID().toString();
+    this.leaseMillis = applicationProperties.getClusterLeaseMillis();
+    if(clusterEnabled){
+      //smaller batches allow other instances to lease the remaining subscriptions in the meantime
+      this.subscriptionsPerQuery = Math.min(Math.max(1, applicationProperties.getClusterClaimSize()), MAX_SUBSCRIPTIONS_PER_QUERY);
+      LOGGER.info("Dispatching notifications in cluster mode as instance {}.", instanceId);
+    } else{
+      this.subscriptionsPerQuery = MAX_SUBSCRIPTIONS_PER_QUERY;
+    }
+    this.chunkSize = Math.max(0, applicationProperties.getDispatchChunkSize());
+    this.maxNotificationsPerQuery = Math.max(0, applicationProperties.getDispatchMaxNotificationsPerQuery());
+    this.maxInFlight = Math.max(0, applicationProperties.getDispatchMaxInFlight());
+    this.commitLagMillis = Math.max(0, applicationProperties.getDispatchCommitLagMillis());
+    this.liveExecutor = (applicationProperties.isScheduleLiveEvents()) ? Executors.newSingleThreadExecutor(new CustomizableThreadFactory("notification-live-dispatcher-")) : null;
+  }
+
+  /**
+   * Create the executor used for dispatching notifications in parallel. If
+   * virtual threads are requested and supported by the JVM (Java 21+), a
+   * virtual thread per task executor is used. Otherwise, a fixed thread pool
+   * is created if more than one thread is configured. For a single thread,
+   * no executor is created and notifications are dispatched by the calling
+   * thread.
+   */
+  private static ExecutorService createDispatchExecutor(int threads, boolean virtualThreads){
+    if(virtualThreads){
+      try{
+        //obtained via reflection in order to remain compatible to older Java versions
+        ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        LOGGER.info("Dispatching notifications using virtual threads with max. concurrency of {}.", threads);
+        return executor;
+      } catch(ReflectiveOperationException ex){
+        LOGGER.warn("Virtual threads are not supported by this JVM. Falling back to platform threads.");
+      }
+    }
+    if(threads <= 1){
+      return null;
+    }
+    LOGGER.info("Dispatching notifications using {} threads.", threads);
+    return Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("notification-dispatcher-"));
+  }
+
+  @PreDestroy
+  public void shutdown(){
+    if(dispatchExecutor != null){
+      dispatchExecutor.shutdown();
+    }
+    if(liveExecutor != null){
+      liveExecutor.shutdown();
+    }
+    bulkheads.values().forEach(HandlerBulkhead::shutdown);
+  }
+
+  /**
+   * Dispatch notifications to the LIVE subscriptions of all receipients of
+   * newly persisted notifications without waiting for the next processing
+   * cycle. If the event was published within a transaction, it is handled
+   * after commit. Dispatching takes place asynchronously, whereas multiple
+   * events received in the meantime are handled at once.
+   *
+   * @param event The event.
+   */
+  @TransactionalEventListener(fallbackExecution = true)
+  public void onNotificationsPersisted(NotificationsPersistedEvent event){
+    if(liveExecutor == null || subscriptionHandlers == null){
+      return;
+    }
+    if(!scheduler.triggerLive(event.getReceipientIds())){
+      LOGGER.trace("No LIVE subscriptions for receipient(s) {} found.", event.getReceipientIds());
+      return;
+    }
+    if(liveDispatchRequested.compareAndSet(false, true)){
+      try{
+        liveExecutor.execute(() -> {
+          liveDispatchRequested.set(false);
+          try{
+            receiveNextMessage();
+          } catch(RuntimeException ex){
+            LOGGER.error("Failed to dispatch notifications to LIVE subscriptions.", ex);
+          }
+        });
+      } catch(RejectedExecutionException ex){
+        LOGGER.debug("Live dispatcher is shut down. Leaving LIVE subscriptions to the next processing cycle.");
+        liveDispatchRequested.set(false);
+      }
+    }
   }
 
   @Scheduled(fixedRateString = "${repo.schedule.rate}")
@@ -76,26 +231,143 @@ public class SubscriptionProcessor{
     }
 
     if(!INITIALIZED){
-      //if not initialized, check all handlers for endorsement
-      //this is done before handling the first message as at this point, the repository is running in any case, also if the receiver is part of the repository
-      //this allows the handler to check for the repository
-      for(ISubscriptionHandler handler : subscriptionHandlers){
-        LOGGER.trace("Trying to configure handler {}.", handler.getSubscriptionName());
-        if(handler.configure()){
-          LOGGER.trace("Adding handler {} to list of endorsed handlers.", handler.getSubscriptionName());
-          endorsedSubscriptions.put(handler.getSubscriptionName(), handler);
-        } else{
-          LOGGER.warn("Dropping handler {} due to misconfiguration.", handler.getSubscriptionName());
+      initialize();
+    }
+
+    //subscriptions scheduled again while being handled, e.g. by a schedule reload or an update, are only handled after the current cycle
+    synchronized(processingLock){
+      handleDueSubscriptions();
+    }
+  }
+
+  private void handleDueSubscriptions(){
+    scheduler.synchronizeIfRequired();
+    index.refreshIfRequired();
+    List<Long> dueSubscriptionIds = scheduler.pollDue(Instant.now().truncatedTo( ChronoUnit.MILLIS ));
+    if(dueSubscriptionIds.isEmpty()){
+      LOGGER.trace("No subscriptions due.");
+      return;
+    }
+
+    LOGGER.trace("Handling {} due subscription(s).", dueSubscriptionIds.size());
+    int next = 0;
+    try{
+      for(; next < dueSubscriptionIds.size(); next += subscriptionsPerQuery){
+        List<Long> subscriptionIds = dueSubscriptionIds.subList(next, Math.min(next + subscriptionsPerQuery, dueSubscriptionIds.size()));
+        try{
+          handleSubscriptions(subscriptionIds);
+        } catch(RuntimeException ex){
+          //due subscriptions are no longer scheduled, so all of them not scheduled again while handling are retried in the next cycle
+          LOGGER.error("Failed to handle " + subscriptionIds.size() + " subscription(s). Retrying them in the next cycle.", ex);
+          scheduler.scheduleIfAbsent(subscriptionIds, Instant.now());
         }
       }
-      INITIALIZED = true;
+    } finally{
+      if(next < dueSubscriptionIds.size()){
+        scheduler.scheduleIfAbsent(dueSubscriptionIds.subList(next, dueSubscriptionIds.size()), Instant.now());
+      }
     }
+    LOGGER.trace("Subscriptions handled.");
+  }
 
-    List<Subscription> subscriptions = subscriptionDao.findAll(CurrentSubscriptionsSpec.toSpecification(Arrays.asList(endorsedSubscriptions.keySet().toArray(new String[]{}))));
+  private synchronized void initialize(){
+    if(INITIALIZED){
+      return;
+    }
+    //if not initialized, check all handlers for endorsement
+    //this is done before handling the first message as at this point, the repository is running in any case, also if the receiver is part of the repository
+    //this allows the handler to check for the repository
+    for(ISubscriptionHandler handler : subscriptionHandlers){
+      LOGGER.trace("Trying to configure handler {}.", handler.getSubscriptionName());
+      if(handler.configure()){
+        LOGGER.trace("Adding handler {} to list of endorsed handlers.", handler.getSubscriptionName());
+        endorsedSubscriptions.put(handler.getSubscriptionName(), handler);
+        bulkheads.put(handler.getSubscriptionName(), new HandlerBulkhead(handler, applicationProperties));
+      } else{
+        LOGGER.warn("Dropping handler {} due to misconfiguration.", handler.getSubscriptionName());
+      }
+    }
+    INITIALIZED = true;
+  }
 
-    LOGGER.trace("Obtaining all subscriptions.");
+  private void handleSubscriptions(List<Long> subscriptionIds){
+    Instant now = Instant.now().truncatedTo( ChronoUnit.MILLIS );
+    if(clusterEnabled){
+      int leased = subscriptionDao.acquireLeases(subscriptionIds, instanceId, now, now.plusMillis(leaseMillis));
+      LOGGER.trace("Leased {} of {} subscription(s).", leased, subscriptionIds.size());
+    }
+    try{
+      List<Subscription> subscriptions;
+      if(clusterEnabled){
+        //leases and dispatch state might have been changed by other instances
+        LOGGER.trace("Obtaining {} subscription(s).", subscriptionIds.size());
+        subscriptions = subscriptionDao.findAllById(subscriptionIds);
+        subscriptions.forEach((subscription) -> index.put(subscription.copy()));
+        subscriptions = selectLeasedSubscriptions(subscriptions, now);
+      } else{
+        subscriptions = getIndexedSubscriptions(subscriptionIds);
+      }
+      handleSubscriptions(subscriptions, now);
+    } finally{
+      if(clusterEnabled){
+        subscriptionDao.releaseLeases(subscriptionIds, instanceId);
+      }
+    }
+  }
+
+  /**
+   * Obtain the subscriptions with the provided ids from the index.
+   * Subscriptions not indexed yet, e.g. created by other instances since the
+   * last refresh, are loaded from the database and added to the index.
+   */
+  private List<Subscription> getIndexedSubscriptions(List<Long> subscriptionIds){
+    List<Subscription> subscriptions = index.getSubscriptions(subscriptionIds);
+    if(subscriptions.size() < subscriptionIds.size()){
+      Set<Long> missingIds = new HashSet<>(subscriptionIds);
+      subscriptions.forEach((subscription) -> missingIds.remove(subscription.getId()));
+      LOGGER.trace("Obtaining {} subscription(s) not indexed yet.", missingIds.size());
+      for(Subscription subscription : subscriptionDao.findAllById(missingIds)){
+        index.put(subscription);
+        if(!Boolean.TRUE.equals(subscription.getDisabled())){
+          subscriptions.add(subscription);
+        }
+      }
+    }
+    return subscriptions;
+  }
+
+  /**
+   * Select all subscriptions leased by this instance. All other subscriptions
+   * are either handled by another instance at the moment or were handled
+   * before and are scheduled again accordingly.
+   */
+  private List<Subscription> selectLeasedSubscriptions(List<Subscription> subscriptions, Instant now){
+    List<Subscription> leasedSubscriptions = new ArrayList<>(subscriptions.size());
+    for(Subscription subscription : subscriptions){
+      if(instanceId.equals(subscription.getLeaseOwner())){
+        leasedSubscriptions.add(subscription);
+      } else if(Boolean.TRUE.equals(subscription.getDisabled())){
+        scheduler.unschedule(subscription.getId());
+      } else if(subscription.getFiresNext() != null && subscription.getFiresNext().isAfter(now)){
+        LOGGER.trace("Subscription {} was handled by another instance before. Scheduling for {}.", subscription.getId(), subscription.getFiresNext());
+        scheduler.schedule(subscription.getId(), subscription.getFiresNext());
+      } else{
+        //check again as soon as the lease has expired, e.g. if the owner failed
+        LOGGER.trace("Subscription {} is leased by instance {} until {}.", subscription.getId(), subscription.getLeaseOwner(), subscription.getLeaseExpiresAt());
+        scheduler.schedule(subscription.getId(), (subscription.getLeaseExpiresAt() != null) ? subscription.getLeaseExpiresAt() : now.plusMillis(leaseMillis));
+      }
+    }
+    return leasedSubscriptions;
+  }
+
+  private void handleSubscriptions(List<Subscription> subscriptions, Instant now){
     Map<String, List<Subscription>> subscriptionMap = new HashMap<>();
     subscriptions.forEach((subscription) -> {
+      if(!endorsedSubscriptions.containsKey(subscription.getSubscriptionName())){
+        //not scheduled again until the subscription is changed or the schedule is reloaded
+        LOGGER.trace("No endorsed handler for subscription {} found. Skipping subscription.", subscription.getId());
+        return;
+      }
       List<Subscription> subscriptionList = subscriptionMap.get(subscription.getReceipientId());
       if(subscriptionList == null){
         subscriptionList = new ArrayList<>();
@@ -107,52 +379,768 @@ public class SubscriptionProcessor{
     });
 
     LOGGER.trace("Handling subscriptions for {} receipient(s).", subscriptionMap.size());
-    for(Entry<String, List<Subscription>> entry : subscriptionMap.entrySet()){
-      List<Subscription> subscriptionsByReceipient = entry.getValue();
-      for(Subscription subscription : subscriptionsByReceipient){
-        if(subscription.getFiresNext() != null && subscription.getFiresNext().isAfter(Instant.now().truncatedTo( ChronoUnit.MILLIS ))){
-          LOGGER.trace("Subscription {} is not fired before {}. Continue.", subscription.getFiresNext());
-          continue;
+    //identity-based, as the hash code of subscriptions changes with their state
+    Map<Subscription, List<Object>> initialStates = new IdentityHashMap<>();
+    subscriptionMap.values().forEach((subscriptionList) -> subscriptionList.forEach((subscription) -> initialStates.put(subscription, getState(subscription))));
+    try{
+      Map<Long, DeliveryLedgerEntry> ledgerEntries = prepareRetries(subscriptionMap, now);
+      Map<Long, NotificationDigest> digests = findDigests(subscriptionMap, now);
+      Set<String> pagedReceipients = new HashSet<>();
+      Map<String, List<Notification>> pendingNotifications = findPendingNotifications(subscriptionMap, digests.keySet(), pagedReceipients, now);
+      Map<Long, List<Notification>> lateNotifications = findLateNotifications(subscriptionMap, digests.keySet(), now);
+      if(maxInFlight > 0){
+        dispatchAsync(subscriptionMap, pendingNotifications, lateNotifications, pagedReceipients, ledgerEntries, digests, now);
+      } else if(dispatchExecutor == null){
+        for(Entry<String, List<Subscription>> entry : subscriptionMap.entrySet()){
+          handleSubscriptionsOfReceipient(entry.getKey(), entry.getValue(), pendingNotifications.getOrDefault(entry.getKey(), Collections.emptyList()), lateNotifications, pagedReceipients.contains(entry.getKey()), ledgerEntries, digests, now);
         }
+      } else{
+        dispatchInParallel(subscriptionMap, pendingNotifications, lateNotifications, pagedReceipients, ledgerEntries, digests, now);
+      }
+    } finally{
+      List<Subscription> changedSubscriptions = findChangedSubscriptions(initialStates);
+      Set<Subscription> rejectedSubscriptions = Collections.newSetFromMap(new IdentityHashMap<>());
+      try{
+        LOGGER.trace("Persisting {} of {} handled subscription(s).", changedSubscriptions.size(), initialStates.size());
+        //the recent notification ids are part of the state only if they have changed, as they might contain thousands of ids
+        rejectedSubscriptions.addAll(stateWriter.write(changedSubscriptions, (subscription) -> !initialStates.get(subscription).get(RECENT_IDS_STATE_INDEX).equals(getState(subscription).get(RECENT_IDS_STATE_INDEX)), (clusterEnabled) ? instanceId : null));
+      } finally{
+        changedSubscriptions.removeAll(rejectedSubscriptions);
+        //the handled subscriptions are copies, as indexed subscriptions might be replaced while being handled
+        index.updateDispatchState(changedSubscriptions);
+        //schedule again with updated or, e.g. in case of an error, with unchanged firing time
+        subscriptionMap.values().forEach((subscriptionList) -> subscriptionList.stream().filter((subscription) -> !rejectedSubscriptions.contains(subscription)).forEach(scheduler::schedule));
+        reloadRejectedSubscriptions(rejectedSubscriptions);
+      }
+    }
+  }
 
-        ISubscriptionHandler handler = endorsedSubscriptions.get(subscription.getSubscriptionName());
-        List<Notification> notifications = notificationDao.findAll(NotificationReceipientIdSpec.toSpecification(entry.getKey(), true).and(NotificationCreationDateSpec.toSpecification(subscription.getFiredLast(), null)));
-        if(notifications.isEmpty()){
-          LOGGER.trace("No notifications for receipient {} found.", entry.getKey());
-          continue;
+  /**
+   * Obtain the subscriptions whose state was not written from the database
+   * and schedule them according to their current state, as they were changed
+   * concurrently or, in cluster mode, handled by another instance since their
+   * lease expired.
+   */
+  private void reloadRejectedSubscriptions(Collection<Subscription> rejectedSubscriptions){
+    if(rejectedSubscriptions.isEmpty()){
+      return;
+    }
+    Set<Long> rejectedIds = new HashSet<>();
+    rejectedSubscriptions.forEach((subscription) -> rejectedIds.add(subscription.getId()));
+    LOGGER.debug("State of {} subscription(s) changed concurrently. Obtaining current state.", rejectedIds.size());
+    for(Subscription subscription : subscriptionDao.findAllById(rejectedIds)){
+      rejectedIds.remove(subscription.getId());
+      index.put(subscription);
+      scheduler.schedule(subscription);
+    }
+    //deleted in the meantime
+    rejectedIds.forEach((id) -> {
+      index.remove(id);
+      scheduler.unschedule(id);
+    });
+  }
+
+  /**
+   * Obtain all subscriptions whose state has changed while being handled, so
+   * that they can be written in one batch. Unchanged subscriptions, e.g.
+   * without pending notifications, are not written at all.
+   *
+   * @param initialStates The states of all handled subscriptions before
+   * handling them.
+   *
+   * @return A list of changed subscriptions, which might be empty.
+   */
+  private static List<Subscription> findChangedSubscriptions(Map<Subscription, List<Object>> initialStates){
+    List<Subscription> changedSubscriptions = new ArrayList<>();
+    initialStates.forEach((subscription, initialState) -> {
+      if(!initialState.equals(getState(subscription))){
+        changedSubscriptions.add(subscription);
+      }
+    });
+    return changedSubscriptions;
+  }
+
+  /**
+   * Get the state of the provided subscription modified while handling it.
+   * The recent notification ids are contained at
+   * {@link #RECENT_IDS_STATE_INDEX}.
+   */
+  private static List<Object> getState(Subscription subscription){
+    return Arrays.asList(subscription.getFiredLast(), subscription.getFiresNext(), subscription.getLastNotificationId(), String.valueOf(subscription.getRecentNotificationIds()));
+  }
+
+  /**
+   * Obtain the delivery ledger entries of all provided subscriptions. Entries
+   * of deliveries interrupted by a crash (IN_FLIGHT) are regarded as
+   * delivered, e.g. the subscription's lastNotificationId is moved to the end
+   * of the interrupted delivery and the entry is removed. Subscriptions
+   * having a FAILED entry are postponed until the next attempt is due.
+   *
+   * @param subscriptionMap All subscriptions by receipient.
+   * @param now The current time.
+   *
+   * @return The remaining FAILED entries by subscription id.
+   */
+  private Map<Long, DeliveryLedgerEntry> prepareRetries(Map<String, List<Subscription>> subscriptionMap, Instant now){
+    Map<Long, Subscription> subscriptionsById = new HashMap<>();
+    subscriptionMap.values().forEach((subscriptionList) -> subscriptionList.forEach((subscription) -> subscriptionsById.put(subscription.getId(), subscription)));
+    Map<Long, DeliveryLedgerEntry> ledgerEntries = ledger.findEntries(subscriptionsById.keySet());
+    for(DeliveryLedgerEntry entry : new ArrayList<>(ledgerEntries.values())){
+      Subscription subscription = subscriptionsById.get(entry.getSubscriptionId());
+      if(DeliveryLedgerEntry.STATE.IN_FLIGHT.equals(entry.getState())){
+        LOGGER.warn("Found interrupted delivery of notifications up to #{} via subscription {}. Regarding notifications as delivered.", entry.getToNotificationId(), subscription.getId());
+        if(entry.getToNotificationId() != null && (subscription.getLastNotificationId() == null || subscription.getLastNotificationId() < entry.getToNotificationId())){
+          subscription.setLastNotificationId(entry.getToNotificationId());
         }
-        if(handler != null){
+        ledger.succeeded(entry);
+        ledgerEntries.remove(entry.getSubscriptionId());
+      } else if(entry.getNextAttemptAt() != null && entry.getNextAttemptAt().isAfter(now)){
+        LOGGER.trace("Next delivery attempt of subscription {} is due at {}.", subscription.getId(), entry.getNextAttemptAt());
+        subscription.setFiresNext(entry.getNextAttemptAt());
+      }
+    }
+    return ledgerEntries;
+  }
+
+  /**
+   * Obtain the digests of all due subscriptions aggregated by the
+   * {@link DigestAggregator} using a single query. Each digest is verified
+   * against the notification table and rebuilt if notifications are missing.
+   * No query is issued if none of the subscriptions is aggregated.
+   *
+   * @param subscriptionMap All subscriptions by receipient.
+   * @param now The current time.
+   *
+   * @return The digests by subscription id, which contain an empty digest for
+   * aggregated subscriptions without pending notifications.
+   */
+  private Map<Long, NotificationDigest> findDigests(Map<String, List<Subscription>> subscriptionMap, Instant now){
+    Map<Long, Subscription> aggregated = new HashMap<>();
+    subscriptionMap.values().forEach((subscriptionList) -> subscriptionList.forEach((subscription) -> {
+      if((subscription.getFiresNext() == null || !subscription.getFiresNext().isAfter(now)) && DigestAggregator.isAggregated(subscription, endorsedSubscriptions.get(subscription.getSubscriptionName()))){
+        aggregated.put(subscription.getId(), subscription);
+      }
+    }));
+    if(aggregated.isEmpty()){
+      return Collections.emptyMap();
+    }
+    LOGGER.trace("Obtaining digests of {} aggregated subscription(s).", aggregated.size());
+    return aggregator.verify(aggregated.values(), aggregator.findDigests(aggregated.keySet()), now);
+  }
+
+  /**
+   * Dispatch the notifications of all receipients in parallel using the
+   * dispatch executor. All subscriptions of one receipient are handled by the
+   * same task in order to preserve their order. The number of concurrently
+   * running tasks is limited to 'repo.dispatch.threads'. This method returns
+   * after all tasks have finished.
+   */
+  private void dispatchInParallel(Map<String, List<Subscription>> subscriptionMap, Map<String, List<Notification>> pendingNotifications, Map<Long, List<Notification>> lateNotifications, Set<String> pagedReceipients, Map<Long, DeliveryLedgerEntry> ledgerEntries, Map<Long, NotificationDigest> digests, Instant now){
+    List<Future<?>> tasks = new ArrayList<>(subscriptionMap.size());
+    try{
+      for(Entry<String, List<Subscription>> entry : subscriptionMap.entrySet()){
+        dispatchPermits.acquire();
+        try{
+          tasks.add(dispatchExecutor.submit(() -> {
+            try{
+              handleSubscriptionsOfReceipient(entry.getKey(), entry.getValue(), pendingNotifications.getOrDefault(entry.getKey(), Collections.emptyList()), lateNotifications, pagedReceipients.contains(entry.getKey()), ledgerEntries, digests, now);
+            } finally{
+              dispatchPermits.release();
+            }
+          }));
+        } catch(RejectedExecutionException ex){
+          dispatchPermits.release();
+          throw ex;
+        }
+      }
+      for(Future<?> task : tasks){
+        try{
+          task.get();
+        } catch(ExecutionException ex){
+          LOGGER.error("Failed to handle subscriptions.", ex.getCause());
+        }
+      }
+    } catch(InterruptedException ex){
+      LOGGER.warn("Interrupted while dispatching notifications. Cancelling remaining tasks.");
+      tasks.forEach((task) -> task.cancel(false));
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Handle all due subscriptions of one receipient by the current thread,
+   * waiting for each handler call to finish.
+   *
+   * @param receipientId The receipient id.
+   * @param subscriptionsByReceipient All subscriptions of the receipient.
+   * @param pendingNotifications The notifications obtained for the receipient.
+   * @param lateNotifications The notifications committed after the cursor has
+   * passed their id by subscription id.
+   * @param paged TRUE if the notifications of the receipient exceeded
+   * 'repo.dispatch.maxNotificationsPerQuery' and have to be read page by page.
+   * @param ledgerEntries The FAILED delivery ledger entries by subscription id.
+   * @param digests The digests of aggregated subscriptions by subscription id.
+   * @param now The current time.
+   */
+  private void handleSubscriptionsOfReceipient(String receipientId, List<Subscription> subscriptionsByReceipient, List<Notification> pendingNotifications, Map<Long, List<Notification>> lateNotifications, boolean paged, Map<Long, DeliveryLedgerEntry> ledgerEntries, Map<Long, NotificationDigest> digests, Instant now){
+    ReceipientDelivery delivery = new ReceipientDelivery(receipientId, subscriptionsByReceipient, pendingNotifications, lateNotifications, paged, ledgerEntries, digests, now);
+    CompletableFuture<HandlerBulkhead.RESULT> call;
+    while((call = delivery.next()) != null){
+      delivery.complete(HandlerBulkhead.await(call));
+    }
+  }
+
+  /**
+   * Dispatch the notifications of all receipients by the current thread
+   * without waiting for each handler call. Up to 'repo.dispatch.maxInFlight'
+   * handler calls are in flight at once, whereas the subscriptions of one
+   * receipient are still handled one after another. Results are processed by
+   * the current thread as soon as a call has finished, e.g. by updating
+   * firedLast and firesNext of the subscription. This method returns after all
+   * calls have finished.
+   */
+  private void dispatchAsync(Map<String, List<Subscription>> subscriptionMap, Map<String, List<Notification>> pendingNotifications, Map<Long, List<Notification>> lateNotifications, Set<String> pagedReceipients, Map<Long, DeliveryLedgerEntry> ledgerEntries, Map<Long, NotificationDigest> digests, Instant now){
+    Deque<ReceipientDelivery> ready = new ArrayDeque<>(subscriptionMap.size());
+    subscriptionMap.forEach((receipientId, subscriptionList) -> ready.add(new ReceipientDelivery(receipientId, subscriptionList, pendingNotifications.getOrDefault(receipientId, Collections.emptyList()), lateNotifications, pagedReceipients.contains(receipientId), ledgerEntries, digests, now)));
+    BlockingQueue<Runnable> completions = new LinkedBlockingQueue<>();
+    int inFlight = 0;
+    try{
+      while(!ready.isEmpty() || inFlight > 0){
+        while(inFlight < maxInFlight && !ready.isEmpty()){
+          ReceipientDelivery delivery = ready.poll();
           try{
-            if(handler.handleNotifications(notifications.toArray(new Notification[]{}), subscription.getSubscriptionPropertiesAsMap())){
-              //success
-              LOGGER.trace("Successfully submitted {} notifications via subscription {} to {}. Updating subscription timestamps.", notifications.size(), subscription.getSubscriptionName(), subscription.getReceipientId());
-              subscription.setFiredLast(Instant.now().truncatedTo( ChronoUnit.MILLIS ));
-
-              switch(subscription.getFrequency()){
-                case HOURLY:
-                  subscription.setFiresNext(Instant.now().truncatedTo( ChronoUnit.MILLIS ).plus(1, ChronoUnit.HOURS));
-                  break;
-                case DAILY:
-                  subscription.setFiresNext(Instant.now().truncatedTo( ChronoUnit.MILLIS ).plus(1, ChronoUnit.DAYS));
-                  break;
-                case LIVE:
-                  subscription.setFiresNext(Instant.now().truncatedTo( ChronoUnit.MILLIS ));
-                  break;
-              }
-            } else{
-              //error
-              LOGGER.error("Failed to submit notifications via subscription {} to {}. Handler returned 'false'.", subscription.getSubscriptionName(), subscription.getReceipientId());
+            CompletableFuture<HandlerBulkhead.RESULT> call = delivery.next();
+            if(call != null){
+              inFlight++;
+              call.thenAccept((result) -> completions.add(() -> {
+                delivery.complete(result);
+                ready.add(delivery);
+              }));
             }
-          } catch(IOException ex){
-            //error
-            LOGGER.error("Failed to submit notifications via subscription {} to {}. Probably, subscription properties are misconfigured.", ex);
+          } catch(RuntimeException ex){
+            LOGGER.error("Failed to handle subscriptions.", ex);
+          }
+        }
+        if(inFlight > 0){
+          Runnable completion = completions.take();
+          inFlight--;
+          try{
+            completion.run();
+          } catch(RuntimeException ex){
+            LOGGER.error("Failed to handle subscriptions.", ex);
           }
         }
       }
-      LOGGER.trace("Persisting updated subscriptions.");
-      subscriptionDao.saveAll(subscriptionsByReceipient);
+    } catch(InterruptedException ex){
+      LOGGER.warn("Interrupted while dispatching notifications. {} call(s) still in flight.", inFlight);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Delivery of the notifications pending for all due subscriptions of one
+   * receipient. Each call of {@link #next()} starts the next handler call,
+   * e.g. for the next chunk or subscription, whose result has to be passed to
+   * {@link #complete(edu.kit.datamanager.notification.subscription.HandlerBulkhead.RESULT)}
+   * before calling next() again. Pending notifications are passed to the
+   * handler in chunks of at most 'repo.dispatch.chunkSize' notifications.
+   * After each delivered chunk, the subscription's cursor is moved forward, so
+   * that a failure only affects the current chunk.
+   *
+   * A delivery is not thread-safe, but might be continued by another thread
+   * than the one which started it.
+   */
+  private final class ReceipientDelivery{
+
+    private final String receipientId;
+    private final Iterator<Subscription> subscriptions;
+    private final List<Notification> pendingNotifications;
+    private final Map<Long, List<Notification>> lateNotifications;
+    private final boolean paged;
+    private final Map<Long, DeliveryLedgerEntry> ledgerEntries;
+    private final Map<Long, NotificationDigest> digests;
+    private final Instant now;
+
+    private Subscription subscription;
+    private HandlerBulkhead bulkhead;
+    private Map<String, String> properties;
+    private DeliveryLedgerEntry ledgerEntry;
+    private NotificationDigest digest;
+    private NotificationChunks chunks;
+    private boolean initializeCursor;
+    private long delivered;
+    private NotificationChunkCursor cursor;
+    private Notification[] chunk;
+    private Instant recentFrom;
+
+    ReceipientDelivery(String receipientId, List<Subscription> subscriptions, List<Notification> pendingNotifications, Map<Long, List<Notification>> lateNotifications, boolean paged, Map<Long, DeliveryLedgerEntry> ledgerEntries, Map<Long, NotificationDigest> digests, Instant now){
+      this.receipientId = receipientId;
+      this.subscriptions = subscriptions.iterator();
+      this.pendingNotifications = pendingNotifications;
+      this.lateNotifications = lateNotifications;
+      this.paged = paged;
+      this.ledgerEntries = ledgerEntries;
+      this.digests = digests;
+      this.now = now;
+    }
+
+    /**
+     * Start the next handler call.
+     *
+     * @return The call or null if all subscriptions have been handled.
+     */
+    CompletableFuture<HandlerBulkhead.RESULT> next(){
+      while(true){
+        if(subscription == null){
+          if(!subscriptions.hasNext()){
+            return null;
+          }
+          if(!prepare(subscriptions.next())){
+            continue;
+          }
+          if(digest != null){
+            ledgerEntry = ledger.begin(subscription, ledgerEntry, digest.getLastNotificationId());
+            return bulkhead.callAsync(digest, properties);
+          }
+        }
+        if(chunks.hasNext()){
+          chunk = chunks.next();
+          cursor = chunks.getCursor();
+          ledgerEntry = ledger.begin(subscription, ledgerEntry, cursor.getLastNotificationId());
+          return bulkhead.callAsync(chunk, cursor, properties);
+        }
+        //all chunks delivered
+        finish(HandlerBulkhead.RESULT.SUCCEEDED);
+      }
+    }
+
+    /**
+     * Process the result of the call started last.
+     *
+     * @param result The result.
+     */
+    void complete(HandlerBulkhead.RESULT result){
+      if(!HandlerBulkhead.RESULT.SUCCEEDED.equals(result)){
+        finish(result);
+        return;
+      }
+      ledger.succeeded(ledgerEntry);
+      ledgerEntry = null;
+      if(digest != null){
+        aggregator.consume(subscription.getId(), digest);
+        advanceCursor(subscription, digest.getLastNotificationId());
+        delivered = digest.getTotal();
+        finish(result);
+      } else{
+        advanceCursor(subscription, cursor.getLastNotificationId());
+        rememberRecent(subscription, chunk, recentFrom);
+        delivered += chunk.length;
+      }
+    }
+
+    /**
+     * Prepare the delivery of the provided subscription.
+     *
+     * @return FALSE if there is nothing to deliver.
+     */
+    private boolean prepare(Subscription next){
+      if(next.getFiresNext() != null && next.getFiresNext().isAfter(now)){
+        LOGGER.trace("Subscription {} is not fired before {}. Continue.", next.getId(), next.getFiresNext());
+        return false;
+      }
+
+      ISubscriptionHandler handler = endorsedSubscriptions.get(next.getSubscriptionName());
+      DeliveryLedgerEntry entry = ledgerEntries.get(next.getId());
+      //aggregated subscriptions are delivered via their digest, which already contains all pending notifications
+      NotificationDigest nextDigest = digests.get(next.getId());
+      NotificationChunks nextChunks = null;
+      if(nextDigest == null){
+        //retry exactly the notifications of the failed attempt
+        Long upToId = (entry != null) ? entry.getToNotificationId() : null;
+        List<Notification> late = selectNotificationsUpTo(lateNotifications.getOrDefault(next.getId(), Collections.emptyList()), upToId);
+        if(paged){
+          nextChunks = queryPendingNotifications(next, late, upToId);
+        } else{
+          List<Notification> selected = new ArrayList<>(late);
+          selected.addAll(selectNotificationsUpTo(selectPendingNotifications(pendingNotifications, next), upToId));
+          nextChunks = NotificationChunks.of(selected, chunkSize);
+        }
+      }
+      if((nextDigest != null) ? nextDigest.isEmpty() : !nextChunks.hasNext()){
+        LOGGER.trace("No notifications for receipient {} found.", receipientId);
+        if(next.getLastNotificationId() == null){
+          //initialize cursor of subscriptions created by previous versions
+          next.setLastNotificationId(maxId(pendingNotifications, null));
+        }
+        //nothing left to retry, e.g. as notifications have been deleted
+        ledger.succeeded(entry);
+        if(next.getFrequency() != null && !Subscription.FREQUENCY.LIVE.equals(next.getFrequency())){
+          //check again in the next period instead of in each cycle
+          next.setFiresNext(nextFiringTime(next.getFrequency()));
+        }
+        return false;
+      }
+      if(handler == null){
+        return false;
+      }
+      HandlerBulkhead nextBulkhead = bulkheads.get(next.getSubscriptionName());
+      if(!nextBulkhead.isCallPermitted()){
+        LOGGER.debug("Circuit of handler {} is open. Postponing subscription {} until {}.", next.getSubscriptionName(), next.getId(), nextBulkhead.getRetryAt());
+        next.setFiresNext(nextBulkhead.getRetryAt());
+        return false;
+      }
+      try{
+        properties = next.getSubscriptionPropertiesAsMap();
+      } catch(IOException ex){
+        //error
+        LOGGER.error("Failed to submit notifications via subscription " + next.getSubscriptionName() + " to " + next.getReceipientId() + ". Probably, subscription properties are misconfigured.", ex);
+        return false;
+      }
+      subscription = next;
+      bulkhead = nextBulkhead;
+      ledgerEntry = entry;
+      digest = nextDigest;
+      chunks = nextChunks;
+      recentFrom = ((next.getFiredLast() != null) ? next.getFiredLast() : now).minusMillis(commitLagMillis);
+      initializeCursor = next.getLastNotificationId() == null;
+      delivered = 0;
+      return true;
+    }
+
+    /**
+     * Finish the delivery of the current subscription and update its
+     * timestamps according to the provided result.
+     */
+    private void finish(HandlerBulkhead.RESULT result){
+      if(HandlerBulkhead.RESULT.SUCCEEDED.equals(result)){
+        //success
+        if(initializeCursor && digest == null){
+          //initialize cursor of subscriptions created by previous versions
+          advanceCursor(subscription, maxId(pendingNotifications, null));
+        }
+        LOGGER.trace("Successfully submitted {} notifications via subscription {} to {}. Updating subscription timestamps.", delivered, subscription.getSubscriptionName(), subscription.getReceipientId());
+        //the start of the cycle, as notifications committed later have not been seen
+        subscription.setFiredLast(now);
+
+        subscription.setFiresNext(nextFiringTime(subscription.getFrequency()));
+      } else{
+        //error
+        if(delivered > 0){
+          LOGGER.debug("Submitted {} notifications via subscription {} to {} before the delivery failed.", delivered, subscription.getSubscriptionName(), subscription.getReceipientId());
+        }
+        if(HandlerBulkhead.RESULT.FAILED.equals(result)){
+          LOGGER.error("Failed to submit notifications via subscription {} to {}. Handler returned 'false', failed or timed out.", subscription.getSubscriptionName(), subscription.getReceipientId());
+          ledgerEntry = ledger.failed(ledgerEntry, "Handler " + subscription.getSubscriptionName() + " returned 'false', failed or timed out.", now);
+          if(ledgerEntry != null && ledgerEntry.getNextAttemptAt() != null){
+            //retry with backoff
+            subscription.setFiresNext(ledgerEntry.getNextAttemptAt());
+          }
+        } else{
+          LOGGER.warn("Call of handler {} for receipient {} was rejected.", subscription.getSubscriptionName(), subscription.getReceipientId());
+          ledger.cancel(ledgerEntry);
+        }
+        if(!bulkhead.isCallPermitted() && bulkhead.getRetryAt().isAfter(now) && (subscription.getFiresNext() == null || bulkhead.getRetryAt().isAfter(subscription.getFiresNext()))){
+          //circuit opened, retry with backoff
+          subscription.setFiresNext(bulkhead.getRetryAt());
+        }
+      }
+      subscription = null;
+      bulkhead = null;
+      properties = null;
+      ledgerEntry = null;
+      digest = null;
+      chunks = null;
+      chunk = null;
     }
-    LOGGER.trace("Subscriptions handled.");
   }
 
+  /**
+   * Create chunks of the notifications pending for the provided subscription,
+   * which are read from the database page by page after the provided late
+   * notifications. As in
+   * {@link #selectPendingNotifications(java.util.List, edu.kit.datamanager.notification.domain.Subscription)},
+   * only notifications created after firedLast are selected for subscriptions
+   * without lastNotificationId.
+   */
+  private NotificationChunks queryPendingNotifications(Subscription subscription, List<Notification> lateNotifications, Long upToId){
+    Long cursor = subscription.getLastNotificationId();
+    Instant createdFrom = (cursor == null) ? subscription.getFiredLast() : null;
+    int pageSize = (chunkSize > 0) ? chunkSize : maxNotificationsPerQuery;
+    return NotificationChunks.query(notificationDao, subscription.getReceipientId(), lateNotifications, cursor, upToId, (notification) -> createdFrom == null || (notification.getCreatedAt() != null && notification.getCreatedAt().isAfter(createdFrom)), pageSize);
+  }
+
+  /**
+   * Obtain the next firing time of a subscription with the provided frequency
+   * starting from now.
+   */
+  private static Instant nextFiringTime(Subscription.FREQUENCY frequency){
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    switch(frequency){
+      case HOURLY:
+        return now.plus(1, ChronoUnit.HOURS);
+      case DAILY:
+        return now.plus(1, ChronoUnit.DAYS);
+      default:
+        return now;
+    }
+  }
+
+  /**
+   * Move the cursor of the provided subscription to the provided notification
+   * id if it is larger than the current one.
+   */
+  private static void advanceCursor(Subscription subscription, Long notificationId){
+    if(notificationId != null && (subscription.getLastNotificationId() == null || notificationId > subscription.getLastNotificationId())){
+      subscription.setLastNotificationId(notificationId);
+    }
+  }
+
+  /**
+   * Remember the ids of all delivered notifications stored since the provided
+   * time, so that they are not regarded as late by
+   * {@link #findLateNotifications(java.util.Map, java.util.Set, java.time.Instant)}.
+   */
+  private void rememberRecent(Subscription subscription, Notification[] delivered, Instant recentFrom){
+    if(commitLagMillis <= 0){
+      return;
+    }
+    Set<Long> recentIds = null;
+    boolean added = false;
+    for(Notification notification : delivered){
+      if(notification.getStoredAt() != null && !notification.getStoredAt().isBefore(recentFrom)){
+        if(recentIds == null){
+          recentIds = subscription.getRecentNotificationIdsAsSet();
+        }
+        added |= recentIds.add(notification.getId());
+      }
+    }
+    //the ids are only serialized again if some were added
+    if(added){
+      subscription.setRecentNotificationIdsFromSet(recentIds);
+    }
+  }
+
+  /**
+   * Obtain the notifications committed after the cursor of a due subscription
+   * has passed their id. Ids are obtained in blocks by each writer, e.g. by
+   * concurrent ingest threads, bulk imports or other instances, so that they
+   * are not assigned in commit order. A notification not visible while a
+   * subscription fired was committed afterwards and has therefore been stored
+   * at most 'repo.dispatch.commitLagMillis' before. Thus, all notifications
+   * below the cursor stored within this time before the subscription fired
+   * last are looked up, whereas the ones delivered before are known by the
+   * subscription's recent notification ids. Recent ids outside of this time
+   * are removed.
+   *
+   * Aggregated subscriptions, subscriptions without cursor and subscriptions
+   * which have not fired yet are not considered.
+   *
+   * @param subscriptionMap All subscriptions by receipient.
+   * @param aggregatedIds The ids of all aggregated subscriptions.
+   * @param now The current time.
+   *
+   * @return The late notifications by subscription id.
+   */
+  private Map<Long, List<Notification>> findLateNotifications(Map<String, List<Subscription>> subscriptionMap, Set<Long> aggregatedIds, Instant now){
+    if(commitLagMillis <= 0){
+      return Collections.emptyMap();
+    }
+    List<Subscription> candidates = new ArrayList<>();
+    Map<String, Long> cursors = new HashMap<>();
+    Map<String, Instant> storedFrom = new HashMap<>();
+    subscriptionMap.values().forEach((subscriptionList) -> subscriptionList.forEach((subscription) -> {
+      if((subscription.getFiresNext() != null && subscription.getFiresNext().isAfter(now)) || aggregatedIds.contains(subscription.getId()) || subscription.getLastNotificationId() == null || subscription.getFiredLast() == null){
+        return;
+      }
+      candidates.add(subscription);
+      cursors.merge(subscription.getReceipientId(), subscription.getLastNotificationId(), Math::max);
+      storedFrom.merge(subscription.getReceipientId(), subscription.getFiredLast().minusMillis(commitLagMillis), (a, b) -> (a.isBefore(b)) ? a : b);
+    }));
+    if(candidates.isEmpty()){
+      return Collections.emptyMap();
+    }
+
+    Map<String, Map<Long, Instant>> storedIds = notificationDao.findStoredUpToCursors(cursors, storedFrom);
+    Map<Long, List<Long>> lateIds = new HashMap<>();
+    Set<Long> allLateIds = new HashSet<>();
+    for(Subscription subscription : candidates){
+      Instant from = subscription.getFiredLast().minusMillis(commitLagMillis);
+      Set<Long> recentIds = subscription.getRecentNotificationIdsAsSet();
+      Set<Long> retainedIds = new HashSet<>();
+      storedIds.getOrDefault(subscription.getReceipientId(), Collections.emptyMap()).forEach((id, storedAt) -> {
+        if(id > subscription.getLastNotificationId() || storedAt.isBefore(from)){
+          return;
+        }
+        if(recentIds.contains(id)){
+          retainedIds.add(id);
+        } else{
+          lateIds.computeIfAbsent(subscription.getId(), (k) -> new ArrayList<>()).add(id);
+          allLateIds.add(id);
+        }
+      });
+      if(retainedIds.size() < recentIds.size()){
+        subscription.setRecentNotificationIdsFromSet(retainedIds);
+      }
+    }
+    if(allLateIds.isEmpty()){
+      return Collections.emptyMap();
+    }
+
+    LOGGER.debug("Found {} notification(s) committed after subscription cursors have passed their ids.", allLateIds.size());
+    Map<Long, Notification> notifications = new HashMap<>();
+    notificationDao.findAllById(allLateIds).forEach((notification) -> notifications.put(notification.getId(), notification));
+    Map<Long, List<Notification>> result = new HashMap<>();
+    lateIds.forEach((subscriptionId, ids) -> {
+      List<Notification> late = new ArrayList<>(ids.size());
+      ids.forEach((id) -> {
+        if(notifications.containsKey(id)){
+          late.add(notifications.get(id));
+        }
+      });
+      result.put(subscriptionId, late);
+    });
+    return result;
+  }
+
+  /**
+   * Obtain the notifications of all receipients having at least one due
+   * subscription using a single query. For each receipient, all notifications
+   * with an id larger than the smallest lastNotificationId of its due
+   * subscriptions are returned, so that the notifications pending for a
+   * single subscription are a subset, which has to be selected using
+   * {@link #selectPendingNotifications(java.util.List, edu.kit.datamanager.notification.domain.Subscription)}.
+   * Aggregated subscriptions delivered via their digest are not considered.
+   *
+   * If more than 'repo.dispatch.maxNotificationsPerQuery' notifications are
+   * pending, only the receipients whose notifications were obtained completely
+   * are returned. All other receipients are added to the provided set of
+   * paged receipients, whose notifications are read page by page while
+   * dispatching.
+   *
+   * @param subscriptionMap All subscriptions by receipient.
+   * @param aggregatedIds The ids of all aggregated subscriptions.
+   * @param pagedReceipients The set receiving all receipients whose
+   * notifications have to be read page by page.
+   * @param now The current time.
+   *
+   * @return All notifications by receipient.
+   */
+  private Map<String, List<Notification>> findPendingNotifications(Map<String, List<Subscription>> subscriptionMap, Set<Long> aggregatedIds, Set<String> pagedReceipients, Instant now){
+    Map<String, Long> cursors = new HashMap<>();
+    for(Entry<String, List<Subscription>> entry : subscriptionMap.entrySet()){
+      for(Subscription subscription : entry.getValue()){
+        if((subscription.getFiresNext() != null && subscription.getFiresNext().isAfter(now)) || aggregatedIds.contains(subscription.getId())){
+          continue;
+        }
+        Long cursor = subscription.getLastNotificationId();
+        if(!cursors.containsKey(entry.getKey())){
+          cursors.put(entry.getKey(), cursor);
+        } else if(cursors.get(entry.getKey()) != null && (cursor == null || cursor < cursors.get(entry.getKey()))){
+          cursors.put(entry.getKey(), cursor);
+        }
+      }
+    }
+    if(cursors.isEmpty()){
+      return Collections.emptyMap();
+    }
+
+    LOGGER.trace("Obtaining pending notifications for {} receipient(s).", cursors.size());
+    if(maxNotificationsPerQuery <= 0){
+      List<Notification> notifications = notificationDao.findAll(NotificationReceipientCursorSpec.toSpecification(cursors));
+      Map<String, List<Notification>> notificationMap = new HashMap<>();
+      for(Notification notification : notifications){
+        notificationMap.computeIfAbsent(notification.getReceipientId(), (k) -> new ArrayList<>()).add(notification);
+      }
+      return notificationMap;
+    }
+    //ordered by receipient, so that all receipients except the last one are complete if the limit is exceeded
+    List<Notification> notifications = notificationDao.findByReceipientCursors(cursors, maxNotificationsPerQuery + 1);
+    Map<String, List<Notification>> notificationMap = new HashMap<>();
+    for(Notification notification : notifications.subList(0, Math.min(notifications.size(), maxNotificationsPerQuery))){
+      notificationMap.computeIfAbsent(notification.getReceipientId(), (k) -> new ArrayList<>()).add(notification);
+    }
+    if(notifications.size() > maxNotificationsPerQuery){
+      String lastReceipientId = notifications.get(maxNotificationsPerQuery - 1).getReceipientId();
+      notificationMap.remove(lastReceipientId);
+      //receipients without notifications might follow the last receipient and are therefore also read page by page
+      for(String receipientId : cursors.keySet()){
+        if(!notificationMap.containsKey(receipientId)){
+          pagedReceipients.add(receipientId);
+        }
+      }
+      LOGGER.debug("More than {} notifications pending. Reading notifications of {} receipient(s) page by page.", maxNotificationsPerQuery, pagedReceipients.size());
+    }
+    return notificationMap;
+  }
+
+  /**
+   * Select all notifications pending for the provided subscription, e.g. all
+   * notifications with an id larger than the subscription's
+   * lastNotificationId. Subscriptions created by previous versions have no
+   * lastNotificationId. For them, all notifications created after firedLast
+   * are selected.
+   *
+   * @param notifications The notifications of the subscription's receipient.
+   * @param subscription The subscription.
+   *
+   * @return The selected notifications.
+   */
+  private List<Notification> selectPendingNotifications(List<Notification> notifications, Subscription subscription){
+    Long cursor = subscription.getLastNotificationId();
+    Instant createdFrom = subscription.getFiredLast();
+    if(cursor == null && createdFrom == null){
+      return notifications;
+    }
+    List<Notification> result = new ArrayList<>();
+    for(Notification notification : notifications){
+      if(cursor != null){
+        if(notification.getId() > cursor){
+          result.add(notification);
+        }
+      } else if(notification.getCreatedAt() != null && notification.getCreatedAt().isAfter(createdFrom)){
+        result.add(notification);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Select all notifications with an id up to the provided id.
+   *
+   * @param notifications A list of notifications.
+   * @param toNotificationId The largest id to select or null, if all
+   * notifications should be selected.
+   *
+   * @return The selected notifications.
+   */
+  private static List<Notification> selectNotificationsUpTo(List<Notification> notifications, Long toNotificationId){
+    if(toNotificationId == null){
+      return notifications;
+    }
+    List<Notification> result = new ArrayList<>();
+    for(Notification notification : notifications){
+      if(notification.getId() != null && notification.getId() <= toNotificationId){
+        result.add(notification);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the largest id of the provided notifications.
+   *
+   * @param notifications A list of notifications.
+   * @param defaultValue The value returned for an empty list.
+   *
+   * @return The largest id.
+   */
+  private static Long maxId(List<Notification> notifications, Long defaultValue){
+    Long result = defaultValue;
+    for(Notification notification : notifications){
+      if(notification.getId() != null && (result == null || notification.getId() > result)){
+        result = notification.getId();
+      }
+    }
+    return result;
+  }
 }
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.ISubscriptionDao;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory schedule of all enabled subscriptions ordered by their next
+ * firing time. The schedule allows the {@link SubscriptionProcessor} to
+ * obtain the ids of all due subscriptions without accessing the database.
+ *
+ * The schedule is loaded from the database in the first processing cycle and
+ * is kept up to date by the subscription controller and the processor itself.
+ * As subscriptions may also be modified by other means, e.g. via the
+ * repository REST endpoints or by other service instances, the schedule is
+ * reloaded every 'repo.schedule.resyncMillis' milliseconds.
+ *
+ * Updates are implemented by adding a new queue entry and by keeping the
+ * current firing time of each subscription in a separate map. Outdated queue
+ * entries are skipped while polling.
+ *
+ * In addition, the ids of all LIVE subscriptions are indexed by receipient, so
+ * that they can be made due immediately via
+ * {@link #triggerLive(java.util.Collection)} as soon as new notifications for
+ * a receipient are available.
+ *
+ * @author jejkal
+ */
+@Component
+public class SubscriptionScheduler{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionScheduler.class);
+
+  private final ISubscriptionDao subscriptionDao;
+  private final long resyncNanos;
+  private final long liveIntervalMillis;
+  private PriorityQueue<ScheduledSubscription> queue = new PriorityQueue<>();
+  private Map<Long, Instant> firingTimes = new HashMap<>();
+  private Map<Long, Instant> changesWhileLoading = null;
+  private Map<String, Set<Long>> liveSubscriptions = new HashMap<>();
+  private Map<Long, String> liveReceipients = new HashMap<>();
+  private Map<Long, String> liveChangesWhileLoading = null;
+  private final Set<Long> triggered = new HashSet<>();
+  private long lastSync = 0;
+  private boolean loaded = false;
+
+  @Autowired
+  public SubscriptionScheduler(ISubscriptionDao subscriptionDao, ApplicationProperties applicationProperties){
+    this.subscriptionDao = subscriptionDao;
+    this.resyncNanos = TimeUnit.MILLISECONDS.toNanos(applicationProperties.getScheduleResyncMillis());
+    this.liveIntervalMillis = (applicationProperties.isScheduleLiveEvents()) ? Math.max(0, applicationProperties.getScheduleLiveIntervalMillis()) : 0;
+  }
+
+  /**
+   * Add the provided subscription to the schedule or update its firing time.
+   * Disabled subscriptions are removed from the schedule. Subscriptions
+   * without firing time are due immediately. If 'repo.schedule.liveEvents' is
+   * enabled, LIVE subscriptions are due after 'repo.schedule.liveIntervalMillis'
+   * at the earliest, as they are triggered via
+   * {@link #triggerLive(java.util.Collection)} in the meantime.
+   *
+   * @param subscription The subscription to schedule.
+   */
+  public synchronized void schedule(Subscription subscription){
+    if(subscription.getId() == null){
+      return;
+    }
+    if(Boolean.TRUE.equals(subscription.getDisabled())){
+      unschedule(subscription.getId());
+      return;
+    }
+    String liveReceipient = (Subscription.FREQUENCY.LIVE.equals(subscription.getFrequency())) ? subscription.getReceipientId() : null;
+    indexLive(subscription.getId(), liveReceipient);
+    if(liveChangesWhileLoading != null){
+      liveChangesWhileLoading.put(subscription.getId(), liveReceipient);
+    }
+    Instant firesNext = subscription.getFiresNext();
+    if(liveReceipient != null && liveIntervalMillis > 0 && firesNext != null){
+      Instant nextCheck = Instant.now().plusMillis(liveIntervalMillis);
+      if(firesNext.isBefore(nextCheck)){
+        firesNext = nextCheck;
+      }
+    }
+    schedule(subscription.getId(), firesNext);
+  }
+
+  /**
+   * Add the subscription with the provided id to the schedule or update its
+   * firing time. Without firing time, the subscription is due immediately.
+   *
+   * @param subscriptionId The id of the subscription.
+   * @param firesNext The next firing time.
+   */
+  public synchronized void schedule(Long subscriptionId, Instant firesNext){
+    //triggered while being processed, so new notifications may have been missed
+    Instant time = (firesNext != null && !triggered.remove(subscriptionId)) ? firesNext : Instant.EPOCH;
+    put(subscriptionId, time);
+    if(changesWhileLoading != null){
+      changesWhileLoading.put(subscriptionId, time);
+    }
+  }
+
+  /**
+   * Add the subscriptions with the provided ids to the schedule unless they
+   * are scheduled already, e.g. because they were handled before an error
+   * occurred.
+   *
+   * @param subscriptionIds The ids of the subscriptions.
+   * @param firesNext The firing time of all subscriptions not scheduled yet.
+   */
+  public synchronized void scheduleIfAbsent(Collection<Long> subscriptionIds, Instant firesNext){
+    for(Long subscriptionId : subscriptionIds){
+      if(!firingTimes.containsKey(subscriptionId)){
+        schedule(subscriptionId, firesNext);
+      }
+    }
+  }
+
+  /**
+   * Remove the subscription with the provided id from the schedule.
+   *
+   * @param subscriptionId The id of the subscription.
+   */
+  public synchronized void unschedule(Long subscriptionId){
+    firingTimes.remove(subscriptionId);
+    triggered.remove(subscriptionId);
+    indexLive(subscriptionId, null);
+    if(changesWhileLoading != null){
+      changesWhileLoading.put(subscriptionId, null);
+      liveChangesWhileLoading.put(subscriptionId, null);
+    }
+  }
+
+  /**
+   * Make all LIVE subscriptions of the provided receipients due immediately.
+   * Subscriptions currently being processed are due immediately as soon as
+   * they are scheduled again.
+   *
+   * @param receipientIds The ids of the receipients.
+   *
+   * @return TRUE if at least one LIVE subscription was triggered.
+   */
+  public synchronized boolean triggerLive(Collection<String> receipientIds){
+    boolean result = false;
+    for(String receipientId : receipientIds){
+      for(Long subscriptionId : liveSubscriptions.getOrDefault(receipientId, Collections.emptySet())){
+        if(firingTimes.containsKey(subscriptionId)){
+          put(subscriptionId, Instant.EPOCH);
+        } else{
+          triggered.add(subscriptionId);
+        }
+        result = true;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Remove and return the ids of all subscriptions due at the provided time.
+   * Callers are expected to schedule the returned subscriptions again after
+   * processing them.
+   *
+   * @param now The current time.
+   *
+   * @return A list of subscription ids, which might be empty.
+   */
+  public synchronized List<Long> pollDue(Instant now){
+    List<Long> due = new ArrayList<>();
+    while(!queue.isEmpty() && !queue.peek().firesNext.isAfter(now)){
+      ScheduledSubscription entry = queue.poll();
+      //skip outdated entries of updated or removed subscriptions
+      if(entry.firesNext.equals(firingTimes.get(entry.subscriptionId))){
+        firingTimes.remove(entry.subscriptionId);
+        due.add(entry.subscriptionId);
+      }
+    }
+    if(queue.size() > 2 * firingTimes.size() + 1024){
+      compact();
+    }
+    return due;
+  }
+
+  /**
+   * Get the number of scheduled subscriptions.
+   *
+   * @return The number of scheduled subscriptions.
+   */
+  public synchronized int size(){
+    return firingTimes.size();
+  }
+
+  /**
+   * (Re-)Load the schedule from the database if it was not loaded before or
+   * if the last load is more than 'repo.schedule.resyncMillis' milliseconds
+   * ago.
+   */
+  public void synchronizeIfRequired(){
+    synchronized(this){
+      if(loaded && System.nanoTime() - lastSync < resyncNanos){
+        return;
+      }
+    }
+    synchronize();
+  }
+
+  /**
+   * Load the schedule of all enabled subscriptions from the database.
+   * Changes applied while loading are retained.
+   */
+  public void synchronize(){
+    synchronized(this){
+      changesWhileLoading = new HashMap<>();
+      liveChangesWhileLoading = new HashMap<>();
+    }
+    List<ISubscriptionDao.SubscriptionSchedule> entries;
+    try{
+      entries = subscriptionDao.findAllSchedules();
+    } catch(RuntimeException ex){
+      synchronized(this){
+        changesWhileLoading = null;
+        liveChangesWhileLoading = null;
+      }
+      throw ex;
+    }
+    synchronized(this){
+      queue = new PriorityQueue<>(Math.max(1, entries.size()));
+      firingTimes = new HashMap<>();
+      liveSubscriptions = new HashMap<>();
+      liveReceipients = new HashMap<>();
+      for(ISubscriptionDao.SubscriptionSchedule entry : entries){
+        put(entry.getId(), (entry.getFiresNext() != null) ? entry.getFiresNext() : Instant.EPOCH);
+        if(Subscription.FREQUENCY.LIVE.equals(entry.getFrequency())){
+          indexLive(entry.getId(), entry.getReceipientId());
+        }
+      }
+      liveChangesWhileLoading.forEach(this::indexLive);
+      changesWhileLoading.forEach((id, firesNext) -> {
+        if(firesNext == null){
+          firingTimes.remove(id);
+        } else{
+          put(id, firesNext);
+        }
+      });
+      changesWhileLoading = null;
+      liveChangesWhileLoading = null;
+      lastSync = System.nanoTime();
+      loaded = true;
+      LOGGER.debug("Loaded schedule of {} subscription(s).", firingTimes.size());
+    }
+  }
+
+  /**
+   * Add the subscription with the provided id to the index of LIVE
+   * subscriptions or remove it if no receipient is provided.
+   */
+  private void indexLive(Long subscriptionId, String receipientId){
+    String previous = (receipientId != null) ? liveReceipients.put(subscriptionId, receipientId) : liveReceipients.remove(subscriptionId);
+    if(previous != null && !previous.equals(receipientId)){
+      Set<Long> ids = liveSubscriptions.get(previous);
+      ids.remove(subscriptionId);
+      if(ids.isEmpty()){
+        liveSubscriptions.remove(previous);
+      }
+    }
+    if(receipientId != null){
+      liveSubscriptions.computeIfAbsent(receipientId, (k) -> new HashSet<>()).add(subscriptionId);
+    }
+  }
+
+  private void put(Long subscriptionId, Instant firesNext){
+    if(!firesNext.equals(firingTimes.put(subscriptionId, firesNext))){
+      queue.add(new ScheduledSubscription(subscriptionId, firesNext));
+    }
+  }
+
+  /**
+   * Remove all outdated entries from the queue.
+   */
+  private void compact(){
+    PriorityQueue<ScheduledSubscription> compacted = new PriorityQueue<>(Math.max(1, firingTimes.size()));
+    firingTimes.forEach((id, firesNext) -> compacted.add(new ScheduledSubscription(id, firesNext)));
+    queue = compacted;
+  }
+
+  private static final class ScheduledSubscription implements Comparable<ScheduledSubscription>{
+
+    private final Long subscriptionId;
+    private final Instant firesNext;
+
+    ScheduledSubscription(Long subscriptionId, Instant firesNext){
+      this.subscriptionId = subscriptionId;
+      this.firesNext = firesNext;
+    }
+
+    @Override
+    public int compareTo(ScheduledSubscription o){
+      return firesNext.compareTo(o.firesNext);
+    }
+  }
+}
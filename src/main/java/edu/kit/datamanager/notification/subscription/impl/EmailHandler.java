@@ -17,18 +17,34 @@ package edu.kit.datamanager.notification.subscription.impl;
 
 import edu.kit.datamanager.notification.domain.HandlerProperties;
 import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
 import edu.kit.datamanager.notification.domain.Subscription;
 import edu.kit.datamanager.notification.subscription.ISubscriptionHandler;
+import edu.kit.datamanager.notification.subscription.NotificationChunkCursor;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.mail.SimpleMailMessage;
 import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Component;
 
 /**
+ * Handler sending notifications via email. Emails are sent via the
+ * {@link MailTransportPool}, which reuses SMTP connections and sends emails
+ * queued by concurrent deliveries in batches. If handlers are called
+ * asynchronously, the delivery completes as soon as the email was sent
+ * without occupying a handler thread while waiting.
+ *
+ * The email bodies are rendered using the templates provided by
+ * {@link EmailTemplates}, which are compiled in {@link #configure()}.
  *
  * @author jejkal
  */
@@ -44,6 +60,9 @@ public class EmailHandler implements ISubscriptionHandler{
   private Logger LOG;
   @Autowired(required = false)
   public JavaMailSender emailSender;
+  @Autowired
+  private MailTransportPool mailTransport;
+  private EmailTemplates templates;
 
   public final static String EMAIL_KEY = "email";
   public final static String DETAILS_KEY = "details";
@@ -84,18 +103,78 @@ public class EmailHandler implements ISubscriptionHandler{
 
   @Override
   public boolean configure(){
-    //read mail server config from application.properties_
+    //mail server config is read from application.properties, templates are compiled once
+    try{
+      templates = EmailTemplates.load();
+    } catch(IOException ex){
+      LOG.error("Failed to load email templates.", ex);
+      return false;
+    }
     return true;
   }
 
   @Override
   public boolean handleNotifications(Notification[] notifications, Map<String, String> properties){
-    SimpleMailMessage message = new SimpleMailMessage();
-    message.setTo(properties.get(EMAIL_KEY));
-    message.setSubject("New Notifications from KITDM Instance");
-    message.setText("This works!");
-    emailSender.send(message);
-    return true;
+    return await(sendNotifications(notifications, properties));
+  }
+
+  @Override
+  public CompletionStage<Boolean> handleNotificationsAsync(Notification[] chunk, NotificationChunkCursor cursor, Map<String, String> properties, Executor executor){
+    return sendNotifications(chunk, properties);
+  }
+
+  @Override
+  public boolean isAggregateOnly(Map<String, String> properties){
+    //SHORT emails only contain the number of notifications
+    return DETAILS.SHORT.name().equals(properties.get(DETAILS_KEY));
+  }
+
+  @Override
+  public boolean handleDigest(NotificationDigest digest, Map<String, String> properties){
+    if(!isAggregateOnly(properties)){
+      return ISubscriptionHandler.super.handleDigest(digest, properties);
+    }
+    return await(send(properties.get(EMAIL_KEY), templates.renderShort(digest)));
+  }
+
+  private CompletableFuture<Boolean> sendNotifications(Notification[] notifications, Map<String, String> properties){
+    if(isAggregateOnly(properties)){
+      //SHORT subscriptions delivered without a maintained digest, e.g. LIVE subscriptions
+      NotificationDigest digest = new NotificationDigest();
+      for(Notification notification : notifications){
+        digest.add(notification, 0);
+      }
+      return send(properties.get(EMAIL_KEY), templates.renderShort(digest));
+    }
+    return send(properties.get(EMAIL_KEY), templates.renderFull(notifications));
+  }
+
+  private CompletableFuture<Boolean> send(String to, String text){
+    try{
+      MimeMessage message = mailTransport.createMimeMessage();
+      MimeMessageHelper helper = new MimeMessageHelper(message, "UTF-8");
+      helper.setTo(to);
+      helper.setSubject("New Notifications from KITDM Instance");
+      helper.setText(text);
+      return mailTransport.send(message);
+    } catch(MessagingException ex){
+      LOG.error("Failed to create email to " + to + ".", ex);
+      return CompletableFuture.completedFuture(Boolean.FALSE);
+    }
+  }
+
+  private boolean await(CompletableFuture<Boolean> result){
+    try{
+      return result.get();
+    } catch(InterruptedException ex){
+      //interrupted due to a timeout, do not send the email later if still queued
+      result.cancel(false);
+      Thread.currentThread().interrupt();
+      return false;
+    } catch(ExecutionException ex){
+      LOG.error("Failed to send email.", ex.getCause());
+      return false;
+    }
   }
 
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription.impl;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+ * Mustache templates of email bodies. The templates are compiled once and
+ * rendered into a buffer reused by each thread. As SHORT bodies only depend
+ * on the number of notifications per severity, identical SHORT bodies are
+ * rendered once and shared by all receipients.
+ *
+ * The FULL template gets the variables 'total' and 'notifications', whereas
+ * each notification provides its properties, e.g. 'severity' or 'content'.
+ * The SHORT template gets the variables 'total' and 'severities', whereas
+ * each severity provides 'severity' and 'count'.
+ *
+ * @author jejkal
+ */
+public final class EmailTemplates{
+
+  public static final String FULL_TEMPLATE = "templates/email/full.mustache";
+  public static final String SHORT_TEMPLATE = "templates/email/short.mustache";
+
+  /**
+   * The max. number of distinct SHORT bodies kept.
+   */
+  private static final int MAX_SHORT_BODIES = 1000;
+  /**
+   * The max. capacity of a buffer kept for the next rendering, so that
+   * rendering a single huge body does not occupy memory permanently.
+   */
+  private static final int MAX_BUFFER_CAPACITY = 1024 * 1024;
+
+  private final Template fullTemplate;
+  private final Template shortTemplate;
+  private final ThreadLocal<StringWriter> buffers = ThreadLocal.withInitial(StringWriter::new);
+  private final Map<List<Long>, String> shortBodies = Collections.synchronizedMap(new LinkedHashMap<List<Long>, String>(16, 0.75f, true){
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<List<Long>, String> eldest){
+      return size() > MAX_SHORT_BODIES;
+    }
+  });
+
+  EmailTemplates(Template fullTemplate, Template shortTemplate){
+    this.fullTemplate = fullTemplate;
+    this.shortTemplate = shortTemplate;
+  }
+
+  /**
+   * Load and compile the templates from the classpath.
+   *
+   * @return The compiled templates.
+   *
+   * @throws IOException if a template could not be read.
+   */
+  public static EmailTemplates load() throws IOException{
+    //emails are sent as plain text, so no escaping is needed
+    Mustache.Compiler compiler = Mustache.compiler().escapeHTML(false).nullValue("");
+    return new EmailTemplates(compile(compiler, FULL_TEMPLATE), compile(compiler, SHORT_TEMPLATE));
+  }
+
+  private static Template compile(Mustache.Compiler compiler, String location) throws IOException{
+    try(Reader reader = new InputStreamReader(new ClassPathResource(location).getInputStream(), StandardCharsets.UTF_8)){
+      return compiler.compile(reader);
+    }
+  }
+
+  /**
+   * Render the FULL body listing all provided notifications.
+   *
+   * @param notifications The notifications.
+   *
+   * @return The body.
+   */
+  public String renderFull(Notification[] notifications){
+    Map<String, Object> context = new HashMap<>();
+    context.put("total", notifications.length);
+    context.put("notifications", notifications);
+    return render(fullTemplate, context);
+  }
+
+  /**
+   * Render the SHORT body summarizing the provided digest. The body is
+   * rendered only once for all digests with the same counts.
+   *
+   * @param digest The digest.
+   *
+   * @return The body.
+   */
+  public String renderShort(NotificationDigest digest){
+    Notification.SEVERITY[] severities = Notification.SEVERITY.values();
+    List<Long> counts = new ArrayList<>(severities.length + 1);
+    counts.add(digest.getTotal());
+    for(Notification.SEVERITY severity : severities){
+      counts.add(digest.getCountsBySeverity().getOrDefault(severity, 0l));
+    }
+    String body = shortBodies.get(counts);
+    if(body == null){
+      List<Map<String, Object>> severityContexts = new ArrayList<>();
+      for(int i = 0; i < severities.length; i++){
+        if(counts.get(i + 1) > 0){
+          Map<String, Object> severityContext = new HashMap<>();
+          severityContext.put("severity", severities[i]);
+          severityContext.put("count", counts.get(i + 1));
+          severityContexts.add(severityContext);
+        }
+      }
+      Map<String, Object> context = new HashMap<>();
+      context.put("total", digest.getTotal());
+      context.put("severities", severityContexts);
+      body = render(shortTemplate, context);
+      shortBodies.put(counts, body);
+    }
+    return body;
+  }
+
+  private String render(Template template, Object context){
+    StringWriter buffer = buffers.get();
+    buffer.getBuffer().setLength(0);
+    template.execute(context, buffer);
+    String result = buffer.toString();
+    if(buffer.getBuffer().capacity() > MAX_BUFFER_CAPACITY){
+      buffers.remove();
+    }
+    return result;
+  }
+}
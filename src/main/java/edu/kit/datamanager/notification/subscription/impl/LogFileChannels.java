@@ -0,0 +1,505 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription.impl;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of open log files the {@link LogFileHandler} appends to. Files are
+ * kept open between deliveries, whereas at most 'repo.logfile.maxOpenFiles'
+ * files are open at once. If exceeded, the least recently used file is
+ * closed. Files not written for 'repo.logfile.idleMillis' milliseconds are
+ * closed, too.
+ *
+ * Appended content is queued per file and written by
+ * 'repo.logfile.writerThreads' background writers. All content queued for a
+ * file, e.g. by multiple subscriptions targeting the same file, is written at
+ * once (group commit). When an append is regarded as successful depends on
+ * 'repo.logfile.fsyncPolicy':
+ * <ul>
+ * <li>NEVER: after the content was written, leaving it to the operating
+ * system when it is stored on disk.</li>
+ * <li>INTERVAL: after the next forced write to disk, which happens every
+ * 'repo.logfile.fsyncIntervalMillis' milliseconds.</li>
+ * <li>BATCH: after the content was written and forced to disk together with
+ * all content written at once.</li>
+ * </ul>
+ *
+ * Queued content whose future was cancelled, e.g. as the handler call timed
+ * out, is skipped, so that it is not written in addition to the retry of the
+ * delivery.
+ *
+ * Before a batch is written, the file is rolled over according to the
+ * {@link LogFileRolling} policy of the first append of the batch. Rolled files
+ * are compressed by a separate thread.
+ *
+ * @author jejkal
+ */
+@Component
+public class LogFileChannels{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LogFileChannels.class);
+
+  /**
+   * The durability policy of appended content.
+   */
+  public enum FSYNC_POLICY{
+    NEVER,
+    INTERVAL,
+    BATCH;
+  }
+
+  private final int maxOpenFiles;
+  private final long idleNanos;
+  private final FSYNC_POLICY fsyncPolicy;
+  private final LinkedHashMap<Path, OpenFile> files = new LinkedHashMap<>(16, 0.75f, true);
+  private final ExecutorService writers;
+  private final ExecutorService compressor;
+  private final ScheduledExecutorService fsyncTimer;
+  private final Clock clock;
+
+  @Autowired
+  public LogFileChannels(ApplicationProperties applicationProperties){
+    this(applicationProperties, Clock.systemUTC());
+  }
+
+  LogFileChannels(ApplicationProperties applicationProperties, Clock clock){
+    this.clock = clock;
+    this.maxOpenFiles = Math.max(1, applicationProperties.getLogfileMaxOpenFiles());
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, applicationProperties.getLogfileIdleMillis()));
+    String policy = applicationProperties.getLogfileFsyncPolicy();
+    this.fsyncPolicy = (policy == null || policy.isEmpty()) ? FSYNC_POLICY.NEVER : FSYNC_POLICY.valueOf(policy.toUpperCase(Locale.ROOT));
+    this.writers = Executors.newFixedThreadPool(Math.max(1, applicationProperties.getLogfileWriterThreads()), new CustomizableThreadFactory("logfile-writer-"));
+    this.compressor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("logfile-compress-"));
+    if(fsyncPolicy == FSYNC_POLICY.INTERVAL){
+      long intervalMillis = Math.max(1, applicationProperties.getLogfileFsyncIntervalMillis());
+      fsyncTimer = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("logfile-fsync-"));
+      fsyncTimer.scheduleWithFixedDelay(this::forceAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    } else{
+      fsyncTimer = null;
+    }
+  }
+
+  /**
+   * Content waiting to be written and the future completed afterwards.
+   */
+  private static final class PendingWrite{
+
+    private final ByteBuffer header;
+    private final ByteBuffer content;
+    private final LogFileRolling rolling;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+    PendingWrite(ByteBuffer header, ByteBuffer content, LogFileRolling rolling){
+      this.header = header;
+      this.content = content;
+      this.rolling = rolling;
+    }
+  }
+
+  /**
+   * An open log file. Pending writes are drained by at most one writer at a
+   * time. Writing, forcing and closing is synchronized on the instance.
+   */
+  private final class OpenFile{
+
+    private final Path path;
+    private FileChannel channel;
+    private LocalDate segmentDay;
+    private final ConcurrentLinkedQueue<PendingWrite> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final List<PendingWrite> unforced = new ArrayList<>();
+    private volatile boolean hasUnforced = false;
+    private volatile long lastUsed = System.nanoTime();
+    private boolean closed = false;
+
+    OpenFile(Path path) throws IOException{
+      this.path = path;
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      //content written before belongs to the day of the last modification
+      this.segmentDay = (channel.size() > 0) ? Files.getLastModifiedTime(path).toInstant().atZone(ZoneOffset.UTC).toLocalDate() : LocalDate.now(clock);
+    }
+
+    /**
+     * Queue the provided write and schedule draining if not yet scheduled.
+     */
+    void enqueue(PendingWrite write){
+      lastUsed = System.nanoTime();
+      pending.add(write);
+      schedule();
+    }
+
+    private void schedule(){
+      if(scheduled.compareAndSet(false, true)){
+        try{
+          writers.execute(this::drain);
+        } catch(RejectedExecutionException ex){
+          //shutting down
+          scheduled.set(false);
+          failPending();
+        }
+      }
+    }
+
+    /**
+     * Check if no write is pending, so that the file can be closed without
+     * waiting.
+     */
+    boolean isIdle(){
+      return pending.isEmpty() && !scheduled.get() && !hasUnforced;
+    }
+
+    void drain(){
+      List<PendingWrite> batch = new ArrayList<>();
+      PendingWrite write;
+      while((write = pending.poll()) != null){
+        if(!write.result.isCancelled()){
+          batch.add(write);
+        }
+      }
+      boolean written = write(batch);
+      scheduled.set(false);
+      if(!written || fsyncPolicy != FSYNC_POLICY.INTERVAL){
+        //completed after resetting the schedule, so that the file is idle when the caller continues
+        batch.forEach((w) -> w.result.complete(written));
+      }
+      if(!written){
+        //reopen the file with the next delivery
+        remove(this);
+        failPending();
+      } else if(!pending.isEmpty()){
+        schedule();
+      }
+    }
+
+    /**
+     * Write the provided batch. If 'repo.logfile.fsyncPolicy' is INTERVAL,
+     * the batch is completed by the next forced write.
+     */
+    synchronized boolean write(List<PendingWrite> batch){
+      if(batch.isEmpty()){
+        return true;
+      }
+      if(closed){
+        return false;
+      }
+      try{
+        LogFileRolling rolling = batch.get(0).rolling;
+        if(rolling.isEnabled()){
+          long append = 0;
+          for(PendingWrite w : batch){
+            append += w.content.remaining();
+          }
+          LocalDate today = LocalDate.now(clock);
+          if(rolling.isRolloverRequired(channel.size(), append, segmentDay, today)){
+            roll(rolling, today);
+          }
+        }
+        List<ByteBuffer> buffers = new ArrayList<>(batch.size() + 1);
+        if(channel.size() == 0){
+          buffers.add(batch.get(0).header.duplicate());
+        }
+        batch.forEach((w) -> buffers.add(w.content));
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+        //a gathering write usually writes all buffers at once
+        while(array[array.length - 1].hasRemaining()){
+          channel.write(array);
+        }
+        if(fsyncPolicy == FSYNC_POLICY.BATCH){
+          channel.force(false);
+        } else if(fsyncPolicy == FSYNC_POLICY.INTERVAL){
+          unforced.addAll(batch);
+          hasUnforced = true;
+        }
+        lastUsed = System.nanoTime();
+        return true;
+      } catch(IOException ex){
+        LOGGER.error("Failed to write to log file " + path + ".", ex);
+        return false;
+      }
+    }
+
+    /**
+     * Rename the active file and continue with a new, empty file.
+     */
+    private void roll(LogFileRolling rolling, LocalDate today) throws IOException{
+      //content written before has to be forced before the file is renamed
+      force();
+      channel.close();
+      Path rolled;
+      int index = 1;
+      do{
+        rolled = path.resolveSibling(path.getFileName() + "." + segmentDay + "." + index++);
+      } while(Files.exists(rolled) || Files.exists(rolled.resolveSibling(rolled.getFileName() + ".gz")));
+      Files.move(path, rolled);
+      LOGGER.debug("Rolled log file {} over to {}.", path, rolled);
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      segmentDay = today;
+      if(rolling.isCompress()){
+        Path source = rolled;
+        try{
+          compressor.execute(() -> compress(source));
+        } catch(RejectedExecutionException ex){
+          LOGGER.warn("Rolled log file {} is not compressed while shutting down.", source);
+        }
+      }
+    }
+
+    synchronized void force(){
+      if(closed || unforced.isEmpty()){
+        return;
+      }
+      boolean forced = false;
+      try{
+        channel.force(false);
+        forced = true;
+      } catch(IOException ex){
+        LOGGER.error("Failed to force log file " + path + " to disk.", ex);
+      }
+      for(PendingWrite w : unforced){
+        w.result.complete(forced);
+      }
+      unforced.clear();
+      hasUnforced = false;
+    }
+
+    synchronized void close(){
+      if(closed){
+        return;
+      }
+      force();
+      closed = true;
+      try{
+        channel.close();
+      } catch(IOException ex){
+        LOGGER.warn("Failed to close log file " + path + ".", ex);
+      }
+    }
+
+    void failPending(){
+      PendingWrite write;
+      while((write = pending.poll()) != null){
+        write.result.complete(Boolean.FALSE);
+      }
+    }
+  }
+
+  /**
+   * Append the provided content to the provided file. If the file is empty,
+   * the provided header is written first. Content appended to the same file
+   * concurrently is written using a single call.
+   *
+   * @param file The file.
+   * @param header The header, e.g. the names of all columns.
+   * @param content The encoded content.
+   *
+   * @return A future completed with TRUE if the content was written according
+   * to 'repo.logfile.fsyncPolicy' or FALSE if it could not be written.
+   */
+  public CompletableFuture<Boolean> append(Path file, ByteBuffer header, ByteBuffer content){
+    return append(file, header, content, LogFileRolling.NONE);
+  }
+
+  /**
+   * Append the provided content to the provided file, which is rolled over
+   * according to the provided policy. If multiple subscriptions with
+   * different policies target the same file, the policy of any of them may
+   * be applied.
+   *
+   * @param file The file.
+   * @param header The header, e.g. the names of all columns.
+   * @param content The encoded content.
+   * @param rolling The rolling policy.
+   *
+   * @return A future completed with TRUE if the content was written according
+   * to 'repo.logfile.fsyncPolicy' or FALSE if it could not be written.
+   * Cancelling the future skips the content if it was not written yet.
+   */
+  public CompletableFuture<Boolean> append(Path file, ByteBuffer header, ByteBuffer content, LogFileRolling rolling){
+    PendingWrite write = new PendingWrite(header, content, rolling);
+    Path path = file.toAbsolutePath().normalize();
+    List<OpenFile> evicted;
+    synchronized(this){
+      OpenFile openFile = files.get(path);
+      if(openFile == null){
+        try{
+          LOGGER.trace("Opening log file {}.", path);
+          openFile = new OpenFile(path);
+        } catch(IOException ex){
+          LOGGER.error("Failed to open log file " + path + ".", ex);
+          return CompletableFuture.completedFuture(Boolean.FALSE);
+        }
+        files.put(path, openFile);
+      }
+      //enqueue while holding the cache lock, so that the file is not closed concurrently
+      openFile.enqueue(write);
+      evicted = evict();
+    }
+    evicted.forEach(OpenFile::close);
+    return write.result;
+  }
+
+  /**
+   * Get the number of currently open files.
+   *
+   * @return The number of open files.
+   */
+  public synchronized int getOpenFiles(){
+    return files.size();
+  }
+
+  /**
+   * Close all files not written for 'repo.logfile.idleMillis' milliseconds.
+   */
+  @Scheduled(fixedDelayString = "${repo.logfile.idleMillis:60000}")
+  public void closeIdle(){
+    long now = System.nanoTime();
+    List<OpenFile> idle = new ArrayList<>();
+    synchronized(this){
+      Iterator<OpenFile> it = files.values().iterator();
+      while(it.hasNext()){
+        OpenFile openFile = it.next();
+        if(now - openFile.lastUsed >= idleNanos && openFile.isIdle()){
+          it.remove();
+          idle.add(openFile);
+        }
+      }
+    }
+    idle.forEach(OpenFile::close);
+  }
+
+  @PreDestroy
+  public void closeAll(){
+    //pending writes are still written
+    writers.shutdown();
+    try{
+      if(!writers.awaitTermination(30, TimeUnit.SECONDS)){
+        LOGGER.warn("Log file writers did not terminate in time.");
+      }
+    } catch(InterruptedException ex){
+      LOGGER.warn("Interrupted while waiting for log file writers to terminate.", ex);
+      Thread.currentThread().interrupt();
+    }
+    if(fsyncTimer != null){
+      fsyncTimer.shutdownNow();
+    }
+    compressor.shutdown();
+    List<OpenFile> open;
+    synchronized(this){
+      open = new ArrayList<>(files.values());
+      files.clear();
+    }
+    for(OpenFile openFile : open){
+      openFile.close();
+      openFile.failPending();
+    }
+    try{
+      if(!compressor.awaitTermination(30, TimeUnit.SECONDS)){
+        LOGGER.warn("Compression of rolled log files did not terminate in time.");
+      }
+    } catch(InterruptedException ex){
+      LOGGER.warn("Interrupted while waiting for compression of rolled log files.", ex);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Remove the least recently used files exceeding
+   * 'repo.logfile.maxOpenFiles'. Files with pending writes are kept open
+   * until they are idle.
+   */
+  private List<OpenFile> evict(){
+    List<OpenFile> evicted = new ArrayList<>();
+    Iterator<OpenFile> it = files.values().iterator();
+    while(files.size() > maxOpenFiles && it.hasNext()){
+      OpenFile openFile = it.next();
+      if(openFile.isIdle()){
+        it.remove();
+        evicted.add(openFile);
+      }
+    }
+    return evicted;
+  }
+
+  private void remove(OpenFile openFile){
+    synchronized(this){
+      files.remove(openFile.path, openFile);
+    }
+    openFile.close();
+  }
+
+  /**
+   * Compress the provided rolled file using gzip and delete it afterwards.
+   */
+  private static void compress(Path source){
+    Path target = source.resolveSibling(source.getFileName() + ".gz");
+    Path temp = source.resolveSibling(source.getFileName() + ".gz.tmp");
+    try{
+      try(OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))){
+        Files.copy(source, out);
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      Files.delete(source);
+    } catch(IOException ex){
+      LOGGER.error("Failed to compress rolled log file " + source + ".", ex);
+      try{
+        Files.deleteIfExists(temp);
+      } catch(IOException e){
+        LOGGER.debug("Failed to delete " + temp + ".", e);
+      }
+    }
+  }
+
+  private void forceAll(){
+    List<OpenFile> open;
+    synchronized(this){
+      open = new ArrayList<>(files.values());
+    }
+    open.forEach(OpenFile::force);
+  }
+}
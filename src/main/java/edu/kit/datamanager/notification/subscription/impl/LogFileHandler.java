@@ -19,19 +19,30 @@ import edu.kit.datamanager.notification.domain.HandlerProperties;
 import edu.kit.datamanager.notification.domain.Notification;
 import edu.kit.datamanager.notification.domain.Subscription;
 import edu.kit.datamanager.notification.subscription.ISubscriptionHandler;
+import edu.kit.datamanager.notification.subscription.NotificationChunkCursor;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 /**
+ * Handler appending notifications to a local file. Files are kept open by
+ * {@link LogFileChannels}, which writes the notifications of all deliveries
+ * to the same file together in the background. A delivery succeeds as soon as
+ * its notifications have been written according to
+ * 'repo.logfile.fsyncPolicy'. Optionally, files are rolled over by size or
+ * daily as described in {@link LogFileRolling}.
  *
  * @author jejkal
  */
@@ -40,9 +51,18 @@ public class LogFileHandler implements ISubscriptionHandler{
 
   @Autowired
   private Logger LOG;
+  @Autowired
+  private LogFileChannels channels;
   public final static String FILENAME_KEY = "filename";
 
-  private final HandlerProperties properties = HandlerProperties.create().addProperty(FILENAME_KEY, "The local filename the notifications are written to.");
+  private static final ByteBuffer HEADER = ByteBuffer.wrap("severity;content;createdAt;senderType;senderId;expiresAt\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC);
+
+  private final HandlerProperties properties = HandlerProperties.create().
+          addProperty(FILENAME_KEY, "The local filename the notifications are written to.").
+          addProperty(LogFileRolling.MAX_SIZE_KEY, "Optional max. size of the file, e.g. 10MB. If exceeded, the file is rolled over.").
+          addProperty(LogFileRolling.ROLLOVER_KEY, "Optional time-based rollover of the file, which is either NONE or DAILY.").
+          addProperty(LogFileRolling.COMPRESS_KEY, "Optional flag, whether rolled files are compressed using gzip, which is true by default.");
 
   @Override
   public String getSubscriptionName(){
@@ -66,7 +86,8 @@ public class LogFileHandler implements ISubscriptionHandler{
       if(!props.containsKey(FILENAME_KEY)){
         return false;
       }
-    } catch(IOException ex){
+      LogFileRolling.fromProperties(props);
+    } catch(IOException | IllegalArgumentException ex){
       return false;
     }
 
@@ -75,36 +96,46 @@ public class LogFileHandler implements ISubscriptionHandler{
 
   @Override
   public boolean handleNotifications(Notification[] notifications, Map<String, String> properties){
-    String filename = properties.get(FILENAME_KEY);
+    CompletableFuture<Boolean> result = write(notifications, properties);
     try{
-      Path file = Paths.get(filename);
-      if(!Files.exists(file)){
-        LOG.trace("Creating notification file at {}.", file);
-        Files.write(file, "severity;content;createdAt;senderType;senderId;expiresAt\n".getBytes(), StandardOpenOption.CREATE);
-      }
-      if(Files.isRegularFile(file) && Files.isWritable(file)){
-        for(Notification n : notifications){
-          Files.write(file, buildLine(n).getBytes(), StandardOpenOption.APPEND);
-        }
-      }
-    } catch(IOException ex){
-      LOG.error("Failed to handle notifications. Unable to write to file " + filename, ex);
+      return result.get();
+    } catch(InterruptedException ex){
+      //interrupted due to a timeout, do not write the notifications later if still queued
+      result.cancel(false);
+      Thread.currentThread().interrupt();
+      return false;
+    } catch(ExecutionException ex){
+      LOG.error("Failed to handle notifications. Unable to write to file " + properties.get(FILENAME_KEY), ex.getCause());
       return false;
     }
-    return true;
+  }
 
+  @Override
+  public CompletionStage<Boolean> handleNotificationsAsync(Notification[] chunk, NotificationChunkCursor cursor, Map<String, String> properties, Executor executor){
+    return write(chunk, properties);
+  }
+
+  private CompletableFuture<Boolean> write(Notification[] notifications, Map<String, String> properties){
+    Path file = Paths.get(properties.get(FILENAME_KEY));
+    StringBuilder lines = new StringBuilder(notifications.length * 128);
+    for(Notification n : notifications){
+      appendLine(lines, n);
+    }
+    return channels.append(file, HEADER, ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8)), LogFileRolling.fromProperties(properties));
   }
 
-  private String buildLine(Notification notification){
-    StringBuilder builder = new StringBuilder();
-    builder = builder.append(notification.getSeverity().toString()).append(";").
-            append(notification.getContent()).append(";").
-            append(DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC).format(notification.getCreatedAt())).append(";").
+  private void appendLine(StringBuilder builder, Notification notification){
+    builder.append(notification.getSeverity().toString()).append(";").
+            append(notification.getContent()).append(";");
+    DATE_FORMAT.formatTo(notification.getCreatedAt(), builder);
+    builder.append(";").
             append(notification.getSenderType()).append(";").
             append(notification.getSenderId()).append(";").
-            append(notification.getSenderType()).append(";").
-            append((notification.getExpiresAt() == null) ? "" : DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC).format(notification.getExpiresAt())).append("\n");
-    return builder.toString();
+            append(notification.getSenderType()).append(";");
+    if(notification.getExpiresAt() != null){
+      DATE_FORMAT.formatTo(notification.getExpiresAt(), builder);
+    }
+    builder.append("\n");
   }
 
 }
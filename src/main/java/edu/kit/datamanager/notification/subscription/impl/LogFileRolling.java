@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription.impl;
+
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Rolling policy of a log file written by the {@link LogFileHandler}. The
+ * active file is rolled over, i.e. renamed to
+ * '&lt;filename&gt;.&lt;date&gt;.&lt;index&gt;', if appending would exceed
+ * its max. size or, if rolled daily, on the first append of a new day (UTC).
+ * Rolled files are compressed using gzip in the background.
+ *
+ * @author jejkal
+ */
+public final class LogFileRolling{
+
+  public final static String MAX_SIZE_KEY = "maxSize";
+  public final static String ROLLOVER_KEY = "rollover";
+  public final static String COMPRESS_KEY = "compress";
+
+  /**
+   * The time-based rollover.
+   */
+  public enum ROLLOVER{
+    NONE,
+    DAILY;
+  }
+
+  /**
+   * Never roll over.
+   */
+  public static final LogFileRolling NONE = new LogFileRolling(0, ROLLOVER.NONE, false);
+
+  private final long maxSize;
+  private final ROLLOVER rollover;
+  private final boolean compress;
+
+  LogFileRolling(long maxSize, ROLLOVER rollover, boolean compress){
+    this.maxSize = maxSize;
+    this.rollover = rollover;
+    this.compress = compress;
+  }
+
+  /**
+   * Obtain the rolling policy from the provided subscription properties.
+   *
+   * @param properties The properties of a logfile subscription.
+   *
+   * @return The rolling policy.
+   *
+   * @throws IllegalArgumentException if a property value is invalid.
+   */
+  public static LogFileRolling fromProperties(Map<String, String> properties){
+    String maxSize = properties.get(MAX_SIZE_KEY);
+    String rollover = properties.get(ROLLOVER_KEY);
+    String compress = properties.get(COMPRESS_KEY);
+    if(maxSize == null && rollover == null){
+      return NONE;
+    }
+    if(compress != null && !"true".equalsIgnoreCase(compress) && !"false".equalsIgnoreCase(compress)){
+      throw new IllegalArgumentException("Invalid value '" + compress + "' of property " + COMPRESS_KEY + ".");
+    }
+    return new LogFileRolling((maxSize == null) ? 0 : parseSize(maxSize),
+            (rollover == null) ? ROLLOVER.NONE : ROLLOVER.valueOf(rollover.toUpperCase(Locale.ROOT)),
+            compress == null || Boolean.parseBoolean(compress));
+  }
+
+  /**
+   * Parse a size, which is a number of bytes followed by an optional unit,
+   * e.g. 500KB, 10MB or 1GB.
+   */
+  static long parseSize(String value){
+    String size = value.trim().toUpperCase(Locale.ROOT);
+    long factor = 1;
+    if(size.endsWith("KB")){
+      factor = 1024l;
+    } else if(size.endsWith("MB")){
+      factor = 1024l * 1024l;
+    } else if(size.endsWith("GB")){
+      factor = 1024l * 1024l * 1024l;
+    }
+    if(factor > 1){
+      size = size.substring(0, size.length() - 2).trim();
+    } else if(size.endsWith("B")){
+      size = size.substring(0, size.length() - 1).trim();
+    }
+    long result;
+    try{
+      result = Long.parseLong(size) * factor;
+    } catch(NumberFormatException ex){
+      throw new IllegalArgumentException("Invalid value '" + value + "' of property " + MAX_SIZE_KEY + ".", ex);
+    }
+    if(result <= 0){
+      throw new IllegalArgumentException("Invalid value '" + value + "' of property " + MAX_SIZE_KEY + ".");
+    }
+    return result;
+  }
+
+  /**
+   * Check if the active file has to be rolled over before appending.
+   *
+   * @param size The size of the active file.
+   * @param append The number of bytes to append.
+   * @param segmentDay The day the active file was started.
+   * @param today The current day.
+   *
+   * @return TRUE if the file has to be rolled over.
+   */
+  boolean isRolloverRequired(long size, long append, LocalDate segmentDay, LocalDate today){
+    if(size == 0){
+      return false;
+    }
+    if(maxSize > 0 && size + append > maxSize){
+      return true;
+    }
+    return rollover == ROLLOVER.DAILY && !today.equals(segmentDay);
+  }
+
+  /**
+   * Check if rolled files are compressed.
+   *
+   * @return TRUE if rolled files are compressed.
+   */
+  public boolean isCompress(){
+    return compress;
+  }
+
+  /**
+   * Check if the policy rolls files at all.
+   *
+   * @return TRUE if files are rolled.
+   */
+  public boolean isEnabled(){
+    return maxSize > 0 || rollover != ROLLOVER.NONE;
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription.impl;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mail.MailException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pool of long-lived SMTP sessions used for sending emails. Messages are
+ * queued by {@link #send(MimeMessage)} and are sent by
+ * 'repo.mail.connections' sender threads, each keeping its own authenticated
+ * transport connected as long as messages arrive at least every
+ * 'repo.mail.idleMillis' milliseconds. Each sender takes all queued messages
+ * up to 'repo.mail.batchSize' at once and sends them via its connection, so
+ * that the connection setup and TLS handshake is not repeated for each
+ * message. If sending fails, the sender reconnects and retries the message
+ * once. Queued messages whose future was cancelled, e.g. as the handler call
+ * timed out, are skipped, so that they are not sent in addition to the retry
+ * of the delivery.
+ *
+ * The pool is only used if the injected mail sender is a
+ * {@link JavaMailSenderImpl}, which provides the session and the server
+ * settings. Otherwise, or if 'repo.mail.connections' is 0, messages are sent
+ * directly via the mail sender.
+ *
+ * @author jejkal
+ */
+@Component
+public class MailTransportPool{
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MailTransportPool.class);
+
+  private final JavaMailSender emailSender;
+  private final int connections;
+  private final int batchSize;
+  private final long idleMillis;
+  private final LinkedBlockingQueue<PendingMail> queue = new LinkedBlockingQueue<>();
+  private ExecutorService senders;
+  private volatile boolean running = false;
+  private boolean stopped = false;
+
+  @Autowired
+  public MailTransportPool(Optional<JavaMailSender> emailSender, ApplicationProperties applicationProperties){
+    this.emailSender = emailSender.orElse(null);
+    this.connections = (this.emailSender instanceof JavaMailSenderImpl) ? Math.max(0, applicationProperties.getMailConnections()) : 0;
+    this.batchSize = Math.max(1, applicationProperties.getMailBatchSize());
+    this.idleMillis = Math.max(1, applicationProperties.getMailIdleMillis());
+  }
+
+  /**
+   * A queued message and the future completed after sending it.
+   */
+  private static final class PendingMail{
+
+    private final MimeMessage message;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+    PendingMail(MimeMessage message){
+      this.message = message;
+    }
+  }
+
+  /**
+   * Check if a mail sender is available.
+   *
+   * @return TRUE if messages can be sent.
+   */
+  public boolean isAvailable(){
+    return emailSender != null;
+  }
+
+  /**
+   * Create a new message to be sent via {@link #send(MimeMessage)}.
+   *
+   * @return A new, empty message.
+   */
+  public MimeMessage createMimeMessage(){
+    return emailSender.createMimeMessage();
+  }
+
+  /**
+   * Send the provided message. If the pool is enabled, the message is queued
+   * and sent by one of the sender threads. Otherwise, it is sent directly
+   * before this method returns.
+   *
+   * @param message The message to send.
+   *
+   * @return A future completed with TRUE if the message was sent or FALSE if
+   * sending failed or the pool was stopped before. Cancelling the future
+   * skips the message if it was not sent yet.
+   */
+  public CompletableFuture<Boolean> send(MimeMessage message){
+    if(connections == 0){
+      try{
+        emailSender.send(message);
+        return CompletableFuture.completedFuture(Boolean.TRUE);
+      } catch(MailException ex){
+        LOGGER.warn("Failed to send email.", ex);
+        return CompletableFuture.completedFuture(Boolean.FALSE);
+      }
+    }
+    if(!running && !start()){
+      return CompletableFuture.completedFuture(Boolean.FALSE);
+    }
+    PendingMail mail = new PendingMail(message);
+    queue.add(mail);
+    if(!running){
+      //stopped while queueing, the message may have been missed by the senders
+      failPending();
+    }
+    return mail.result;
+  }
+
+  /**
+   * Get the number of messages waiting to be sent.
+   *
+   * @return The number of queued messages.
+   */
+  public int getQueueSize(){
+    return queue.size();
+  }
+
+  private synchronized boolean start(){
+    if(stopped){
+      return false;
+    }
+    if(!running){
+      LOGGER.info("Starting {} mail sender(s) with batch size {}.", connections, batchSize);
+      senders = Executors.newFixedThreadPool(connections, new CustomizableThreadFactory("mail-sender-"));
+      running = true;
+      for(int i = 0; i < connections; i++){
+        senders.execute(this::drain);
+      }
+    }
+    return true;
+  }
+
+  @PreDestroy
+  public synchronized void stop(){
+    stopped = true;
+    if(!running){
+      return;
+    }
+    LOGGER.info("Stopping mail senders. {} queued message(s) are not sent.", queue.size());
+    running = false;
+    senders.shutdownNow();
+    try{
+      if(!senders.awaitTermination(30, TimeUnit.SECONDS)){
+        LOGGER.warn("Mail senders did not terminate in time.");
+      }
+    } catch(InterruptedException ex){
+      LOGGER.warn("Interrupted while waiting for mail senders to terminate.", ex);
+      Thread.currentThread().interrupt();
+    }
+    failPending();
+  }
+
+  private void failPending(){
+    PendingMail mail;
+    while((mail = queue.poll()) != null){
+      mail.result.complete(Boolean.FALSE);
+    }
+  }
+
+  private void drain(){
+    List<PendingMail> batch = new ArrayList<>(batchSize);
+    Transport transport = null;
+    try{
+      while(running){
+        PendingMail first = queue.poll(idleMillis, TimeUnit.MILLISECONDS);
+        if(first == null){
+          //close idle connections instead of waiting for the server to drop them
+          transport = close(transport);
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        transport = sendBatch(transport, batch);
+        batch.clear();
+      }
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+    } finally{
+      batch.forEach((mail) -> mail.result.complete(Boolean.FALSE));
+      close(transport);
+    }
+  }
+
+  private Transport sendBatch(Transport transport, List<PendingMail> batch){
+    if(transport != null && !transport.isConnected()){
+      //connection dropped by the server while idle
+      transport = close(transport);
+    }
+    for(PendingMail mail : batch){
+      if(mail.result.isCancelled()){
+        LOGGER.debug("Skipping cancelled email.");
+        continue;
+      }
+      boolean sent = false;
+      try{
+        mail.message.setSentDate(new Date());
+        mail.message.saveChanges();
+      } catch(MessagingException ex){
+        LOGGER.warn("Failed to prepare email for sending.", ex);
+        mail.result.complete(Boolean.FALSE);
+        continue;
+      }
+      for(int attempt = 1; attempt <= 2 && !sent && running; attempt++){
+        try{
+          if(transport == null){
+            transport = connect();
+          }
+          transport.sendMessage(mail.message, mail.message.getAllRecipients());
+          sent = true;
+        } catch(SendFailedException ex){
+          //rejected by the server, e.g. due to an invalid address, retrying won't help
+          LOGGER.warn("Email rejected by the mail server.", ex);
+          break;
+        } catch(MessagingException | RuntimeException ex){
+          LOGGER.warn("Failed to send email in attempt " + attempt + ". Reconnecting.", ex);
+          transport = close(transport);
+        }
+      }
+      mail.result.complete(sent);
+    }
+    return transport;
+  }
+
+  private Transport connect() throws MessagingException{
+    JavaMailSenderImpl sender = (JavaMailSenderImpl) emailSender;
+    String protocol = sender.getProtocol() != null ? sender.getProtocol() : JavaMailSenderImpl.DEFAULT_PROTOCOL;
+    Transport transport = sender.getSession().getTransport(protocol);
+    String username = sender.getUsername();
+    String password = sender.getPassword();
+    if("".equals(username)){
+      username = null;
+      if("".equals(password)){
+        password = null;
+      }
+    }
+    transport.connect(sender.getHost(), sender.getPort(), username, password);
+    return transport;
+  }
+
+  private static Transport close(Transport transport){
+    if(transport != null){
+      try{
+        transport.close();
+      } catch(MessagingException ex){
+        LOGGER.debug("Failed to close mail transport.", ex);
+      }
+    }
+    return null;
+  }
+}
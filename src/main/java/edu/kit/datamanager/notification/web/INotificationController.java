@@ -15,11 +15,13 @@
  */
 package edu.kit.datamanager.notification.web;
 
+import edu.kit.datamanager.notification.domain.ImportSummary;
 import edu.kit.datamanager.notification.domain.Notification;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.List;
 import javax.servlet.http.HttpServletResponse;
@@ -53,6 +55,21 @@ public interface INotificationController{
           WebRequest request,
           HttpServletResponse response);
 
+  @Operation(summary = "Import a large number of notifications.", description = "Import notifications provided either as newline delimited JSON (NDJSON) or as JSON array. "
+          + "The request body is processed incrementally and notifications are persisted in chunks of 'repo.import.chunkSize' elements, each chunk in a separate transaction. "
+          + "Notifications are checked and completed in the same way as for the creation of notifications, but invalid notifications are rejected separately instead of failing the entire request. "
+          + "Instead of the created notifications, a summary of accepted and rejected notifications is returned.")
+  @ApiResponses(value = {
+    @ApiResponse(responseCode = "200", description = "The request body was processed. The import summary is returned in the response."),
+    @ApiResponse(responseCode = "400", description = "Bad request. The request body is malformed. Notifications read before the malformed part are persisted anyway, which is reflected by the returned import summary."),
+    @ApiResponse(responseCode = "401", description = "Unauthorized. Request was not authorized.")})
+  @RequestMapping(value = "/bulk",
+          consumes = {"application/x-ndjson", "application/json"},
+          produces = {"application/json"},
+          method = RequestMethod.POST)
+  ResponseEntity<ImportSummary> bulkImport(
+          @Parameter(description = "The notifications as NDJSON or JSON array.", required = true) InputStream body);
+
   @Operation(summary = "Get a resource by id.", description = "Obtain is single resource by its identifier. Depending on a user's role, accessing a specific resource may be allowed or forbidden.")
   @RequestMapping(value = {"/{id}"}, method = {RequestMethod.GET})
   @ResponseBody
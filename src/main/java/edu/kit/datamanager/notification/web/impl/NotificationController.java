@@ -15,19 +15,29 @@
  */
 package edu.kit.datamanager.notification.web.impl;
 
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
 import edu.kit.datamanager.notification.dao.INotificationDao;
+import edu.kit.datamanager.notification.dao.NotificationBulkLoader;
 import edu.kit.datamanager.notification.dao.spec.NotificationCreationDateSpec;
 import edu.kit.datamanager.notification.dao.spec.NotificationRecognizedSpec;
 import edu.kit.datamanager.notification.dao.spec.NotificationReceipientIdSpec;
 import edu.kit.datamanager.notification.dao.spec.NotificationSenderIdSpec;
 import edu.kit.datamanager.notification.dao.spec.NotificationSenderTypeSpec;
 import edu.kit.datamanager.notification.dao.spec.NotificationSeveritySpec;
+import edu.kit.datamanager.notification.domain.ImportSummary;
 import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.subscription.NotificationsPersistedEvent;
 import edu.kit.datamanager.notification.web.INotificationController;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Schema;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -36,6 +46,7 @@ import javax.validation.Valid;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
@@ -64,6 +75,18 @@ public class NotificationController implements INotificationController{
   @Autowired
   private final INotificationDao notificationDao;
 
+  @Autowired
+  private ApplicationProperties applicationProperties;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Autowired
+  private NotificationBulkLoader bulkLoader;
+
+  @Autowired
+  private ApplicationEventPublisher eventPublisher;
+
   /**
    * Default constructor.
    *
@@ -85,46 +108,122 @@ public class NotificationController implements INotificationController{
     LOG.trace("Calling create({}).", content);
 
     for(Notification notification : content){
-      notification.setId(null);
-      if(StringUtils.isEmpty(notification.getContent())){
-        return new ResponseEntity("Empty notifications are not supported.", HttpStatus.BAD_REQUEST);
-      }
-      if(Objects.isNull(notification.getReceipientId())){
-        return new ResponseEntity("Empty receipient is not allowed.", HttpStatus.BAD_REQUEST);
+      String error = checkNotification(notification);
+      if(error != null){
+        return new ResponseEntity(error, HttpStatus.BAD_REQUEST);
       }
+    }
 
-      if(Objects.isNull(notification.getSeverity())){
-        LOG.trace("Assign default severity {} to notification.", Notification.SEVERITY.INFO);
-        notification.setSeverity(Notification.SEVERITY.INFO);
-      }
+    LOG.trace("All provided notifications were checked. Persisting notifications.");
+    List<Notification> persisted = notificationDao.saveAll(content);
+    NotificationsPersistedEvent.publish(eventPublisher, persisted);
 
-      if(Objects.isNull(notification.getSenderType())){
-        LOG.trace("Assign default sender type {} and senderId 'unknown' to notification.", Notification.SENDER_TYPE.SYSTEM);
-        notification.setSenderType(Notification.SENDER_TYPE.SYSTEM);
-        notification.setSenderId("unknown");
-      } else{
-        if(Objects.isNull(notification.getSenderId())){
-          LOG.trace("Assign default sender id 'unknown' to notification.");
-          notification.setSenderId("unknown");
+    return new ResponseEntity<>(persisted, HttpStatus.CREATED);
+  }
+
+  @Override
+  public ResponseEntity<ImportSummary> bulkImport(InputStream body){
+    LOG.trace("Calling bulkImport().");
+    ImportSummary summary = new ImportSummary();
+    int chunkSize = Math.max(1, applicationProperties.getImportChunkSize());
+    List<Notification> chunk = new ArrayList<>(chunkSize);
+    long index = 0;
+
+    try(MappingIterator<Notification> elements = objectMapper.readerFor(Notification.class).readValues(body)){
+      while(elements.hasNextValue()){
+        Notification notification;
+        try{
+          notification = elements.nextValue();
+        } catch(JsonMappingException ex){
+          LOG.debug("Failed to map element #{} to notification.", index, ex);
+          summary.reject(1, "Element #" + index + ": " + ex.getOriginalMessage());
+          index++;
+          continue;
+        }
+        String error = checkNotification(notification);
+        if(error != null){
+          summary.reject(1, "Element #" + index + ": " + error);
+        } else{
+          chunk.add(notification);
+          if(chunk.size() >= chunkSize){
+            persistChunk(chunk, summary);
+          }
         }
+        index++;
       }
+    } catch(IOException ex){
+      LOG.debug("Failed to read element #{}. Aborting import.", index, ex);
+      summary.reject(0, "Element #" + index + ": Malformed input. " + ex.getMessage());
+      summary.setAborted(true);
+    }
+    persistChunk(chunk, summary);
 
-      if(Objects.isNull(notification.getCreatedAt())){
-        LOG.trace("Setting notification creation time to now().");
-        notification.setCreatedAt(Instant.now().truncatedTo( ChronoUnit.MILLIS ));
-      }
+    LOG.trace("Bulk import finished with {} accepted and {} rejected notification(s).", summary.getAccepted(), summary.getRejected());
+    return new ResponseEntity<>(summary, (summary.isAborted()) ? HttpStatus.BAD_REQUEST : HttpStatus.OK);
+  }
 
-      LOG.trace("Resetting 'recognized' state.");
-      notification.setRecognized(Boolean.FALSE);
+  /**
+   * Persist the provided chunk of notifications in a separate transaction and
+   * clear the chunk afterwards.
+   */
+  private void persistChunk(List<Notification> chunk, ImportSummary summary){
+    if(chunk.isEmpty()){
+      return;
+    }
+    LOG.trace("Persisting chunk of {} notification(s).", chunk.size());
+    try{
+      bulkLoader.load(chunk);
+      summary.accept(chunk.size());
+      NotificationsPersistedEvent.publish(eventPublisher, chunk);
+    } catch(RuntimeException ex){
+      LOG.error("Failed to persist chunk of " + chunk.size() + " notification(s).", ex);
+      summary.reject(chunk.size(), "Failed to persist chunk of " + chunk.size() + " notification(s). " + ex.getMessage());
+    } finally{
+      chunk.clear();
     }
+  }
 
-    LOG.trace("All provided notifications were checked. Persisting notifications.");
-    content.forEach((n) -> {
-      Notification persisted = notificationDao.save(n);
-      n.setId(persisted.getId());
-    });
+  /**
+   * Check the provided notification and assign default values to all
+   * optional fields not provided.
+   *
+   * @param notification The notification to check.
+   *
+   * @return An error message if the notification is invalid, NULL otherwise.
+   */
+  private String checkNotification(Notification notification){
+    notification.setId(null);
+    if(StringUtils.isEmpty(notification.getContent())){
+      return "Empty notifications are not supported.";
+    }
+    if(Objects.isNull(notification.getReceipientId())){
+      return "Empty receipient is not allowed.";
+    }
+
+    if(Objects.isNull(notification.getSeverity())){
+      LOG.trace("Assign default severity {} to notification.", Notification.SEVERITY.INFO);
+      notification.setSeverity(Notification.SEVERITY.INFO);
+    }
+
+    if(Objects.isNull(notification.getSenderType())){
+      LOG.trace("Assign default sender type {} and senderId 'unknown' to notification.", Notification.SENDER_TYPE.SYSTEM);
+      notification.setSenderType(Notification.SENDER_TYPE.SYSTEM);
+      notification.setSenderId("unknown");
+    } else{
+      if(Objects.isNull(notification.getSenderId())){
+        LOG.trace("Assign default sender id 'unknown' to notification.");
+        notification.setSenderId("unknown");
+      }
+    }
+
+    if(Objects.isNull(notification.getCreatedAt())){
+      LOG.trace("Setting notification creation time to now().");
+      notification.setCreatedAt(Instant.now().truncatedTo( ChronoUnit.MILLIS ));
+    }
 
-    return new ResponseEntity<>(content, HttpStatus.CREATED);
+    LOG.trace("Resetting 'recognized' state.");
+    notification.setRecognized(Boolean.FALSE);
+    return null;
   }
 
   @Override
@@ -15,10 +15,14 @@
  */
 package edu.kit.datamanager.notification.web.impl;
 
+import edu.kit.datamanager.notification.dao.INotificationDao;
 import edu.kit.datamanager.notification.dao.ISubscriptionDao;
 import edu.kit.datamanager.notification.domain.HandlerProperties;
 import edu.kit.datamanager.notification.domain.Subscription;
+import edu.kit.datamanager.notification.subscription.DigestAggregator;
 import edu.kit.datamanager.notification.subscription.ISubscriptionHandler;
+import edu.kit.datamanager.notification.subscription.SubscriptionIndex;
+import edu.kit.datamanager.notification.subscription.SubscriptionScheduler;
 import edu.kit.datamanager.notification.web.ISubscriptionController;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Schema;
@@ -62,17 +66,42 @@ public class SubscriptionController implements ISubscriptionController{
   @Autowired
   private final ISubscriptionHandler[] subscriptionHandlers;
 
+  @Autowired
+  private final SubscriptionScheduler scheduler;
+
+  @Autowired
+  private final INotificationDao notificationDao;
+
+  @Autowired
+  private final SubscriptionIndex index;
+
+  @Autowired
+  private final DigestAggregator aggregator;
+
   /**
    * Default constructor.
    *
    * @param subscriptionDao Subscription Dao added e.g. via dependency
    * injection.
+   * @param subscriptionHandlers All available subscription handlers.
+   * @param scheduler The scheduler which has to be informed about changed
+   * subscriptions.
+   * @param notificationDao Notification Dao used to obtain the last
+   * notification id when creating subscriptions.
+   * @param index The index which has to be informed about changed
+   * subscriptions.
+   * @param aggregator The aggregator whose digests of deleted subscriptions
+   * have to be removed.
    *
    */
-  public SubscriptionController(ISubscriptionDao subscriptionDao, final ISubscriptionHandler[] subscriptionHandlers){
+  public SubscriptionController(ISubscriptionDao subscriptionDao, final ISubscriptionHandler[] subscriptionHandlers, SubscriptionScheduler scheduler, INotificationDao notificationDao, SubscriptionIndex index, DigestAggregator aggregator){
     super();
     this.subscriptionDao = subscriptionDao;
     this.subscriptionHandlers = subscriptionHandlers;
+    this.scheduler = scheduler;
+    this.notificationDao = notificationDao;
+    this.index = index;
+    this.aggregator = aggregator;
   }
 
   @Override
@@ -113,12 +142,16 @@ public class SubscriptionController implements ISubscriptionController{
       LOG.trace("No disabled flag provided, setting default value {}.", Boolean.FALSE);
       subscription.setDisabled(Boolean.FALSE);
     }
-    //setting firedLast and firesNext in order not to send all old notifications in the first cycle
+    //setting lastNotificationId, firedLast and firesNext in order not to send all old notifications in the first cycle
+    Long lastNotificationId = notificationDao.findMaxId();
+    subscription.setLastNotificationId((lastNotificationId != null) ? lastNotificationId : 0l);
     subscription.setFiredLast(Instant.now().truncatedTo( ChronoUnit.MILLIS ));
     subscription.setFiresNext(Instant.now().truncatedTo( ChronoUnit.MILLIS ));
 
     LOG.trace("Persisting new subscription.");
     subscription = subscriptionDao.save(subscription);
+    index.put(subscription);
+    scheduler.schedule(subscription);
     LOG.trace("Returning persisted subscription.");
     String uriLink = WebMvcLinkBuilder.linkTo(WebMvcLinkBuilder.methodOn(this.getClass()).getById(Long.toString(subscription.getId()), 1l, request, response)).toString();
     LOG.trace("Created resource link is: {}", uriLink);
@@ -214,6 +247,8 @@ public class SubscriptionController implements ISubscriptionController{
     LOG.trace("Updating disabled flag.");
     foundSubscription.setDisabled((subscription.getDisabled() != null) ? subscription.getDisabled() : foundSubscription.getDisabled());
     foundSubscription = subscriptionDao.save(foundSubscription);
+    index.put(foundSubscription);
+    scheduler.schedule(foundSubscription);
 
     return ResponseEntity.ok(foundSubscription);
   }
@@ -233,6 +268,9 @@ public class SubscriptionController implements ISubscriptionController{
     } else{
       LOG.trace("Deleting subscription with id {}.", id);
       subscriptionDao.delete(result.get());
+      index.remove(result.get().getId());
+      aggregator.remove(result.get().getId());
+      scheduler.unschedule(result.get().getId());
     }
 
     return new ResponseEntity(HttpStatus.NO_CONTENT);
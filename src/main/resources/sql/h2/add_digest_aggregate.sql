@@ -0,0 +1,14 @@
+-- Adds the digest aggregates of subscriptions whose handler only needs a
+-- summary of pending notifications.
+--
+-- Only required for persistent H2 databases.
+CREATE SEQUENCE IF NOT EXISTS digest_aggregate_seq INCREMENT BY 50;
+CREATE TABLE IF NOT EXISTS digest_aggregate (
+  id BIGINT NOT NULL,
+  subscription_id BIGINT,
+  version BIGINT,
+  digest VARCHAR(65535),
+  rebuilt_notification_ids VARCHAR(65535),
+  PRIMARY KEY (id),
+  CONSTRAINT uk_digest_aggregate_subscription UNIQUE (subscription_id)
+);
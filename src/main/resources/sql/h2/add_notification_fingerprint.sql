@@ -0,0 +1,6 @@
+-- Adds the fingerprint column used for detecting redelivered notification messages.
+--
+-- Only required for persistent H2 databases. Existing notifications keep an
+-- empty fingerprint, which is not affected by the unique constraint.
+ALTER TABLE notification ADD COLUMN IF NOT EXISTS fingerprint VARCHAR(64);
+ALTER TABLE notification ADD CONSTRAINT uk_notification_fingerprint UNIQUE (fingerprint);
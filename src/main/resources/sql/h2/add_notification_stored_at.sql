@@ -0,0 +1,9 @@
+-- Adds the storage time of notifications and the recently delivered
+-- notification ids of subscriptions, which are used for detecting
+-- notifications committed after a subscription's cursor has passed their id.
+--
+-- Only required for persistent H2 databases. Existing notifications have no
+-- storage time and are never regarded as committed late.
+ALTER TABLE notification ADD COLUMN IF NOT EXISTS stored_at TIMESTAMP;
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS recent_notification_ids VARCHAR(65535);
+CREATE INDEX IF NOT EXISTS idx_notification_receipient_stored_at ON notification (receipient_id, stored_at);
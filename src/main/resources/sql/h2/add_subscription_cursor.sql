@@ -0,0 +1,12 @@
+-- Adds the delivery cursor of subscriptions and the index used for obtaining
+-- pending notifications by receipient and id.
+--
+-- Only required for persistent H2 databases. The cursor of existing
+-- subscriptions is initialized with the largest id of all notifications of the
+-- receipient created before the subscription fired last.
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS last_notification_id BIGINT;
+CREATE INDEX IF NOT EXISTS idx_notification_receipient_id ON notification (receipient_id, id);
+
+UPDATE subscription s SET last_notification_id = (
+  SELECT COALESCE(MAX(n.id), 0) FROM notification n WHERE n.receipient_id = s.receipient_id AND n.created_at <= s.fired_last
+) WHERE s.last_notification_id IS NULL AND s.fired_last IS NOT NULL;
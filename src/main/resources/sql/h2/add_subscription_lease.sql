@@ -0,0 +1,6 @@
+-- Adds the lease columns used for dispatching notifications in cluster mode.
+--
+-- Only required for persistent H2 databases. Existing subscriptions are not
+-- leased.
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS lease_owner VARCHAR(255);
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS lease_expires_at TIMESTAMP;
@@ -0,0 +1,9 @@
+-- Adds the version column used for detecting changed subscriptions.
+--
+-- Only required for persistent H2 databases, but also if
+-- 'spring.jpa.hibernate.ddl-auto' is set to 'update'. Existing subscriptions
+-- start with version 0.
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS version BIGINT;
+UPDATE subscription SET version = 0 WHERE version IS NULL;
+ALTER TABLE subscription ALTER COLUMN version SET DEFAULT 0;
+ALTER TABLE subscription ALTER COLUMN version SET NOT NULL;
@@ -0,0 +1,9 @@
+-- Migration of notification and subscription ids from IDENTITY columns to the
+-- pooled sequences used since sequence-based id generation was introduced.
+--
+-- Only required for persistent H2 databases, in-memory databases used for
+-- testing are created with sequences automatically. Run this script once while
+-- the service is stopped and BEFORE starting the new version. The increment
+-- must match ID_ALLOCATION_SIZE in Notification and Subscription.
+CREATE SEQUENCE IF NOT EXISTS notification_seq START WITH (SELECT COALESCE(MAX(id), 0) + 1 FROM notification) INCREMENT BY 50;
+CREATE SEQUENCE IF NOT EXISTS subscription_seq START WITH (SELECT COALESCE(MAX(id), 0) + 1 FROM subscription) INCREMENT BY 50;
@@ -0,0 +1,22 @@
+-- Adds the delivery ledger used for retrying failed deliveries.
+--
+-- Run this script once before starting the new version if
+-- 'spring.jpa.hibernate.ddl-auto' is not set to 'update'. The increment must
+-- match the allocation size of DeliveryLedgerEntry.
+BEGIN;
+
+CREATE SEQUENCE IF NOT EXISTS delivery_ledger_seq INCREMENT BY 50;
+CREATE TABLE IF NOT EXISTS delivery_ledger_entry (
+  id BIGINT NOT NULL,
+  subscription_id BIGINT,
+  from_notification_id BIGINT,
+  to_notification_id BIGINT,
+  attempts INTEGER NOT NULL,
+  next_attempt_at TIMESTAMP,
+  last_error VARCHAR(1024),
+  state VARCHAR(255),
+  PRIMARY KEY (id),
+  CONSTRAINT uk_delivery_ledger_subscription UNIQUE (subscription_id)
+);
+
+COMMIT;
@@ -0,0 +1,11 @@
+-- Adds the fingerprint column used for detecting redelivered notification messages.
+--
+-- Existing notifications keep an empty fingerprint, which is not affected by the
+-- unique constraint. Run this script once before starting the new version if
+-- 'spring.jpa.hibernate.ddl-auto' is not set to 'update'.
+BEGIN;
+
+ALTER TABLE notification ADD COLUMN IF NOT EXISTS fingerprint VARCHAR(64);
+ALTER TABLE notification ADD CONSTRAINT uk_notification_fingerprint UNIQUE (fingerprint);
+
+COMMIT;
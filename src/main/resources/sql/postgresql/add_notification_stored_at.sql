@@ -0,0 +1,14 @@
+-- Adds the storage time of notifications and the recently delivered
+-- notification ids of subscriptions, which are used for detecting
+-- notifications committed after a subscription's cursor has passed their id.
+--
+-- Existing notifications have no storage time and are never regarded as
+-- committed late. Run this script once before starting the new version if
+-- 'spring.jpa.hibernate.ddl-auto' is not set to 'update'.
+BEGIN;
+
+ALTER TABLE notification ADD COLUMN IF NOT EXISTS stored_at TIMESTAMP;
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS recent_notification_ids VARCHAR(65535);
+CREATE INDEX IF NOT EXISTS idx_notification_receipient_stored_at ON notification (receipient_id, stored_at);
+
+COMMIT;
@@ -0,0 +1,10 @@
+-- Adds the lease columns used for dispatching notifications in cluster mode.
+--
+-- Existing subscriptions are not leased. Run this script once before starting
+-- the new version if 'spring.jpa.hibernate.ddl-auto' is not set to 'update'.
+BEGIN;
+
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS lease_owner VARCHAR(255);
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS lease_expires_at TIMESTAMP;
+
+COMMIT;
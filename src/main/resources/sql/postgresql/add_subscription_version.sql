@@ -0,0 +1,14 @@
+-- Adds the version column used for detecting changed subscriptions.
+--
+-- Existing subscriptions start with version 0. Run this script once before
+-- starting the new version, also if 'spring.jpa.hibernate.ddl-auto' is set to
+-- 'update', as a version column added before without default value is not
+-- changed automatically. Subscriptions without version cannot be updated.
+BEGIN;
+
+ALTER TABLE subscription ADD COLUMN IF NOT EXISTS version BIGINT;
+UPDATE subscription SET version = 0 WHERE version IS NULL;
+ALTER TABLE subscription ALTER COLUMN version SET DEFAULT 0;
+ALTER TABLE subscription ALTER COLUMN version SET NOT NULL;
+
+COMMIT;
@@ -0,0 +1,20 @@
+-- Migration of notification and subscription ids from IDENTITY (bigserial) columns
+-- to the pooled sequences used since sequence-based id generation was introduced.
+--
+-- Run this script once while the service is stopped and BEFORE starting the new
+-- version. Otherwise, Hibernate may create the sequences itself starting at 1,
+-- which leads to duplicate keys. The increment must match ID_ALLOCATION_SIZE
+-- in Notification and Subscription.
+BEGIN;
+
+CREATE SEQUENCE IF NOT EXISTS notification_seq INCREMENT BY 50;
+SELECT setval('notification_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM notification), false);
+ALTER TABLE notification ALTER COLUMN id DROP DEFAULT;
+DROP SEQUENCE IF EXISTS notification_id_seq;
+
+CREATE SEQUENCE IF NOT EXISTS subscription_seq INCREMENT BY 50;
+SELECT setval('subscription_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM subscription), false);
+ALTER TABLE subscription ALTER COLUMN id DROP DEFAULT;
+DROP SEQUENCE IF EXISTS subscription_id_seq;
+
+COMMIT;
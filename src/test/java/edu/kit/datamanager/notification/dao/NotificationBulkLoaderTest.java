@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.dao;
+
+import edu.kit.datamanager.notification.domain.Notification;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jejkal
+ */
+public class NotificationBulkLoaderTest{
+
+  @Test
+  public void testCsvRow(){
+    Instant createdAt = Instant.ofEpochMilli(1000);
+    Notification n = new Notification();
+    n.setId(42l);
+    n.setContent("A \"quoted\", multi-line\ncontent");
+    n.setCreatedAt(createdAt);
+    n.setReceipientId("test");
+    n.setRecognized(Boolean.FALSE);
+    n.setSenderId("me");
+    n.setSenderType(Notification.SENDER_TYPE.USER);
+    n.setSeverity(Notification.SEVERITY.WARN);
+    n.setStoredAt(createdAt);
+
+    StringBuilder row = new StringBuilder();
+    NotificationBulkLoader.appendCsvRow(row, n);
+    //expiresAt and fingerprint are NULL, e.g. empty and unquoted
+    Assert.assertEquals("\"42\",\"A \"\"quoted\"\", multi-line\ncontent\",\"" + LocalDateTime.ofInstant(createdAt, ZoneId.systemDefault()) + "\",,,\"test\",\"false\",\"me\",\"USER\",\"WARN\",\"" + LocalDateTime.ofInstant(createdAt, ZoneId.systemDefault()) + "\"\n", row.toString());
+  }
+}
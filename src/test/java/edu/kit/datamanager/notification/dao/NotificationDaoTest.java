@@ -19,7 +19,9 @@ import edu.kit.datamanager.notification.domain.Notification;
 import edu.kit.datamanager.notification.domain.Notification.SEVERITY;
 import edu.kit.datamanager.notification.util.NotificationTestUtil;
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import org.junit.After;
 import org.junit.Assert;
@@ -69,6 +71,14 @@ public class NotificationDaoTest{
     Assert.assertTrue(found.isEmpty());
   }
 
+  @Test
+  public void testFindMaxId(){
+    Assert.assertNull(dao.findMaxId());
+    Notification first = dao.save(NotificationTestUtil.createNotification(SEVERITY.INFO, "First"));
+    Notification second = dao.save(NotificationTestUtil.createNotification(SEVERITY.INFO, "Second"));
+    Assert.assertEquals(Math.max(first.getId(), second.getId()), dao.findMaxId().longValue());
+  }
+
   @Test
   public void testFindNotifications(){
     Notification n = NotificationTestUtil.createNotification(SEVERITY.INFO, "First");
@@ -80,6 +90,29 @@ public class NotificationDaoTest{
     Assert.assertEquals(2, found.size());
   }
 
+  @Test
+  public void testCountAfterCursors(){
+    Notification first = NotificationTestUtil.createNotification(SEVERITY.INFO, "First");
+    first.setReceipientId("user1");
+    first = dao.save(first);
+    for(String receipientId : new String[]{"user1", "user1", "user2"}){
+      Notification n = NotificationTestUtil.createNotification(SEVERITY.INFO, "Next");
+      n.setReceipientId(receipientId);
+      dao.save(n);
+    }
+    Map<String, Long> cursors = new HashMap<>();
+    cursors.put("user1", first.getId());
+    cursors.put("user2", null);
+    cursors.put("user3", 0l);
+
+    Map<String, Long> counts = dao.countAfterCursors(cursors, Instant.now().plusSeconds(60));
+    Assert.assertEquals(2, counts.size());
+    Assert.assertEquals(Long.valueOf(2), counts.get("user1"));
+    Assert.assertEquals(Long.valueOf(1), counts.get("user2"));
+    //notifications stored later are not counted
+    Assert.assertTrue(dao.countAfterCursors(cursors, Instant.now().minusSeconds(60)).isEmpty());
+  }
+
   @Test
   public void testFindOrdered(){
     //sort by severity
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.dao;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.sql.DataSource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ *
+ * @author jejkal
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+@ActiveProfiles("test")
+public class SubscriptionStateWriterTest{
+
+  @Autowired
+  private ISubscriptionDao subscriptionDao;
+  @Autowired
+  private DataSource dataSource;
+  @Autowired
+  private EntityManager entityManager;
+
+  @Test
+  public void testWriteState(){
+    ApplicationProperties props = new ApplicationProperties();
+    props.setJdbcBatchSize(2);
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    List<Subscription> subscriptions = new ArrayList<>();
+    for(int i = 0; i < 5; i++){
+      subscriptions.add(createSubscription("user" + i));
+    }
+    subscriptions = subscriptionDao.saveAll(subscriptions);
+    entityManager.flush();
+    entityManager.clear();
+
+    for(Subscription subscription : subscriptions){
+      subscription.setFiredLast(now);
+      subscription.setFiresNext(now.plus(1, ChronoUnit.HOURS));
+      subscription.setLastNotificationId(subscription.getId() * 10);
+      //only the dispatch state is written
+      subscription.setReceipientId("changed");
+    }
+    new SubscriptionStateWriter(dataSource, props).write(subscriptions);
+
+    for(Subscription subscription : subscriptions){
+      Subscription written = subscriptionDao.findById(subscription.getId()).get();
+      Assert.assertEquals(now, written.getFiredLast());
+      Assert.assertEquals(now.plus(1, ChronoUnit.HOURS), written.getFiresNext());
+      Assert.assertEquals(Long.valueOf(subscription.getId() * 10), written.getLastNotificationId());
+      Assert.assertNotEquals("changed", written.getReceipientId());
+    }
+  }
+
+  @Test
+  public void testUnchangedRecentIdsNotWritten(){
+    Subscription subscription = createSubscription("recentUser");
+    subscription.setRecentNotificationIdsFromSet(Arrays.asList(1l, 2l));
+    subscription = subscriptionDao.saveAndFlush(subscription);
+    entityManager.clear();
+    SubscriptionStateWriter writer = new SubscriptionStateWriter(dataSource, new ApplicationProperties());
+
+    subscription.setLastNotificationId(10l);
+    subscription.setRecentNotificationIdsFromSet(Arrays.asList(3l));
+    Assert.assertTrue(writer.write(Arrays.asList(subscription), (written) -> false, null).isEmpty());
+    Subscription written = subscriptionDao.findById(subscription.getId()).get();
+    Assert.assertEquals(Long.valueOf(10l), written.getLastNotificationId());
+    Assert.assertEquals("1,2", written.getRecentNotificationIds());
+    entityManager.clear();
+
+    Assert.assertTrue(writer.write(Arrays.asList(subscription), (changed) -> true, null).isEmpty());
+    Assert.assertEquals("3", subscriptionDao.findById(subscription.getId()).get().getRecentNotificationIds());
+  }
+
+  @Test
+  public void testDeletedSubscriptionNotRecreated(){
+    Subscription subscription = subscriptionDao.saveAndFlush(createSubscription("deletedUser"));
+    entityManager.clear();
+    subscriptionDao.deleteById(subscription.getId());
+    entityManager.flush();
+
+    subscription.setFiredLast(Instant.now().truncatedTo(ChronoUnit.MILLIS));
+    new SubscriptionStateWriter(dataSource, new ApplicationProperties()).write(Arrays.asList(subscription));
+
+    Assert.assertFalse(subscriptionDao.existsById(subscription.getId()));
+  }
+
+  @Test
+  public void testConcurrentlyChangedSubscriptionNotWritten(){
+    Subscription subscription = subscriptionDao.saveAndFlush(createSubscription("changedUser"));
+    entityManager.clear();
+    Subscription stale = subscriptionDao.findById(subscription.getId()).get();
+    entityManager.clear();
+    SubscriptionStateWriter writer = new SubscriptionStateWriter(dataSource, new ApplicationProperties());
+
+    subscription.setLastNotificationId(20l);
+    Assert.assertTrue(writer.write(Arrays.asList(subscription)).isEmpty());
+    Assert.assertEquals(Long.valueOf(stale.getVersion() + 1), subscription.getVersion());
+    //written with the version obtained before, e.g. by an instance whose lease has expired
+    stale.setLastNotificationId(10l);
+    Assert.assertEquals(Arrays.asList(stale), writer.write(Arrays.asList(stale)));
+
+    Subscription written = subscriptionDao.findById(subscription.getId()).get();
+    Assert.assertEquals(Long.valueOf(20l), written.getLastNotificationId());
+    Assert.assertEquals(subscription.getVersion(), written.getVersion());
+  }
+
+  @Test
+  public void testSubscriptionLeasedByOtherOwnerNotWritten(){
+    Subscription subscription = createSubscription("leasedUser");
+    subscription.setLeaseOwner("other");
+    subscription = subscriptionDao.saveAndFlush(subscription);
+    entityManager.clear();
+    SubscriptionStateWriter writer = new SubscriptionStateWriter(dataSource, new ApplicationProperties());
+
+    subscription.setLastNotificationId(10l);
+    Assert.assertEquals(1, writer.write(Arrays.asList(subscription), (written) -> false, "me").size());
+    Assert.assertNull(subscriptionDao.findById(subscription.getId()).get().getLastNotificationId());
+    entityManager.clear();
+    Assert.assertTrue(writer.write(Arrays.asList(subscription), (written) -> false, "other").isEmpty());
+    Assert.assertEquals(Long.valueOf(10l), subscriptionDao.findById(subscription.getId()).get().getLastNotificationId());
+  }
+
+  private Subscription createSubscription(String receipientId){
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName("test");
+    subscription.setReceipientId(receipientId);
+    subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+    subscription.setDisabled(Boolean.FALSE);
+    return subscription;
+  }
+}
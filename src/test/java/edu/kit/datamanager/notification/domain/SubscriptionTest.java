@@ -69,4 +69,29 @@ public class SubscriptionTest{
     }
 
   }
+
+  @Test
+  public void testParsedPropertiesAreCached() throws IOException{
+    Subscription s = new Subscription();
+    s.setSubscriptionProperties("{\"key\":\"value\"}");
+    Map<String, String> props = s.getSubscriptionPropertiesAsMap();
+    Assert.assertEquals("value", props.get("key"));
+    Assert.assertSame(props, s.getSubscriptionPropertiesAsMap());
+    try{
+      props.put("key", "other");
+      Assert.fail("Cached properties must not be modifiable.");
+    } catch(UnsupportedOperationException ex){
+      //expected
+    }
+
+    //parsed again after the serialized properties have changed
+    s.setSubscriptionProperties("{\"key\":\"changed\"}");
+    Assert.assertEquals("changed", s.getSubscriptionPropertiesAsMap().get("key"));
+    s.setSubscriptionProperties(null);
+    Assert.assertTrue(s.getSubscriptionPropertiesAsMap().isEmpty());
+
+    //the cache does not affect equality
+    Subscription other = new Subscription();
+    Assert.assertEquals(other, s);
+  }
 }
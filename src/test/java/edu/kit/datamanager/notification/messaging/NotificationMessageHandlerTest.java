@@ -16,21 +16,34 @@
 package edu.kit.datamanager.notification.messaging;
 
 import edu.kit.datamanager.messaging.client.handler.IMessageHandler;
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
 import edu.kit.datamanager.notification.dao.INotificationDao;
 import edu.kit.datamanager.notification.domain.Notification;
 import edu.kit.datamanager.notification.domain.messaging.NotificationMessage;
+import edu.kit.datamanager.notification.subscription.NotificationsPersistedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.modules.junit4.PowerMockRunnerDelegate;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 /**
@@ -93,4 +106,150 @@ public class NotificationMessageHandlerTest{
     }
   }
 
+  @Test
+  public void testBatchedNotificationHandling() throws Exception{
+    INotificationDao dao = PowerMockito.mock(INotificationDao.class);
+    ApplicationProperties props = new ApplicationProperties();
+    props.setIngestBatchSize(3);
+    props.setIngestLingerMillis(10000);
+    MessageDeduplicator deduplicator = new MessageDeduplicator(dao, props);
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    NotificationBatchWriter writer = new NotificationBatchWriter(dao, deduplicator, props, Optional.of(registry), null);
+    NotificationMessageHandler handler = new NotificationMessageHandler(dao, deduplicator, writer);
+    List<Integer> batchSizes = new ArrayList<>();
+    Mockito.when(dao.saveAll(Mockito.any())).then((iom) -> {
+      List<Notification> batch = iom.getArgument(0);
+      batchSizes.add(batch.size());
+      return batch;
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    List<Future<IMessageHandler.RESULT>> results = new ArrayList<>();
+    for(int i = 0; i < 3; i++){
+      final NotificationMessage msg = NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "Message " + i, Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", Instant.now().truncatedTo(ChronoUnit.MILLIS));
+      results.add(executor.submit(() -> handler.handle(msg)));
+    }
+    for(Future<IMessageHandler.RESULT> result : results){
+      Assert.assertEquals(IMessageHandler.RESULT.SUCCEEDED, result.get());
+    }
+    executor.shutdown();
+    //all three messages must have been persisted in one batch before the handler returned
+    Assert.assertEquals(1, batchSizes.size());
+    Assert.assertEquals(3, batchSizes.get(0).intValue());
+    Assert.assertEquals(3.0, registry.get("notification.ingest.persisted").counter().count(), 0.0);
+    Assert.assertEquals(0, writer.getOpenBatchSize());
+    Mockito.verify(dao, Mockito.never()).save(Mockito.any());
+  }
+
+  @Test
+  public void testBatchedNotificationHandlingWithLinger(){
+    INotificationDao dao = PowerMockito.mock(INotificationDao.class);
+    ApplicationProperties props = new ApplicationProperties();
+    props.setIngestBatchSize(100);
+    props.setIngestLingerMillis(10);
+    MessageDeduplicator deduplicator = new MessageDeduplicator(dao, props);
+    NotificationMessageHandler handler = new NotificationMessageHandler(dao, deduplicator, new NotificationBatchWriter(dao, deduplicator, props));
+    Mockito.when(dao.saveAll(Mockito.any())).then((iom) -> iom.getArgument(0));
+
+    final NotificationMessage msg = NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "A test", Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", Instant.now().truncatedTo(ChronoUnit.MILLIS));
+    //batch is not full, but is persisted after linger time
+    Assert.assertEquals(IMessageHandler.RESULT.SUCCEEDED, handler.handle(msg));
+    Mockito.verify(dao, Mockito.times(1)).saveAll(Mockito.any());
+  }
+
+  @Test
+  public void testBatchedNotificationHandlingWithFailure(){
+    INotificationDao dao = PowerMockito.mock(INotificationDao.class);
+    ApplicationProperties props = new ApplicationProperties();
+    props.setIngestBatchSize(100);
+    props.setIngestLingerMillis(10);
+    MessageDeduplicator deduplicator = new MessageDeduplicator(dao, props);
+    NotificationMessageHandler handler = new NotificationMessageHandler(dao, deduplicator, new NotificationBatchWriter(dao, deduplicator, props));
+    Mockito.when(dao.saveAll(Mockito.any())).thenThrow(new IllegalStateException("Database unavailable"));
+    Mockito.when(dao.save(Mockito.any())).thenThrow(new IllegalStateException("Database unavailable"));
+
+    final NotificationMessage msg = NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "A test", Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", Instant.now().truncatedTo(ChronoUnit.MILLIS));
+    //failed batch must not be acknowledged
+    Assert.assertEquals(IMessageHandler.RESULT.FAILED, handler.handle(msg));
+  }
+
+  @Test
+  public void testOnlyPersistedNotificationsPublishedAfterBatchFailure() throws Exception{
+    INotificationDao dao = PowerMockito.mock(INotificationDao.class);
+    ApplicationEventPublisher publisher = Mockito.mock(ApplicationEventPublisher.class);
+    ApplicationProperties props = new ApplicationProperties();
+    props.setIngestBatchSize(2);
+    props.setIngestLingerMillis(10000);
+    MessageDeduplicator deduplicator = new MessageDeduplicator(dao, props);
+    NotificationMessageHandler handler = new NotificationMessageHandler(dao, deduplicator, new NotificationBatchWriter(dao, deduplicator, props, Optional.empty(), publisher));
+    Mockito.when(dao.saveAll(Mockito.any())).thenThrow(new IllegalStateException("Batch failed"));
+    AtomicLong ids = new AtomicLong();
+    Mockito.when(dao.save(Mockito.any())).then((iom) -> {
+      Notification n = iom.getArgument(0);
+      //the sequence-based id is assigned before the insert fails
+      n.setId(ids.incrementAndGet());
+      if("Bad".equals(n.getContent())){
+        throw new IllegalStateException("Insert failed");
+      }
+      return n;
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    Future<IMessageHandler.RESULT> good = executor.submit(() -> handler.handle(NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "Good", Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", Instant.now().truncatedTo(ChronoUnit.MILLIS))));
+    Future<IMessageHandler.RESULT> bad = executor.submit(() -> handler.handle(NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "Bad", Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", Instant.now().truncatedTo(ChronoUnit.MILLIS))));
+    Assert.assertEquals(IMessageHandler.RESULT.SUCCEEDED, good.get());
+    Assert.assertEquals(IMessageHandler.RESULT.FAILED, bad.get());
+    executor.shutdown();
+    ArgumentCaptor<NotificationsPersistedEvent> event = ArgumentCaptor.forClass(NotificationsPersistedEvent.class);
+    Mockito.verify(publisher, Mockito.times(1)).publishEvent(event.capture());
+    Assert.assertEquals(1, event.getValue().getNotifications().size());
+    Assert.assertEquals("Good", event.getValue().getNotifications().get(0).getContent());
+  }
+
+  @Test
+  public void testRedeliveredMessageIsPersistedOnce(){
+    INotificationDao dao = PowerMockito.mock(INotificationDao.class);
+    ApplicationProperties props = new ApplicationProperties();
+    props.setIngestDedupCacheSize(10);
+    NotificationMessageHandler handler = new NotificationMessageHandler(dao, new MessageDeduplicator(dao, props), null);
+    Mockito.when(dao.save(Mockito.any())).then((iom) -> iom.getArgument(0));
+
+    final NotificationMessage msg = NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "A test", Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", Instant.now().truncatedTo(ChronoUnit.MILLIS));
+    Assert.assertEquals(IMessageHandler.RESULT.SUCCEEDED, handler.handle(msg));
+    //redelivery is acknowledged without persisting the notification again
+    Assert.assertEquals(IMessageHandler.RESULT.SUCCEEDED, handler.handle(msg));
+    Mockito.verify(dao, Mockito.times(1)).save(Mockito.any());
+  }
+
+  @Test
+  public void testRedeliveredMessageDetectedByConstraint(){
+    INotificationDao dao = PowerMockito.mock(INotificationDao.class);
+    ApplicationProperties props = new ApplicationProperties();
+    //no cache, rely on the unique constraint only
+    props.setIngestDedupCacheSize(0);
+    NotificationMessageHandler handler = new NotificationMessageHandler(dao, new MessageDeduplicator(dao, props), null);
+    Mockito.when(dao.save(Mockito.any())).thenThrow(new DataIntegrityViolationException("Unique constraint violated"));
+    Mockito.when(dao.existsByFingerprint(Mockito.anyString())).thenReturn(true);
+
+    final NotificationMessage msg = NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "A test", Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", Instant.now().truncatedTo(ChronoUnit.MILLIS));
+    Assert.assertEquals(IMessageHandler.RESULT.SUCCEEDED, handler.handle(msg));
+    Mockito.verify(dao, Mockito.times(1)).existsByFingerprint(MessageDeduplicator.fingerprint(msg));
+  }
+
+  @Test
+  public void testFingerprintOfMessage(){
+    Instant t = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    NotificationMessage msg = NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "A test", Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", t);
+    NotificationMessage other = NotificationMessage.createMessage(NotificationMessage.ACTION.CREATE, "me", "A test", Notification.SEVERITY.INFO, "someone", Notification.SENDER_TYPE.USER, "me", t);
+    other.setTimestamp(msg.getTimestamp());
+    Assert.assertEquals(64, MessageDeduplicator.fingerprint(msg).length());
+    Assert.assertEquals(MessageDeduplicator.fingerprint(msg), MessageDeduplicator.fingerprint(msg));
+    //different message ids
+    Assert.assertNotEquals(MessageDeduplicator.fingerprint(msg), MessageDeduplicator.fingerprint(other));
+    //without message ids, fingerprints are derived from the content
+    msg.getMetadata().remove(NotificationMessage.MESSAGE_ID_KEY);
+    other.getMetadata().remove(NotificationMessage.MESSAGE_ID_KEY);
+    Assert.assertEquals(MessageDeduplicator.fingerprint(msg), MessageDeduplicator.fingerprint(other));
+  }
+
 }
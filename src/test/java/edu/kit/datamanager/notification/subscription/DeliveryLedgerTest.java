@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.IDeliveryLedgerDao;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ *
+ * @author jejkal
+ */
+public class DeliveryLedgerTest{
+
+  @Test
+  public void testExponentialBackoff(){
+    DeliveryLedger ledger = new DeliveryLedger(Mockito.mock(IDeliveryLedgerDao.class), createProperties(1000, 60000, 0.0));
+    Assert.assertEquals(1000, ledger.getBackoffMillis(1));
+    Assert.assertEquals(2000, ledger.getBackoffMillis(2));
+    Assert.assertEquals(4000, ledger.getBackoffMillis(3));
+    Assert.assertEquals(32000, ledger.getBackoffMillis(6));
+    //limited to the max. backoff, also for very large numbers of attempts
+    Assert.assertEquals(60000, ledger.getBackoffMillis(7));
+    Assert.assertEquals(60000, ledger.getBackoffMillis(100));
+    Assert.assertEquals(60000, ledger.getBackoffMillis(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testBackoffJitter(){
+    DeliveryLedger ledger = new DeliveryLedger(Mockito.mock(IDeliveryLedgerDao.class), createProperties(1000, 60000, 0.2));
+    for(int i = 0; i < 100; i++){
+      long backoff = ledger.getBackoffMillis(3);
+      Assert.assertTrue(backoff >= 3200);
+      Assert.assertTrue(backoff <= 4800);
+    }
+  }
+
+  private ApplicationProperties createProperties(long baseMillis, long maxMillis, double jitter){
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDeliveryRetryBaseMillis(baseMillis);
+    props.setDeliveryRetryMaxMillis(maxMillis);
+    props.setDeliveryRetryJitter(jitter);
+    return props;
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.IDigestAggregateDao;
+import edu.kit.datamanager.notification.dao.INotificationDao;
+import edu.kit.datamanager.notification.dao.ISubscriptionDao;
+import edu.kit.datamanager.notification.domain.HandlerProperties;
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ *
+ * @author jejkal
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+@ActiveProfiles("test")
+public class DigestAggregatorTest{
+
+  @Autowired
+  private ISubscriptionDao subscriptionDao;
+  @Autowired
+  private IDigestAggregateDao aggregateDao;
+  @Autowired
+  private INotificationDao notificationDao;
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public void testDigestMaintainedAtIngest(){
+    Subscription aggregated = subscriptionDao.save(createSubscription("digestUser", Subscription.FREQUENCY.DAILY));
+    Subscription live = subscriptionDao.save(createSubscription("digestUser", Subscription.FREQUENCY.LIVE));
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDigestNewestCount(2);
+    props.setIndexRefreshMillis(60000);
+    SubscriptionIndex index = new SubscriptionIndex(subscriptionDao, props, Optional.of(new ISubscriptionHandler[]{new AggregatingHandler()}));
+    DigestAggregator aggregator = new DigestAggregator(aggregateDao, notificationDao, index, transactionManager, props);
+    try{
+      Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+      aggregator.onNotificationsPersisted(createEvent(
+              createNotification(1l, "digestUser", Notification.SEVERITY.INFO, now.minus(3, ChronoUnit.MINUTES)),
+              createNotification(2l, "digestUser", Notification.SEVERITY.ERROR, now.minus(2, ChronoUnit.MINUTES)),
+              createNotification(3l, "otherUser", Notification.SEVERITY.ERROR, now.minus(2, ChronoUnit.MINUTES))));
+      aggregator.onNotificationsPersisted(createEvent(createNotification(4l, "digestUser", Notification.SEVERITY.INFO, now.minus(1, ChronoUnit.MINUTES))));
+
+      //only the aggregated subscription has a digest, which is stored in a single row
+      Assert.assertEquals(1, aggregateDao.count());
+      Map<Long, NotificationDigest> digests = aggregator.findDigests(Arrays.asList(aggregated.getId(), live.getId()));
+      Assert.assertEquals(1, digests.size());
+      NotificationDigest digest = digests.get(aggregated.getId());
+      Assert.assertEquals(3, digest.getTotal());
+      Assert.assertEquals(Long.valueOf(2), digest.getCountsBySeverity().get(Notification.SEVERITY.INFO));
+      Assert.assertEquals(Long.valueOf(1), digest.getCountsBySeverity().get(Notification.SEVERITY.ERROR));
+      Assert.assertEquals(now.minus(3, ChronoUnit.MINUTES), digest.getFirstCreatedAt());
+      Assert.assertEquals(now.minus(1, ChronoUnit.MINUTES), digest.getLastCreatedAt());
+      Assert.assertEquals(Long.valueOf(4), digest.getLastNotificationId());
+      //only the newest notifications are kept
+      Assert.assertEquals(2, digest.getNewest().size());
+      Assert.assertEquals(Long.valueOf(4), digest.getNewest().get(0).getId());
+      Assert.assertEquals(Long.valueOf(2), digest.getNewest().get(1).getId());
+
+      //notifications added after the digest was obtained remain after consuming it
+      aggregator.onNotificationsPersisted(createEvent(createNotification(5l, "digestUser", Notification.SEVERITY.WARN, now)));
+      aggregator.consume(aggregated.getId(), digest);
+      NotificationDigest remaining = aggregator.findDigests(Arrays.asList(aggregated.getId())).get(aggregated.getId());
+      Assert.assertEquals(1, remaining.getTotal());
+      Assert.assertEquals(Long.valueOf(1), remaining.getCountsBySeverity().get(Notification.SEVERITY.WARN));
+      Assert.assertFalse(remaining.getCountsBySeverity().containsKey(Notification.SEVERITY.INFO));
+      Assert.assertEquals(1, remaining.getNewest().size());
+
+      //empty digests are removed
+      aggregator.consume(aggregated.getId(), remaining);
+      Assert.assertEquals(0, aggregateDao.count());
+    } finally{
+      aggregateDao.deleteAll();
+      subscriptionDao.deleteAll();
+    }
+  }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public void testDigestRebuiltIfNotificationsAreMissing(){
+    Subscription aggregated = createSubscription("rebuildUser", Subscription.FREQUENCY.DAILY);
+    aggregated.setLastNotificationId(0l);
+    aggregated = subscriptionDao.save(aggregated);
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDigestNewestCount(2);
+    props.setIndexRefreshMillis(60000);
+    props.setDispatchCommitLagMillis(60000);
+    SubscriptionIndex index = new SubscriptionIndex(subscriptionDao, props, Optional.of(new ISubscriptionHandler[]{new AggregatingHandler()}));
+    DigestAggregator aggregator = new DigestAggregator(aggregateDao, notificationDao, index, transactionManager, props);
+    try{
+      Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+      Notification first = notificationDao.save(createNotification(null, "rebuildUser", Notification.SEVERITY.INFO, now.minus(3, ChronoUnit.MINUTES)));
+      Notification second = notificationDao.save(createNotification(null, "rebuildUser", Notification.SEVERITY.ERROR, now.minus(2, ChronoUnit.MINUTES)));
+      Notification third = notificationDao.save(createNotification(null, "rebuildUser", Notification.SEVERITY.INFO, now.minus(1, ChronoUnit.MINUTES)));
+      //the first two notifications were stored long ago, the third one might still be added
+      first.setStoredAt(now.minus(10, ChronoUnit.MINUTES));
+      first = notificationDao.save(first);
+      second.setStoredAt(now.minus(10, ChronoUnit.MINUTES));
+      second = notificationDao.save(second);
+      //only the first notification was added, e.g. the update of the second one failed
+      aggregator.onNotificationsPersisted(createEvent(first));
+      NotificationDigest digest = aggregator.findDigests(Arrays.asList(aggregated.getId())).get(aggregated.getId());
+      Assert.assertEquals(1, digest.getTotal());
+
+      NotificationDigest verified = aggregator.verify(Arrays.asList(aggregated), Collections.singletonMap(aggregated.getId(), digest), Instant.now()).get(aggregated.getId());
+      Assert.assertEquals(3, verified.getTotal());
+      Assert.assertEquals(Long.valueOf(2), verified.getCountsBySeverity().get(Notification.SEVERITY.INFO));
+      Assert.assertEquals(third.getId(), verified.getLastNotificationId());
+      Assert.assertEquals(3, aggregator.findDigests(Arrays.asList(aggregated.getId())).get(aggregated.getId()).getTotal());
+      //a complete digest is not rebuilt
+      Assert.assertSame(verified, aggregator.verify(Arrays.asList(aggregated), Collections.singletonMap(aggregated.getId(), verified), Instant.now()).get(aggregated.getId()));
+
+      //the pending update of the third notification is skipped, later notifications are added
+      aggregator.onNotificationsPersisted(createEvent(third));
+      Assert.assertEquals(3, aggregator.findDigests(Arrays.asList(aggregated.getId())).get(aggregated.getId()).getTotal());
+      aggregator.onNotificationsPersisted(createEvent(createNotification(third.getId() + 1, "rebuildUser", Notification.SEVERITY.WARN, now)));
+      Assert.assertEquals(4, aggregator.findDigests(Arrays.asList(aggregated.getId())).get(aggregated.getId()).getTotal());
+    } finally{
+      aggregateDao.deleteAll();
+      notificationDao.deleteAll();
+      subscriptionDao.deleteAll();
+    }
+  }
+
+  private NotificationsPersistedEvent createEvent(Notification... notifications){
+    List<Notification> list = Arrays.asList(notifications);
+    Set<String> receipientIds = new HashSet<>();
+    list.forEach((notification) -> receipientIds.add(notification.getReceipientId()));
+    return new NotificationsPersistedEvent(receipientIds, list);
+  }
+
+  private Subscription createSubscription(String receipientId, Subscription.FREQUENCY frequency){
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName(AggregatingHandler.NAME);
+    subscription.setReceipientId(receipientId);
+    subscription.setFrequency(frequency);
+    subscription.setDisabled(Boolean.FALSE);
+    return subscription;
+  }
+
+  private Notification createNotification(Long id, String receipientId, Notification.SEVERITY severity, Instant createdAt){
+    Notification notification = new Notification();
+    notification.setId(id);
+    notification.setContent("Test");
+    notification.setReceipientId(receipientId);
+    notification.setCreatedAt(createdAt);
+    notification.setSeverity(severity);
+    notification.setSenderType(Notification.SENDER_TYPE.SYSTEM);
+    notification.setSenderId("test");
+    return notification;
+  }
+
+  private static class AggregatingHandler implements ISubscriptionHandler{
+
+    static final String NAME = "aggregating";
+
+    @Override
+    public String getSubscriptionName(){
+      return NAME;
+    }
+
+    @Override
+    public HandlerProperties getSubscriptionProperties(){
+      return HandlerProperties.create();
+    }
+
+    @Override
+    public boolean checkSubscription(Subscription subscription){
+      return true;
+    }
+
+    @Override
+    public boolean configure(){
+      return true;
+    }
+
+    @Override
+    public boolean handleNotifications(Notification[] notifications, Map<String, String> properties){
+      return true;
+    }
+
+    @Override
+    public boolean isAggregateOnly(Map<String, String> properties){
+      return true;
+    }
+  }
+}
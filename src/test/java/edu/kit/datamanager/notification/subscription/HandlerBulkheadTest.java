@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.domain.Notification;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+/**
+ *
+ * @author jejkal
+ */
+public class HandlerBulkheadTest{
+
+  private final Notification[] notifications = new Notification[]{new Notification()};
+
+  @Test
+  public void testTimeoutFailsCall() throws Exception{
+    CountDownLatch release = new CountDownLatch(1);
+    ISubscriptionHandler handler = Mockito.mock(ISubscriptionHandler.class);
+    Mockito.when(handler.getSubscriptionName()).thenReturn("slow");
+    Mockito.when(handler.handleNotifications(ArgumentMatchers.any(), ArgumentMatchers.any())).then((iom) -> {
+      release.await();
+      return true;
+    });
+    HandlerBulkhead bulkhead = new HandlerBulkhead(handler, createProperties(1, 100, 5, 60000));
+    try{
+      long start = System.nanoTime();
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, bulkhead.call(notifications, Collections.emptyMap()));
+      Assert.assertTrue(System.nanoTime() - start < Duration.ofSeconds(5).toNanos());
+      //the timed out call was interrupted, so its thread is available again
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, bulkhead.call(notifications, Collections.emptyMap()));
+    } finally{
+      release.countDown();
+      bulkhead.shutdown();
+    }
+  }
+
+  @Test
+  public void testAsyncTimeoutFailsCall() throws Exception{
+    ISubscriptionHandler handler = Mockito.mock(ISubscriptionHandler.class);
+    Mockito.when(handler.getSubscriptionName()).thenReturn("async");
+    CompletableFuture<Boolean> pending = new CompletableFuture<>();
+    Mockito.when(handler.handleNotificationsAsync(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any())).thenReturn(pending, CompletableFuture.completedFuture(true));
+    HandlerBulkhead bulkhead = new HandlerBulkhead(handler, createProperties(1, 100, 5, 60000));
+    try{
+      CompletableFuture<HandlerBulkhead.RESULT> call = bulkhead.callAsync(notifications, new NotificationChunkCursor(0, 0, true, null), Collections.emptyMap());
+      //the caller is not blocked while the handler is running
+      Assert.assertFalse(call.isDone());
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, HandlerBulkhead.await(call));
+      //the pending result was cancelled, so its permit is available again
+      Assert.assertTrue(pending.isCancelled());
+      Assert.assertEquals(HandlerBulkhead.RESULT.SUCCEEDED, HandlerBulkhead.await(bulkhead.callAsync(notifications, new NotificationChunkCursor(0, 0, true, null), Collections.emptyMap())));
+    } finally{
+      bulkhead.shutdown();
+    }
+  }
+
+  @Test
+  public void testPermitHeldUntilHandlerReturned() throws Exception{
+    CountDownLatch release = new CountDownLatch(1);
+    ISubscriptionHandler handler = Mockito.mock(ISubscriptionHandler.class);
+    Mockito.when(handler.getSubscriptionName()).thenReturn("uninterruptible");
+    Mockito.when(handler.handleNotifications(ArgumentMatchers.any(), ArgumentMatchers.any())).then((iom) -> {
+      while(release.getCount() > 0){
+        try{
+          release.await();
+        } catch(InterruptedException ex){
+          //ignore interrupt
+        }
+      }
+      return true;
+    }).thenReturn(true);
+    HandlerBulkhead bulkhead = new HandlerBulkhead(handler, createProperties(1, 100, 5, 60000));
+    try{
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, bulkhead.call(notifications, Collections.emptyMap()));
+      //the timed out handler is still running, so no thread is available
+      Assert.assertEquals(HandlerBulkhead.RESULT.REJECTED, bulkhead.call(notifications, Collections.emptyMap()));
+      release.countDown();
+      Assert.assertEquals(HandlerBulkhead.RESULT.SUCCEEDED, bulkhead.call(notifications, Collections.emptyMap()));
+    } finally{
+      release.countDown();
+      bulkhead.shutdown();
+    }
+  }
+
+  @Test
+  public void testAsyncCallRejectedImmediatelyWithoutThread() throws Exception{
+    ISubscriptionHandler handler = Mockito.mock(ISubscriptionHandler.class);
+    Mockito.when(handler.getSubscriptionName()).thenReturn("busy");
+    CompletableFuture<Boolean> pending = new CompletableFuture<>();
+    Mockito.when(handler.handleNotificationsAsync(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any())).thenReturn(pending, CompletableFuture.completedFuture(true));
+    ApplicationProperties props = createProperties(1, 60000, 5, 60000);
+    props.setDispatchMaxInFlight(10);
+    HandlerBulkhead bulkhead = new HandlerBulkhead(handler, props);
+    try{
+      CompletableFuture<HandlerBulkhead.RESULT> call = bulkhead.callAsync(notifications, new NotificationChunkCursor(0, 0, true, null), Collections.emptyMap());
+      long start = System.nanoTime();
+      //the dispatching thread does not wait for the running call
+      Assert.assertEquals(HandlerBulkhead.RESULT.REJECTED, HandlerBulkhead.await(bulkhead.callAsync(notifications, new NotificationChunkCursor(0, 0, true, null), Collections.emptyMap())));
+      Assert.assertTrue(System.nanoTime() - start < Duration.ofSeconds(5).toNanos());
+      pending.complete(true);
+      Assert.assertEquals(HandlerBulkhead.RESULT.SUCCEEDED, HandlerBulkhead.await(call));
+      Assert.assertEquals(HandlerBulkhead.RESULT.SUCCEEDED, HandlerBulkhead.await(bulkhead.callAsync(notifications, new NotificationChunkCursor(0, 0, true, null), Collections.emptyMap())));
+    } finally{
+      bulkhead.shutdown();
+    }
+  }
+
+  @Test
+  public void testCircuitOpensAfterConsecutiveFailures(){
+    ISubscriptionHandler handler = Mockito.mock(ISubscriptionHandler.class);
+    Mockito.when(handler.getSubscriptionName()).thenReturn("failing");
+    Mockito.when(handler.handleNotifications(ArgumentMatchers.any(), ArgumentMatchers.any())).thenReturn(false).thenThrow(new IllegalStateException("Failed")).thenReturn(true).thenReturn(false);
+    HandlerBulkhead bulkhead = new HandlerBulkhead(handler, createProperties(1, 1000, 2, 60000));
+    try{
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, bulkhead.call(notifications, Collections.emptyMap()));
+      Assert.assertTrue(bulkhead.isCallPermitted());
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, bulkhead.call(notifications, Collections.emptyMap()));
+      Assert.assertFalse(bulkhead.isCallPermitted());
+      Assert.assertTrue(bulkhead.getRetryAt().isAfter(Instant.now().plusSeconds(30)));
+      //the handler is not called while the circuit is open
+      Assert.assertEquals(HandlerBulkhead.RESULT.REJECTED, bulkhead.call(notifications, Collections.emptyMap()));
+      Mockito.verify(handler, Mockito.times(2)).handleNotifications(ArgumentMatchers.any(), ArgumentMatchers.any());
+    } finally{
+      bulkhead.shutdown();
+    }
+  }
+
+  @Test
+  public void testTrialCallWithBackoff() throws Exception{
+    ISubscriptionHandler handler = Mockito.mock(ISubscriptionHandler.class);
+    Mockito.when(handler.getSubscriptionName()).thenReturn("flaky");
+    Mockito.when(handler.handleNotifications(ArgumentMatchers.any(), ArgumentMatchers.any())).thenReturn(false, false, true, false);
+    HandlerBulkhead bulkhead = new HandlerBulkhead(handler, createProperties(1, 1000, 1, 200));
+    try{
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, bulkhead.call(notifications, Collections.emptyMap()));
+      Instant firstRetry = bulkhead.getRetryAt();
+      waitUntil(firstRetry);
+      Assert.assertTrue(bulkhead.isCallPermitted());
+      //failed trial call doubles the open interval
+      Instant beforeTrial = Instant.now();
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, bulkhead.call(notifications, Collections.emptyMap()));
+      Assert.assertFalse(bulkhead.isCallPermitted());
+      Assert.assertTrue(bulkhead.getRetryAt().isAfter(beforeTrial.plusMillis(399)));
+      waitUntil(bulkhead.getRetryAt());
+      //successful trial call closes the circuit
+      Assert.assertEquals(HandlerBulkhead.RESULT.SUCCEEDED, bulkhead.call(notifications, Collections.emptyMap()));
+      Assert.assertTrue(bulkhead.isCallPermitted());
+      //and resets the open interval
+      Instant beforeFailure = Instant.now();
+      Assert.assertEquals(HandlerBulkhead.RESULT.FAILED, bulkhead.call(notifications, Collections.emptyMap()));
+      Assert.assertTrue(bulkhead.getRetryAt().isBefore(Instant.now().plusMillis(201)));
+      Assert.assertFalse(bulkhead.getRetryAt().isBefore(beforeFailure.plusMillis(200)));
+    } finally{
+      bulkhead.shutdown();
+    }
+  }
+
+  private void waitUntil(Instant instant) throws InterruptedException{
+    while(Instant.now().isBefore(instant)){
+      Thread.sleep(10);
+    }
+  }
+
+  private ApplicationProperties createProperties(int threads, long timeoutMillis, int failureThreshold, long openMillis){
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDispatchHandlerThreads(threads);
+    props.setDispatchHandlerTimeoutMillis(timeoutMillis);
+    props.setDispatchBreakerFailureThreshold(failureThreshold);
+    props.setDispatchBreakerOpenMillis(openMillis);
+    props.setDispatchBreakerMaxOpenMillis(10 * openMillis);
+    return props;
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.ISubscriptionDao;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Optional;
+import javax.persistence.EntityManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ *
+ * @author jejkal
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+@ActiveProfiles("test")
+public class SubscriptionIndexTest{
+
+  @Autowired
+  private ISubscriptionDao subscriptionDao;
+  @Autowired
+  private EntityManager entityManager;
+
+  @Test
+  public void testLookupAndRefresh() throws Exception{
+    Subscription first = subscriptionDao.save(createSubscription("user1", "log", "{\"filename\":\"log1.txt\"}"));
+    Subscription second = subscriptionDao.save(createSubscription("user1", "email", "{\"emailAddress\":\"a@b.c\"}"));
+    Subscription third = subscriptionDao.save(createSubscription("user2", "log", null));
+    Subscription disabled = createSubscription("user3", "log", null);
+    disabled.setDisabled(Boolean.TRUE);
+    subscriptionDao.save(disabled);
+    clearPersistenceContext();
+
+    ISubscriptionHandler handler = Mockito.mock(ISubscriptionHandler.class);
+    Mockito.when(handler.getSubscriptionName()).thenReturn("log");
+    SubscriptionIndex index = new SubscriptionIndex(subscriptionDao, new ApplicationProperties(), Optional.of(new ISubscriptionHandler[]{handler}));
+    index.refreshIfRequired();
+    //detach indexed subscriptions from the test transaction
+    clearPersistenceContext();
+
+    Assert.assertEquals(3, index.size());
+    Assert.assertEquals(2, index.findByReceipient("user1").size());
+    Assert.assertTrue(index.findByReceipient("user3").isEmpty());
+    SubscriptionIndex.Entry entry = index.find("user1", "log").get(0);
+    Assert.assertEquals(first.getId(), entry.getSubscription().getId());
+    Assert.assertEquals("log1.txt", entry.getProperties().get("filename"));
+    Assert.assertSame(handler, entry.getHandler());
+    Assert.assertNull(index.find("user1", "email").get(0).getHandler());
+
+    //only changed subscriptions are loaded again
+    Subscription unchanged = index.get(second.getId()).getSubscription();
+    Subscription changed = subscriptionDao.findById(first.getId()).get();
+    changed.setReceipientId("user4");
+    subscriptionDao.saveAndFlush(changed);
+    subscriptionDao.deleteById(third.getId());
+    clearPersistenceContext();
+    index.refresh();
+
+    Assert.assertEquals(2, index.size());
+    Assert.assertSame(unchanged, index.get(second.getId()).getSubscription());
+    Assert.assertEquals(1, index.findByReceipient("user1").size());
+    Assert.assertEquals(first.getId(), index.find("user4", "log").get(0).getSubscription().getId());
+    Assert.assertNull(index.get(third.getId()));
+    Assert.assertTrue(index.getSubscriptions(Arrays.asList(first.getId(), third.getId())).size() == 1);
+  }
+
+  @Test
+  public void testPutRetainsDispatchState(){
+    SubscriptionIndex index = new SubscriptionIndex(Mockito.mock(ISubscriptionDao.class), new ApplicationProperties(), Optional.empty());
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Subscription subscription = createSubscription("user1", "log", null);
+    subscription.setId(1l);
+    subscription.setLastNotificationId(10l);
+    subscription.setFiredLast(now);
+    subscription.setFiresNext(now.plus(1, ChronoUnit.HOURS));
+    index.put(subscription);
+
+    //e.g. updated via the subscription controller with an outdated dispatch state
+    Subscription updated = createSubscription("user2", "log", null);
+    updated.setId(1l);
+    updated.setLastNotificationId(5l);
+    updated.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+    updated.setFiresNext(now);
+    index.put(updated);
+
+    Assert.assertTrue(index.findByReceipient("user1").isEmpty());
+    Subscription indexed = index.find("user2", "log").get(0).getSubscription();
+    Assert.assertEquals(Long.valueOf(10l), indexed.getLastNotificationId());
+    Assert.assertEquals(now, indexed.getFiredLast());
+    Assert.assertEquals(now.plus(1, ChronoUnit.HOURS), indexed.getFiresNext());
+
+    //disabling removes the subscription
+    updated.setDisabled(Boolean.TRUE);
+    index.put(updated);
+    Assert.assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testDispatchStateAppliedToReplacedSubscription(){
+    SubscriptionIndex index = new SubscriptionIndex(Mockito.mock(ISubscriptionDao.class), new ApplicationProperties(), Optional.empty());
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Subscription subscription = createSubscription("user1", "log", null);
+    subscription.setId(1l);
+    subscription.setLastNotificationId(5l);
+    subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+    subscription.setFiresNext(now);
+    index.put(subscription);
+
+    //handled as copy, while the indexed subscription is replaced, e.g. via the subscription controller
+    Subscription handled = index.getSubscriptions(Arrays.asList(1l)).get(0);
+    Assert.assertNotSame(subscription, handled);
+    Subscription updated = createSubscription("user1", "log", "{\"filename\":\"log.txt\"}");
+    updated.setId(1l);
+    updated.setLastNotificationId(5l);
+    updated.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+    updated.setFiresNext(now);
+    index.put(updated);
+    handled.setLastNotificationId(10l);
+    handled.setFiredLast(now);
+    handled.setFiresNext(now.plus(1, ChronoUnit.HOURS));
+    index.updateDispatchState(Arrays.asList(handled));
+
+    Subscription indexed = index.get(1l).getSubscription();
+    //indexed as copy, which is detached from the persistence context
+    Assert.assertNotSame(updated, indexed);
+    Assert.assertEquals("{\"filename\":\"log.txt\"}", indexed.getSubscriptionProperties());
+    Assert.assertEquals(Long.valueOf(10l), indexed.getLastNotificationId());
+    Assert.assertEquals(now, indexed.getFiredLast());
+    Assert.assertEquals(now.plus(1, ChronoUnit.HOURS), indexed.getFiresNext());
+
+    //an outdated dispatch state does not overwrite a more recent one
+    Subscription outdated = subscription.copy();
+    index.updateDispatchState(Arrays.asList(outdated));
+    Assert.assertEquals(Long.valueOf(10l), indexed.getLastNotificationId());
+    Assert.assertEquals(now, indexed.getFiredLast());
+  }
+
+  private void clearPersistenceContext(){
+    entityManager.flush();
+    entityManager.clear();
+  }
+
+  private Subscription createSubscription(String receipientId, String subscriptionName, String properties){
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName(subscriptionName);
+    subscription.setReceipientId(receipientId);
+    subscription.setSubscriptionProperties(properties);
+    subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+    subscription.setDisabled(Boolean.FALSE);
+    return subscription;
+  }
+}
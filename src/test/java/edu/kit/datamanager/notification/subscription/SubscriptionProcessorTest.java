@@ -0,0 +1,944 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.IDeliveryLedgerDao;
+import edu.kit.datamanager.notification.dao.INotificationDao;
+import edu.kit.datamanager.notification.dao.ISubscriptionDao;
+import edu.kit.datamanager.notification.dao.SubscriptionStateWriter;
+import edu.kit.datamanager.notification.domain.DeliveryLedgerEntry;
+import edu.kit.datamanager.notification.domain.HandlerProperties;
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ *
+ * @author jejkal
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@ActiveProfiles("test")
+public class SubscriptionProcessorTest{
+
+  @Autowired
+  private INotificationDao notificationDao;
+  @Autowired
+  private ISubscriptionDao subscriptionDao;
+  @Autowired
+  private IDeliveryLedgerDao deliveryLedgerDao;
+  @Autowired
+  private DataSource dataSource;
+  @Autowired
+  private EntityManager entityManager;
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+
+  @Test
+  public void testQueryCountIndependentOfSubscriptionCount(){
+    int receipients = SubscriptionProcessor.MAX_SUBSCRIPTIONS_PER_QUERY + 200;
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    List<Subscription> subscriptions = new ArrayList<>();
+    List<Notification> notifications = new ArrayList<>();
+    for(int i = 0; i < receipients; i++){
+      Subscription subscription = new Subscription();
+      subscription.setSubscriptionName(CountingHandler.NAME);
+      subscription.setReceipientId("user" + i);
+      subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+      subscription.setDisabled(Boolean.FALSE);
+      //the first receipient got all notifications before
+      subscription.setFiredLast((i == 0) ? now : now.minus(1, ChronoUnit.HOURS));
+      subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+      subscriptions.add(subscription);
+
+      notifications.add(createNotification("user" + i, now.minus(2, ChronoUnit.HOURS)));
+      notifications.add(createNotification("user" + i, now.minus(1, ChronoUnit.MINUTES)));
+    }
+    subscriptionDao.saveAll(subscriptions);
+    notificationDao.saveAll(notifications);
+
+    CountingHandler handler = new CountingHandler();
+    ApplicationProperties props = new ApplicationProperties();
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    statistics.clear();
+
+    processor.receiveNextMessage();
+
+    int chunks = (receipients + SubscriptionProcessor.MAX_SUBSCRIPTIONS_PER_QUERY - 1) / SubscriptionProcessor.MAX_SUBSCRIPTIONS_PER_QUERY;
+    //one query for loading the schedule and subscription versions each plus one query for loading the
+    //subscription index, ledger entries and notifications per chunk
+    Assert.assertEquals(2 + 3 * chunks, statistics.getQueryExecutionCount());
+    //only notifications created after firedLast are handled
+    Assert.assertEquals(receipients - 1, handler.handledNotifications.size());
+    Assert.assertFalse(handler.handledNotifications.containsKey("user0"));
+    handler.handledNotifications.values().forEach((count) -> Assert.assertEquals(1, count.intValue()));
+  }
+
+  @Test
+  public void testDeliveryByNotificationIdCursor(){
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Notification delivered = notificationDao.save(createNotification("cursorUser", now.minus(2, ChronoUnit.HOURS)));
+
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("cursorUser");
+    subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+    subscription.setDisabled(Boolean.FALSE);
+    subscription.setLastNotificationId(delivered.getId());
+    subscription.setFiredLast(now);
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    subscription = subscriptionDao.save(subscription);
+    //created after the subscription fired, but with a creation date in the past
+    Notification pending = notificationDao.save(createNotification("cursorUser", now.minus(3, ChronoUnit.HOURS)));
+
+    CountingHandler handler = new CountingHandler();
+    ApplicationProperties props = new ApplicationProperties();
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+
+    Assert.assertEquals(1, handler.handledNotifications.get("cursorUser").intValue());
+    Assert.assertEquals(pending.getId(), subscriptionDao.findById(subscription.getId()).get().getLastNotificationId());
+  }
+
+  @Test
+  public void testNotificationCommittedAfterLargerIdIsDelivered(){
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("lateUser");
+    subscription.setFrequency(Subscription.FREQUENCY.LIVE);
+    subscription.setDisabled(Boolean.FALSE);
+    subscription.setLastNotificationId(0l);
+    subscription.setFiredLast(now.minus(1, ChronoUnit.MINUTES));
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    subscription = subscriptionDao.save(subscription);
+    //ids are assigned before commit, so the smaller id is not visible yet when the larger one is delivered
+    List<Notification> notifications = notificationDao.saveAll(Arrays.asList(createNotification("lateUser", now), createNotification("lateUser", now)));
+    Notification late = notifications.get(0);
+    Notification delivered = notifications.get(1);
+    Assert.assertTrue(late.getId() < delivered.getId());
+    notificationDao.delete(late);
+    clearPersistenceContext();
+
+    CountingHandler handler = new CountingHandler();
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDispatchCommitLagMillis(60000);
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+    Assert.assertEquals(1, handler.handledNotifications.get("lateUser").intValue());
+    Assert.assertEquals(delivered.getId(), subscriptionDao.findById(subscription.getId()).get().getLastNotificationId());
+
+    //the notification with the smaller id is committed after the cursor has passed it
+    entityManager.createNativeQuery("INSERT INTO notification (id, content, created_at, receipient_id, recognized, sender_id, sender_type, severity, stored_at) VALUES (?, 'Test', ?, 'lateUser', FALSE, 'test', 'SYSTEM', 'INFO', ?)")
+            .setParameter(1, late.getId())
+            .setParameter(2, Timestamp.from(now))
+            .setParameter(3, Timestamp.from(Instant.now()))
+            .executeUpdate();
+    processor.receiveNextMessage();
+    Assert.assertEquals(2, handler.handledNotifications.get("lateUser").intValue());
+    //neither notification is delivered again
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+    Assert.assertEquals(2, handler.handledNotifications.get("lateUser").intValue());
+    Subscription handled = subscriptionDao.findById(subscription.getId()).get();
+    Assert.assertEquals(delivered.getId(), handled.getLastNotificationId());
+    Assert.assertTrue(handled.getRecentNotificationIdsAsSet().containsAll(Arrays.asList(late.getId(), delivered.getId())));
+  }
+
+  @Test
+  public void testFailedDeliveryIsRetriedWithBackoff(){
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Notification first = notificationDao.save(createNotification("retryUser", now.minus(2, ChronoUnit.MINUTES)));
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("retryUser");
+    subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+    subscription.setDisabled(Boolean.FALSE);
+    subscription.setLastNotificationId(first.getId() - 1);
+    subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    subscription = subscriptionDao.save(subscription);
+
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDeliveryRetryBaseMillis(60000);
+    props.setDeliveryRetryMaxMillis(3600000);
+    AtomicBoolean fail = new AtomicBoolean(true);
+    CountingHandler handler = new CountingHandler(){
+      @Override
+      public boolean handleNotifications(Notification[] notifications, Map<String, String> properties){
+        return !fail.get() && super.handleNotifications(notifications, properties);
+      }
+    };
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+
+    DeliveryLedgerEntry entry = deliveryLedgerDao.findBySubscriptionIdIn(Arrays.asList(subscription.getId())).get(0);
+    Assert.assertEquals(DeliveryLedgerEntry.STATE.FAILED, entry.getState());
+    Assert.assertEquals(1, entry.getAttempts());
+    Assert.assertEquals(first.getId(), entry.getToNotificationId());
+    Assert.assertTrue(entry.getNextAttemptAt().isAfter(now.plusSeconds(30)));
+    Assert.assertEquals(entry.getNextAttemptAt(), subscriptionDao.findById(subscription.getId()).get().getFiresNext());
+
+    //not retried before the next attempt is due, even if the subscription is
+    Notification second = notificationDao.save(createNotification("retryUser", now.minus(1, ChronoUnit.MINUTES)));
+    subscription = subscriptionDao.findById(subscription.getId()).get();
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    subscriptionDao.save(subscription);
+    fail.set(false);
+    processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+    Assert.assertTrue(handler.handledNotifications.isEmpty());
+
+    //the retry only covers the notifications of the failed attempt
+    entry.setNextAttemptAt(now.minus(1, ChronoUnit.SECONDS));
+    deliveryLedgerDao.save(entry);
+    subscription = subscriptionDao.findById(subscription.getId()).get();
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    subscriptionDao.save(subscription);
+    processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+    Assert.assertEquals(1, handler.handledNotifications.get("retryUser").intValue());
+    Assert.assertTrue(deliveryLedgerDao.findBySubscriptionIdIn(Arrays.asList(subscription.getId())).isEmpty());
+    Assert.assertEquals(first.getId(), subscriptionDao.findById(subscription.getId()).get().getLastNotificationId());
+    Assert.assertTrue(second.getId() > first.getId());
+  }
+
+  @Test
+  public void testConcurrentlyChangedSubscriptionRescheduledFromDatabase(){
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Notification delivered = notificationDao.save(createNotification("changedUser", now.minus(2, ChronoUnit.MINUTES)));
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("changedUser");
+    subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+    subscription.setDisabled(Boolean.FALSE);
+    subscription.setLastNotificationId(delivered.getId() - 1);
+    subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    Long subscriptionId = subscriptionDao.save(subscription).getId();
+    clearPersistenceContext();
+
+    CountingHandler handler = new CountingHandler();
+    ApplicationProperties props = new ApplicationProperties();
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(subscriptionDao, props);
+    SubscriptionIndex index = new SubscriptionIndex(subscriptionDao, props, Optional.empty());
+    index.refresh();
+    //changed after being indexed, e.g. by another instance
+    Instant changedFiresNext = now.minus(1, ChronoUnit.SECONDS);
+    new JdbcTemplate(dataSource).update("UPDATE subscription SET fires_next = ?, version = version + 1 WHERE id = ?", Timestamp.from(changedFiresNext), subscriptionId);
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDao, notificationDao, scheduler, index, new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+
+    Assert.assertEquals(1, handler.handledNotifications.get("changedUser").intValue());
+    //the concurrent change is not overwritten by the stale dispatch state
+    Subscription current = subscriptionDao.findById(subscriptionId).get();
+    Assert.assertEquals(changedFiresNext, current.getFiresNext());
+    Assert.assertEquals(Long.valueOf(delivered.getId() - 1), current.getLastNotificationId());
+    //and the subscription is scheduled according to its current state
+    Assert.assertEquals(Arrays.asList(subscriptionId), scheduler.pollDue(now));
+  }
+
+  @Test
+  public void testInterruptedDeliveryIsNotRepeated(){
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Notification delivered = notificationDao.save(createNotification("crashUser", now.minus(2, ChronoUnit.MINUTES)));
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("crashUser");
+    subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+    subscription.setDisabled(Boolean.FALSE);
+    subscription.setLastNotificationId(delivered.getId() - 1);
+    subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    subscription = subscriptionDao.save(subscription);
+    //left behind by an instance crashed while calling the handler
+    DeliveryLedgerEntry entry = new DeliveryLedgerEntry();
+    entry.setSubscriptionId(subscription.getId());
+    entry.setFromNotificationId(subscription.getLastNotificationId());
+    entry.setToNotificationId(delivered.getId());
+    entry.setAttempts(1);
+    entry.setState(DeliveryLedgerEntry.STATE.IN_FLIGHT);
+    deliveryLedgerDao.save(entry);
+    Notification pending = notificationDao.save(createNotification("crashUser", now.minus(1, ChronoUnit.MINUTES)));
+
+    ApplicationProperties props = new ApplicationProperties();
+    CountingHandler handler = new CountingHandler();
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+
+    //only the notification created after the interrupted delivery is handled
+    Assert.assertEquals(1, handler.handledNotifications.get("crashUser").intValue());
+    Assert.assertEquals(pending.getId(), subscriptionDao.findById(subscription.getId()).get().getLastNotificationId());
+    Assert.assertTrue(deliveryLedgerDao.findBySubscriptionIdIn(Arrays.asList(subscription.getId())).isEmpty());
+  }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public void testClusterDispatchDeliversOnce() throws Exception{
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    List<Subscription> subscriptions = new ArrayList<>();
+    List<Notification> notifications = new ArrayList<>();
+    for(int i = 0; i < 60; i++){
+      Subscription subscription = new Subscription();
+      subscription.setSubscriptionName(CountingHandler.NAME);
+      subscription.setReceipientId("clusterUser" + i);
+      subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+      subscription.setDisabled(Boolean.FALSE);
+      subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+      subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+      if(i == 0){
+        //leased by an instance which failed before
+        subscription.setLeaseOwner("failedInstance");
+        subscription.setLeaseExpiresAt(now.minus(1, ChronoUnit.MINUTES));
+      } else if(i == 1){
+        //currently leased by another instance
+        subscription.setLeaseOwner("busyInstance");
+        subscription.setLeaseExpiresAt(now.plus(1, ChronoUnit.HOURS));
+      }
+      subscriptions.add(subscription);
+      notifications.add(createNotification("clusterUser" + i, now.minus(1, ChronoUnit.MINUTES)));
+    }
+    subscriptionDao.saveAll(subscriptions);
+    notificationDao.saveAll(notifications);
+
+    List<CountingHandler> handlers = new ArrayList<>();
+    List<SubscriptionProcessor> processors = new ArrayList<>();
+    for(int i = 0; i < 3; i++){
+      ApplicationProperties props = new ApplicationProperties();
+      props.setClusterEnabled(true);
+      props.setClusterInstanceId("instance" + i);
+      props.setClusterLeaseMillis(60000);
+      props.setClusterClaimSize(5);
+      CountingHandler handler = new CountingHandler();
+      handlers.add(handler);
+      processors.add(new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler})));
+    }
+    try{
+      //two cycles of all instances running concurrently
+      for(int cycle = 0; cycle < 2; cycle++){
+        CyclicBarrier start = new CyclicBarrier(processors.size());
+        List<Thread> threads = new ArrayList<>();
+        for(SubscriptionProcessor processor : processors){
+          Thread thread = new Thread(() -> {
+            try{
+              start.await();
+            } catch(InterruptedException | BrokenBarrierException ex){
+              throw new IllegalStateException(ex);
+            }
+            processor.receiveNextMessage();
+          });
+          thread.start();
+          threads.add(thread);
+        }
+        for(Thread thread : threads){
+          thread.join();
+        }
+      }
+
+      Map<String, Integer> handledNotifications = new HashMap<>();
+      handlers.forEach((handler) -> handler.handledNotifications.forEach((receipient, count) -> handledNotifications.merge(receipient, count, Integer::sum)));
+      //each notification is delivered exactly once, expired leases are taken over
+      Assert.assertEquals(59, handledNotifications.size());
+      Assert.assertFalse(handledNotifications.containsKey("clusterUser1"));
+      handledNotifications.values().forEach((count) -> Assert.assertEquals(1, count.intValue()));
+      //all leases except the one of the busy instance are released
+      for(Subscription subscription : subscriptionDao.findAll()){
+        if("clusterUser1".equals(subscription.getReceipientId())){
+          Assert.assertEquals("busyInstance", subscription.getLeaseOwner());
+        } else{
+          Assert.assertNull(subscription.getLeaseOwner());
+          Assert.assertTrue(subscription.getFiresNext().isAfter(now));
+        }
+      }
+    } finally{
+      processors.forEach(SubscriptionProcessor::shutdown);
+      subscriptionDao.deleteAll();
+      notificationDao.deleteAll();
+    }
+  }
+
+  @Test
+  public void testOnlyChangedSubscriptionsArePersisted(){
+    ISubscriptionDao subscriptionDaoMock = Mockito.mock(ISubscriptionDao.class);
+    INotificationDao notificationDaoMock = Mockito.mock(INotificationDao.class);
+    SubscriptionScheduler scheduler = Mockito.mock(SubscriptionScheduler.class);
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    List<Subscription> subscriptions = new ArrayList<>();
+    for(int i = 0; i < 10; i++){
+      Subscription subscription = new Subscription();
+      subscription.setId((long) i);
+      subscription.setSubscriptionName(CountingHandler.NAME);
+      subscription.setReceipientId("user" + i);
+      //LIVE, as HOURLY subscriptions without pending notifications move on to the next period
+      subscription.setFrequency(Subscription.FREQUENCY.LIVE);
+      subscription.setLastNotificationId(0l);
+      subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+      subscriptions.add(subscription);
+    }
+    //only the first receipient has pending notifications
+    Notification notification = createNotification("user0", now.minus(1, ChronoUnit.MINUTES));
+    notification.setId(1l);
+    Mockito.when(scheduler.pollDue(Mockito.any())).thenReturn(Arrays.asList(0l));
+    Mockito.when(subscriptionDaoMock.findAllById(Mockito.any())).thenReturn(subscriptions);
+    Mockito.when(notificationDaoMock.findAll(Mockito.any(Specification.class))).thenReturn(Arrays.asList(notification));
+
+    ApplicationProperties props = new ApplicationProperties();
+    SubscriptionStateWriter stateWriter = Mockito.mock(SubscriptionStateWriter.class);
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDaoMock, notificationDaoMock, scheduler, new SubscriptionIndex(subscriptionDaoMock, props, Optional.empty()), Mockito.mock(DeliveryLedger.class), Mockito.mock(DigestAggregator.class), stateWriter, props, Optional.of(new ISubscriptionHandler[]{new CountingHandler()}));
+    try{
+      processor.receiveNextMessage();
+    } finally{
+      processor.shutdown();
+    }
+
+    ArgumentCaptor<Collection<Subscription>> written = ArgumentCaptor.forClass(Collection.class);
+    Mockito.verify(stateWriter, Mockito.times(1)).write(written.capture(), Mockito.any(), Mockito.any());
+    Assert.assertEquals(1, written.getValue().size());
+    Subscription changed = written.getValue().iterator().next();
+    Assert.assertEquals(Long.valueOf(0l), changed.getId());
+    Assert.assertEquals(Long.valueOf(1l), changed.getLastNotificationId());
+    Mockito.verify(subscriptionDaoMock, Mockito.never()).saveAll(Mockito.any());
+  }
+
+  @Test
+  public void testFailedSubscriptionsRescheduled(){
+    ISubscriptionDao subscriptionDaoMock = Mockito.mock(ISubscriptionDao.class);
+    SubscriptionScheduler scheduler = Mockito.mock(SubscriptionScheduler.class);
+    Mockito.when(scheduler.pollDue(Mockito.any())).thenReturn(Arrays.asList(1l, 2l, 3l));
+    //leasing the first subscription fails, the remaining ones are leased by other instances
+    Mockito.when(subscriptionDaoMock.acquireLeases(Mockito.eq(Arrays.asList(1l)), Mockito.any(), Mockito.any(), Mockito.any())).thenThrow(new IllegalStateException("Database not available."));
+    Mockito.when(subscriptionDaoMock.findAllById(Mockito.any())).thenReturn(new ArrayList<>());
+
+    ApplicationProperties props = new ApplicationProperties();
+    props.setClusterEnabled(true);
+    props.setClusterLeaseMillis(60000);
+    props.setClusterClaimSize(1);
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDaoMock, Mockito.mock(INotificationDao.class), scheduler, new SubscriptionIndex(subscriptionDaoMock, props, Optional.empty()), Mockito.mock(DeliveryLedger.class), Mockito.mock(DigestAggregator.class), Mockito.mock(SubscriptionStateWriter.class), props, Optional.of(new ISubscriptionHandler[]{new CountingHandler()}));
+    try{
+      processor.receiveNextMessage();
+    } finally{
+      processor.shutdown();
+    }
+
+    //the failed subscription is retried in the next cycle, the remaining ones are handled anyway
+    Mockito.verify(scheduler, Mockito.times(1)).scheduleIfAbsent(Mockito.eq(Arrays.asList(1l)), Mockito.any());
+    Mockito.verify(subscriptionDaoMock, Mockito.times(3)).acquireLeases(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+    Mockito.verify(subscriptionDaoMock, Mockito.times(2)).releaseLeases(Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testParallelDispatch(){
+    ISubscriptionDao subscriptionDaoMock = Mockito.mock(ISubscriptionDao.class);
+    INotificationDao notificationDaoMock = Mockito.mock(INotificationDao.class);
+    SubscriptionScheduler scheduler = Mockito.mock(SubscriptionScheduler.class);
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    List<Subscription> subscriptions = new ArrayList<>();
+    List<Notification> notifications = new ArrayList<>();
+    for(int i = 0; i < 20; i++){
+      //two subscriptions per receipient
+      for(int j = 0; j < 2; j++){
+        Subscription subscription = new Subscription();
+        subscription.setId((long) (i * 2 + j));
+        subscription.setSubscriptionName(CountingHandler.NAME);
+        subscription.setReceipientId("user" + i);
+        subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+        subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+        subscriptions.add(subscription);
+      }
+      notifications.add(createNotification("user" + i, now.minus(1, ChronoUnit.MINUTES)));
+    }
+    Mockito.when(scheduler.pollDue(Mockito.any())).thenReturn(Arrays.asList(0l));
+    Mockito.when(subscriptionDaoMock.findAllById(Mockito.any())).thenReturn(subscriptions);
+    Mockito.when(notificationDaoMock.findAll(Mockito.any(Specification.class))).thenReturn(notifications);
+
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDispatchThreads(4);
+    props.setDispatchHandlerThreads(4);
+    CountingHandler handler = new CountingHandler(){
+      @Override
+      public boolean handleNotifications(Notification[] notifications, Map<String, String> properties){
+        int current = running.incrementAndGet();
+        maxConcurrency.accumulateAndGet(current, Math::max);
+        AtomicInteger runningForReceipient = receipientRunning.computeIfAbsent(notifications[0].getReceipientId(), (k) -> new AtomicInteger());
+        if(runningForReceipient.incrementAndGet() > 1){
+          receipientOverlap.set(true);
+        }
+        try{
+          Thread.sleep(20);
+        } catch(InterruptedException ex){
+          Thread.currentThread().interrupt();
+        }
+        runningForReceipient.decrementAndGet();
+        running.decrementAndGet();
+        return super.handleNotifications(notifications, properties);
+      }
+    };
+    SubscriptionStateWriter stateWriter = Mockito.mock(SubscriptionStateWriter.class);
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDaoMock, notificationDaoMock, scheduler, new SubscriptionIndex(subscriptionDaoMock, props, Optional.empty()), Mockito.mock(DeliveryLedger.class), Mockito.mock(DigestAggregator.class), stateWriter, props, Optional.of(new ISubscriptionHandler[]{handler}));
+    try{
+      processor.receiveNextMessage();
+    } finally{
+      processor.shutdown();
+    }
+
+    //all subscriptions handled before returning
+    Assert.assertEquals(20, handler.handledNotifications.size());
+    handler.handledNotifications.values().forEach((count) -> Assert.assertEquals(2, count.intValue()));
+    Assert.assertTrue(handler.maxConcurrency.get() > 1);
+    Assert.assertTrue(handler.maxConcurrency.get() <= 4);
+    //all subscriptions of one receipient are handled one after another
+    Assert.assertFalse(handler.receipientOverlap.get());
+    //all changed subscriptions are written at once
+    ArgumentCaptor<Collection<Subscription>> written = ArgumentCaptor.forClass(Collection.class);
+    Mockito.verify(stateWriter, Mockito.times(1)).write(written.capture(), Mockito.any(), Mockito.any());
+    Assert.assertEquals(40, written.getValue().size());
+    Mockito.verify(subscriptionDaoMock, Mockito.never()).saveAll(Mockito.any());
+    Mockito.verify(scheduler, Mockito.times(40)).schedule(Mockito.any());
+  }
+
+  @Test
+  public void testAsyncDispatchWithInFlightLimit(){
+    ISubscriptionDao subscriptionDaoMock = Mockito.mock(ISubscriptionDao.class);
+    INotificationDao notificationDaoMock = Mockito.mock(INotificationDao.class);
+    SubscriptionScheduler scheduler = Mockito.mock(SubscriptionScheduler.class);
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    List<Subscription> subscriptions = new ArrayList<>();
+    List<Notification> notifications = new ArrayList<>();
+    for(int i = 0; i < 20; i++){
+      //two subscriptions per receipient
+      for(int j = 0; j < 2; j++){
+        Subscription subscription = new Subscription();
+        subscription.setId((long) (i * 2 + j));
+        subscription.setSubscriptionName(CountingHandler.NAME);
+        subscription.setReceipientId("user" + i);
+        subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+        subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+        subscriptions.add(subscription);
+      }
+      notifications.add(createNotification("user" + i, now.minus(1, ChronoUnit.MINUTES)));
+    }
+    Mockito.when(scheduler.pollDue(Mockito.any())).thenReturn(Arrays.asList(0l));
+    Mockito.when(subscriptionDaoMock.findAllById(Mockito.any())).thenReturn(subscriptions);
+    Mockito.when(notificationDaoMock.findAll(Mockito.any(Specification.class))).thenReturn(notifications);
+
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDispatchMaxInFlight(8);
+    props.setDispatchHandlerThreads(16);
+    ScheduledExecutorService completer = Executors.newScheduledThreadPool(2);
+    CountingHandler handler = new CountingHandler(){
+      @Override
+      public CompletionStage<Boolean> handleNotificationsAsync(Notification[] chunk, NotificationChunkCursor cursor, Map<String, String> properties, Executor executor){
+        int current = running.incrementAndGet();
+        maxConcurrency.accumulateAndGet(current, Math::max);
+        AtomicInteger runningForReceipient = receipientRunning.computeIfAbsent(chunk[0].getReceipientId(), (k) -> new AtomicInteger());
+        if(runningForReceipient.incrementAndGet() > 1){
+          receipientOverlap.set(true);
+        }
+        //completed later without occupying a handler thread
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        completer.schedule(() -> {
+          runningForReceipient.decrementAndGet();
+          running.decrementAndGet();
+          result.complete(handleNotifications(chunk, properties));
+        }, 20, TimeUnit.MILLISECONDS);
+        return result;
+      }
+    };
+    SubscriptionStateWriter stateWriter = Mockito.mock(SubscriptionStateWriter.class);
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDaoMock, notificationDaoMock, scheduler, new SubscriptionIndex(subscriptionDaoMock, props, Optional.empty()), Mockito.mock(DeliveryLedger.class), Mockito.mock(DigestAggregator.class), stateWriter, props, Optional.of(new ISubscriptionHandler[]{handler}));
+    try{
+      processor.receiveNextMessage();
+    } finally{
+      processor.shutdown();
+      completer.shutdown();
+    }
+
+    //all subscriptions handled before returning
+    Assert.assertEquals(20, handler.handledNotifications.size());
+    handler.handledNotifications.values().forEach((count) -> Assert.assertEquals(2, count.intValue()));
+    //many calls in flight, but not more than the limit
+    Assert.assertTrue(handler.maxConcurrency.get() > 4);
+    Assert.assertTrue(handler.maxConcurrency.get() <= 8);
+    //all subscriptions of one receipient are handled one after another
+    Assert.assertFalse(handler.receipientOverlap.get());
+    //timestamps are updated on completion
+    subscriptions.forEach((subscription) -> Assert.assertTrue(subscription.getFiresNext().isAfter(now)));
+    Mockito.verify(stateWriter, Mockito.times(1)).write(Mockito.argThat((written) -> written.size() == 40), Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testLiveDispatchOnPersistedNotifications() throws Exception{
+    ISubscriptionDao subscriptionDaoMock = Mockito.mock(ISubscriptionDao.class);
+    INotificationDao notificationDaoMock = Mockito.mock(INotificationDao.class);
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Subscription subscription = new Subscription();
+    subscription.setId(1l);
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("user0");
+    subscription.setFrequency(Subscription.FREQUENCY.LIVE);
+    subscription.setFiredLast(now.minus(1, ChronoUnit.HOURS));
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    ISubscriptionDao.SubscriptionSchedule schedule = Mockito.mock(ISubscriptionDao.SubscriptionSchedule.class);
+    Mockito.when(schedule.getId()).thenReturn(subscription.getId());
+    Mockito.when(schedule.getFiresNext()).thenReturn(subscription.getFiresNext());
+    Mockito.when(schedule.getReceipientId()).thenReturn(subscription.getReceipientId());
+    Mockito.when(schedule.getFrequency()).thenReturn(subscription.getFrequency());
+    Mockito.when(subscriptionDaoMock.findAllSchedules()).thenReturn(Arrays.asList(schedule));
+    Mockito.when(subscriptionDaoMock.findAllById(Mockito.any())).thenReturn(Arrays.asList(subscription));
+    Mockito.when(notificationDaoMock.findAll(Mockito.any(Specification.class))).thenReturn(
+            Arrays.asList(createNotification("user0", now.minus(1, ChronoUnit.MINUTES))),
+            Arrays.asList(createNotification("user0", now.plus(1, ChronoUnit.HOURS))));
+
+    ApplicationProperties props = new ApplicationProperties();
+    props.setScheduleLiveEvents(true);
+    props.setScheduleLiveIntervalMillis(60000);
+    props.setScheduleResyncMillis(60000);
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(subscriptionDaoMock, props);
+    CountingHandler handler = new CountingHandler();
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDaoMock, notificationDaoMock, scheduler, new SubscriptionIndex(subscriptionDaoMock, props, Optional.empty()), Mockito.mock(DeliveryLedger.class), Mockito.mock(DigestAggregator.class), Mockito.mock(SubscriptionStateWriter.class), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    try{
+      processor.receiveNextMessage();
+      Assert.assertEquals(1, handler.handledNotifications.get("user0").intValue());
+      //not polled again before the live interval has elapsed
+      processor.receiveNextMessage();
+      Assert.assertEquals(1, handler.handledNotifications.get("user0").intValue());
+
+      processor.onNotificationsPersisted(new NotificationsPersistedEvent(Collections.singleton("user1")));
+      processor.onNotificationsPersisted(new NotificationsPersistedEvent(Collections.singleton("user0")));
+      long deadline = System.currentTimeMillis() + 5000;
+      while(handler.handledNotifications.get("user0") < 2 && System.currentTimeMillis() < deadline){
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(2, handler.handledNotifications.get("user0").intValue());
+    } finally{
+      processor.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentCyclesDoNotHandleSubscriptionTwice() throws Exception{
+    ISubscriptionDao subscriptionDaoMock = Mockito.mock(ISubscriptionDao.class);
+    INotificationDao notificationDaoMock = Mockito.mock(INotificationDao.class);
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Subscription subscription = new Subscription();
+    subscription.setId(1l);
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("user0");
+    subscription.setFrequency(Subscription.FREQUENCY.LIVE);
+    subscription.setLastNotificationId(0l);
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    Notification notification = createNotification("user0", now.minus(1, ChronoUnit.MINUTES));
+    notification.setId(1l);
+    Mockito.when(subscriptionDaoMock.findAllById(Mockito.any())).thenReturn(Arrays.asList(subscription));
+    Mockito.when(notificationDaoMock.findAll(Mockito.any(Specification.class))).thenReturn(Arrays.asList(notification));
+
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountingHandler handler = new CountingHandler(){
+      @Override
+      public boolean handleNotifications(Notification[] notifications, Map<String, String> properties){
+        entered.countDown();
+        try{
+          release.await();
+        } catch(InterruptedException ex){
+          Thread.currentThread().interrupt();
+        }
+        return super.handleNotifications(notifications, properties);
+      }
+    };
+    ApplicationProperties props = new ApplicationProperties();
+    props.setScheduleResyncMillis(60000);
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(subscriptionDaoMock, props);
+    scheduler.synchronize();
+    scheduler.schedule(subscription);
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDaoMock, notificationDaoMock, scheduler, new SubscriptionIndex(subscriptionDaoMock, props, Optional.empty()), Mockito.mock(DeliveryLedger.class), Mockito.mock(DigestAggregator.class), Mockito.mock(SubscriptionStateWriter.class), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    ExecutorService cycles = Executors.newFixedThreadPool(2);
+    try{
+      Future<?> first = cycles.submit(processor::receiveNextMessage);
+      Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+      //scheduled again while being handled, e.g. by an update via the REST interface
+      scheduler.schedule(subscription);
+      Future<?> second = cycles.submit(processor::receiveNextMessage);
+      Thread.sleep(200);
+      release.countDown();
+      first.get(5, TimeUnit.SECONDS);
+      second.get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(1, handler.handledNotifications.get("user0").intValue());
+    } finally{
+      cycles.shutdownNow();
+      processor.shutdown();
+    }
+  }
+
+  @Test
+  public void testOverdueSubscriptionWithoutNotificationsIsNotPolledAgain(){
+    ISubscriptionDao subscriptionDaoMock = Mockito.mock(ISubscriptionDao.class);
+    INotificationDao notificationDaoMock = Mockito.mock(INotificationDao.class);
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Subscription subscription = new Subscription();
+    subscription.setId(1l);
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("user0");
+    subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+    subscription.setLastNotificationId(0l);
+    //overdue, e.g. after a downtime
+    subscription.setFiresNext(now.minus(3, ChronoUnit.HOURS));
+    Mockito.when(subscriptionDaoMock.findAllById(Mockito.any())).thenReturn(Arrays.asList(subscription));
+    Mockito.when(notificationDaoMock.findAll(Mockito.any(Specification.class))).thenReturn(Collections.emptyList());
+
+    ApplicationProperties props = new ApplicationProperties();
+    props.setScheduleResyncMillis(60000);
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(subscriptionDaoMock, props);
+    scheduler.synchronize();
+    scheduler.schedule(subscription);
+    CountingHandler handler = new CountingHandler();
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDaoMock, notificationDaoMock, scheduler, new SubscriptionIndex(subscriptionDaoMock, props, Optional.empty()), Mockito.mock(DeliveryLedger.class), Mockito.mock(DigestAggregator.class), Mockito.mock(SubscriptionStateWriter.class), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    try{
+      processor.receiveNextMessage();
+      Assert.assertTrue(handler.handledNotifications.isEmpty());
+      Assert.assertTrue(subscription.getFiresNext().isAfter(now.plus(59, ChronoUnit.MINUTES)));
+      //not due again before the next period
+      Assert.assertTrue(scheduler.pollDue(Instant.now()).isEmpty());
+      processor.receiveNextMessage();
+      Mockito.verify(subscriptionDaoMock, Mockito.times(1)).findAllById(Mockito.any());
+    } finally{
+      processor.shutdown();
+    }
+  }
+
+  @Test
+  public void testLargeBacklogDeliveredInChunks(){
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    List<Notification> backlog = new ArrayList<>();
+    for(int i = 0; i < 5; i++){
+      backlog.add(notificationDao.save(createNotification("pagedUser", now.minus(5 - i, ChronoUnit.MINUTES))));
+    }
+    notificationDao.save(createNotification("aSmallUser", now.minus(1, ChronoUnit.MINUTES)));
+    List<Subscription> subscriptions = new ArrayList<>();
+    for(String receipientId : Arrays.asList("pagedUser", "aSmallUser")){
+      Subscription subscription = new Subscription();
+      subscription.setSubscriptionName(CountingHandler.NAME);
+      subscription.setReceipientId(receipientId);
+      subscription.setFrequency(Subscription.FREQUENCY.HOURLY);
+      subscription.setDisabled(Boolean.FALSE);
+      subscription.setLastNotificationId(0l);
+      subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+      subscriptions.add(subscription);
+    }
+    subscriptionDao.saveAll(subscriptions);
+
+    CountingHandler handler = new CountingHandler();
+    //the third chunk of the large backlog fails
+    handler.failingChunk = 2;
+    ApplicationProperties props = new ApplicationProperties();
+    props.setDispatchChunkSize(2);
+    props.setDispatchMaxNotificationsPerQuery(3);
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), Mockito.mock(DigestAggregator.class), new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+
+    //the small backlog was obtained completely and is delivered at once
+    List<NotificationChunkCursor> smallCursors = handler.handledChunks.get("aSmallUser");
+    Assert.assertEquals(1, smallCursors.size());
+    Assert.assertTrue(smallCursors.get(0).isFirst());
+    Assert.assertTrue(smallCursors.get(0).isLast());
+    //the large backlog is read page by page and delivered in chunks
+    List<NotificationChunkCursor> pagedCursors = handler.handledChunks.get("pagedUser");
+    Assert.assertEquals(3, pagedCursors.size());
+    Assert.assertEquals(2, pagedCursors.get(1).getOffset());
+    Assert.assertFalse(pagedCursors.get(1).isLast());
+    Assert.assertTrue(pagedCursors.get(2).isLast());
+    Assert.assertEquals(Integer.valueOf(4), handler.handledNotifications.get("pagedUser"));
+    //delivered chunks remain delivered, only the failed chunk is retried
+    Subscription paged = subscriptionDao.findById(subscriptions.get(0).getId()).get();
+    Assert.assertEquals(backlog.get(3).getId(), paged.getLastNotificationId());
+    Assert.assertEquals(backlog.get(4).getId(), deliveryLedgerDao.findBySubscriptionIdIn(Arrays.asList(paged.getId())).get(0).getToNotificationId());
+  }
+
+  @Test
+  public void testAggregatedSubscriptionDeliveredViaDigest(){
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Subscription subscription = new Subscription();
+    subscription.setSubscriptionName(CountingHandler.NAME);
+    subscription.setReceipientId("digestUser");
+    subscription.setFrequency(Subscription.FREQUENCY.DAILY);
+    subscription.setDisabled(Boolean.FALSE);
+    subscription.setLastNotificationId(0l);
+    subscription.setFiresNext(now.minus(1, ChronoUnit.MINUTES));
+    subscription = subscriptionDao.save(subscription);
+    //pending notifications are not loaded for aggregated subscriptions
+    notificationDao.save(createNotification("digestUser", now.minus(1, ChronoUnit.MINUTES)));
+    NotificationDigest digest = new NotificationDigest();
+    for(long i = 1; i <= 3; i++){
+      Notification notification = createNotification("digestUser", now.minus(i, ChronoUnit.MINUTES));
+      notification.setId(i);
+      digest.add(notification, 1);
+    }
+
+    CountingHandler handler = new CountingHandler();
+    handler.aggregateOnly = true;
+    DigestAggregator aggregator = Mockito.mock(DigestAggregator.class);
+    Mockito.when(aggregator.findDigests(Mockito.anyCollection())).thenReturn(Collections.singletonMap(subscription.getId(), digest));
+    Mockito.when(aggregator.verify(Mockito.anyCollection(), Mockito.anyMap(), Mockito.any(Instant.class))).thenAnswer((invocation) -> invocation.getArgument(1));
+    ApplicationProperties props = new ApplicationProperties();
+    SubscriptionProcessor processor = new SubscriptionProcessor(subscriptionDao, notificationDao, new SubscriptionScheduler(subscriptionDao, props), new SubscriptionIndex(subscriptionDao, props, Optional.empty()), new DeliveryLedger(deliveryLedgerDao, props), aggregator, new SubscriptionStateWriter(dataSource, props), props, Optional.of(new ISubscriptionHandler[]{handler}));
+    processor.receiveNextMessage();
+    clearPersistenceContext();
+
+    Assert.assertEquals(1, handler.handledDigests.size());
+    Assert.assertEquals(3, handler.handledDigests.get(0).getTotal());
+    Assert.assertTrue(handler.handledNotifications.isEmpty());
+    Mockito.verify(aggregator).consume(subscription.getId(), digest);
+    Subscription handled = subscriptionDao.findById(subscription.getId()).get();
+    Assert.assertEquals(Long.valueOf(3), handled.getLastNotificationId());
+    Assert.assertTrue(handled.getFiresNext().isAfter(now));
+  }
+
+  /**
+   * Clear the persistence context of the test transaction in order to obtain
+   * the subscription state written by the processor via JDBC.
+   */
+  private void clearPersistenceContext(){
+    entityManager.flush();
+    entityManager.clear();
+  }
+
+  private Notification createNotification(String receipientId, Instant createdAt){
+    Notification notification = new Notification();
+    notification.setContent("Test");
+    notification.setReceipientId(receipientId);
+    notification.setCreatedAt(createdAt);
+    notification.setSeverity(Notification.SEVERITY.INFO);
+    notification.setSenderType(Notification.SENDER_TYPE.SYSTEM);
+    notification.setSenderId("test");
+    notification.setRecognized(Boolean.FALSE);
+    return notification;
+  }
+
+  private static class CountingHandler implements ISubscriptionHandler{
+
+    static final String NAME = "counting";
+    final Map<String, Integer> handledNotifications = new ConcurrentHashMap<>();
+    final Map<String, AtomicInteger> receipientRunning = new ConcurrentHashMap<>();
+    final AtomicBoolean receipientOverlap = new AtomicBoolean();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxConcurrency = new AtomicInteger();
+    final List<NotificationDigest> handledDigests = new ArrayList<>();
+    final Map<String, List<NotificationChunkCursor>> handledChunks = new ConcurrentHashMap<>();
+    boolean aggregateOnly = false;
+    int failingChunk = -1;
+
+    @Override
+    public String getSubscriptionName(){
+      return NAME;
+    }
+
+    @Override
+    public HandlerProperties getSubscriptionProperties(){
+      return HandlerProperties.create();
+    }
+
+    @Override
+    public boolean checkSubscription(Subscription subscription){
+      return true;
+    }
+
+    @Override
+    public boolean configure(){
+      return true;
+    }
+
+    @Override
+    public boolean handleNotifications(Notification[] notifications, Map<String, String> properties){
+      for(Notification notification : notifications){
+        handledNotifications.merge(notification.getReceipientId(), 1, Integer::sum);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean handleNotificationChunk(Notification[] chunk, NotificationChunkCursor cursor, Map<String, String> properties){
+      handledChunks.computeIfAbsent(chunk[0].getReceipientId(), (k) -> new ArrayList<>()).add(cursor);
+      if(cursor.getChunkIndex() == failingChunk){
+        return false;
+      }
+      return handleNotifications(chunk, properties);
+    }
+
+    @Override
+    public boolean isAggregateOnly(Map<String, String> properties){
+      return aggregateOnly;
+    }
+
+    @Override
+    public boolean handleDigest(NotificationDigest digest, Map<String, String> properties){
+      handledDigests.add(digest);
+      return true;
+    }
+  }
+}
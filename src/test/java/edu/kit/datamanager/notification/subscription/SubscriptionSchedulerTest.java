@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import edu.kit.datamanager.notification.dao.ISubscriptionDao;
+import edu.kit.datamanager.notification.domain.Subscription;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ *
+ * @author jejkal
+ */
+public class SubscriptionSchedulerTest{
+
+  private final Instant now = Instant.ofEpochSecond(1000000);
+
+  @Test
+  public void testPollDueSubscriptions(){
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(Mockito.mock(ISubscriptionDao.class), new ApplicationProperties());
+    scheduler.schedule(createSubscription(1l, now.plusSeconds(10), false));
+    scheduler.schedule(createSubscription(2l, now.minusSeconds(10), false));
+    scheduler.schedule(createSubscription(3l, now, false));
+    scheduler.schedule(createSubscription(4l, null, false));
+    //disabled subscriptions are never due
+    scheduler.schedule(createSubscription(5l, now.minusSeconds(10), true));
+    Assert.assertEquals(4, scheduler.size());
+
+    Assert.assertEquals(Arrays.asList(4l, 2l, 3l), scheduler.pollDue(now));
+    //polled subscriptions are removed until scheduled again
+    Assert.assertTrue(scheduler.pollDue(now).isEmpty());
+    Assert.assertEquals(1, scheduler.size());
+    Assert.assertEquals(Arrays.asList(1l), scheduler.pollDue(now.plusSeconds(10)));
+  }
+
+  @Test
+  public void testUpdateAndUnschedule(){
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(Mockito.mock(ISubscriptionDao.class), new ApplicationProperties());
+    scheduler.schedule(createSubscription(1l, now.minusSeconds(10), false));
+    scheduler.schedule(createSubscription(2l, now.minusSeconds(10), false));
+    scheduler.schedule(createSubscription(3l, now.minusSeconds(10), false));
+    //postpone, remove and disable
+    scheduler.schedule(createSubscription(1l, now.plusSeconds(10), false));
+    scheduler.unschedule(2l);
+    scheduler.schedule(createSubscription(3l, now.minusSeconds(10), true));
+
+    Assert.assertTrue(scheduler.pollDue(now).isEmpty());
+    Assert.assertEquals(Arrays.asList(1l), scheduler.pollDue(now.plusSeconds(10)));
+    Assert.assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void testScheduleIfAbsent(){
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(Mockito.mock(ISubscriptionDao.class), new ApplicationProperties());
+    scheduler.schedule(createSubscription(1l, now.plusSeconds(10), false));
+    //only subscriptions not scheduled yet are added
+    scheduler.scheduleIfAbsent(Arrays.asList(1l, 2l), now);
+
+    Assert.assertEquals(Arrays.asList(2l), scheduler.pollDue(now));
+    Assert.assertEquals(Arrays.asList(1l), scheduler.pollDue(now.plusSeconds(10)));
+  }
+
+  @Test
+  public void testSynchronize(){
+    ISubscriptionDao dao = Mockito.mock(ISubscriptionDao.class);
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(dao, new ApplicationProperties());
+    Mockito.when(dao.findAllSchedules()).then((iom) -> {
+      //subscription created while loading
+      scheduler.schedule(createSubscription(3l, now, false));
+      return Arrays.asList(createSchedule(1l, now.minusSeconds(10)), createSchedule(2l, now.plusSeconds(10)));
+    });
+    scheduler.schedule(createSubscription(4l, now, false));
+
+    scheduler.synchronizeIfRequired();
+    Mockito.verify(dao, Mockito.times(1)).findAllSchedules();
+    //subscription 4 is replaced by the loaded schedule, subscription 3 is retained
+    Assert.assertEquals(3, scheduler.size());
+    Assert.assertEquals(Arrays.asList(1l, 3l), scheduler.pollDue(now));
+
+    //with default settings, the next synchronization is due immediately
+    Mockito.when(dao.findAllSchedules()).thenReturn(Collections.emptyList());
+    scheduler.synchronizeIfRequired();
+    Assert.assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void testTriggerLiveSubscriptions(){
+    ISubscriptionDao dao = Mockito.mock(ISubscriptionDao.class);
+    ApplicationProperties props = new ApplicationProperties();
+    props.setScheduleLiveEvents(true);
+    props.setScheduleLiveIntervalMillis(60000);
+    SubscriptionScheduler scheduler = new SubscriptionScheduler(dao, props);
+    Mockito.when(dao.findAllSchedules()).thenReturn(Arrays.asList(createSchedule(1l, now.plusSeconds(10), "user1", Subscription.FREQUENCY.LIVE), createSchedule(2l, Instant.now().plusSeconds(3600), "user1", Subscription.FREQUENCY.DAILY)));
+    scheduler.synchronize();
+    Subscription live = createSubscription(3l, now.plusSeconds(10), false);
+    live.setFrequency(Subscription.FREQUENCY.LIVE);
+    live.setReceipientId("user2");
+    scheduler.schedule(live);
+
+    Assert.assertFalse(scheduler.triggerLive(Arrays.asList("user3")));
+    Assert.assertTrue(scheduler.pollDue(now).isEmpty());
+    //only LIVE subscriptions are triggered
+    Assert.assertTrue(scheduler.triggerLive(Arrays.asList("user1", "user2")));
+    Assert.assertEquals(Arrays.asList(1l, 3l), sorted(scheduler.pollDue(now)));
+
+    //triggered while being processed, so due immediately when scheduled again
+    Assert.assertTrue(scheduler.triggerLive(Arrays.asList("user2")));
+    scheduler.schedule(live);
+    Assert.assertEquals(Arrays.asList(3l), scheduler.pollDue(now));
+    //otherwise, LIVE subscriptions are due after the live interval
+    live.setFiresNext(Instant.now());
+    scheduler.schedule(live);
+    Assert.assertTrue(scheduler.pollDue(Instant.now().plusSeconds(30)).isEmpty());
+    Assert.assertEquals(Arrays.asList(3l), scheduler.pollDue(Instant.now().plusSeconds(61)));
+
+    //removed subscriptions are not triggered anymore
+    scheduler.unschedule(1l);
+    live.setFrequency(Subscription.FREQUENCY.HOURLY);
+    scheduler.schedule(live);
+    Assert.assertFalse(scheduler.triggerLive(Arrays.asList("user1", "user2")));
+  }
+
+  private List<Long> sorted(List<Long> ids){
+    List<Long> result = new ArrayList<>(ids);
+    Collections.sort(result);
+    return result;
+  }
+
+  private Subscription createSubscription(Long id, Instant firesNext, boolean disabled){
+    Subscription subscription = new Subscription();
+    subscription.setId(id);
+    subscription.setFiresNext(firesNext);
+    subscription.setDisabled(disabled);
+    return subscription;
+  }
+
+  private ISubscriptionDao.SubscriptionSchedule createSchedule(Long id, Instant firesNext){
+    return createSchedule(id, firesNext, "user" + id, Subscription.FREQUENCY.DAILY);
+  }
+
+  private ISubscriptionDao.SubscriptionSchedule createSchedule(Long id, Instant firesNext, String receipientId, Subscription.FREQUENCY frequency){
+    return new ISubscriptionDao.SubscriptionSchedule(){
+      @Override
+      public Long getId(){
+        return id;
+      }
+
+      @Override
+      public Instant getFiresNext(){
+        return firesNext;
+      }
+
+      @Override
+      public String getReceipientId(){
+        return receipientId;
+      }
+
+      @Override
+      public Subscription.FREQUENCY getFrequency(){
+        return frequency;
+      }
+    };
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription.impl;
+
+import edu.kit.datamanager.notification.domain.Notification;
+import edu.kit.datamanager.notification.domain.NotificationDigest;
+import java.time.Instant;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jejkal
+ */
+public class EmailTemplatesTest{
+
+  @Test
+  public void testRenderFull() throws Exception{
+    EmailTemplates templates = EmailTemplates.load();
+    String body = templates.renderFull(new Notification[]{
+      createNotification(Notification.SEVERITY.INFO, "First content"),
+      createNotification(Notification.SEVERITY.ERROR, "Second <content>")});
+    Assert.assertTrue(body.startsWith("You have received 2 new notification(s)."));
+    Assert.assertTrue(body.contains("[INFO]"));
+    Assert.assertTrue(body.contains("First content"));
+    //plain text, no escaping
+    Assert.assertTrue(body.contains("Second <content>"));
+    //the buffer is reused for the next body
+    Assert.assertTrue(templates.renderFull(new Notification[0]).startsWith("You have received 0 new notification(s)."));
+  }
+
+  @Test
+  public void testShortBodiesShared() throws Exception{
+    EmailTemplates templates = EmailTemplates.load();
+    NotificationDigest first = new NotificationDigest();
+    first.add(createNotification(Notification.SEVERITY.INFO, "a"), 0);
+    first.add(createNotification(Notification.SEVERITY.ERROR, "b"), 0);
+    NotificationDigest second = new NotificationDigest();
+    second.add(createNotification(Notification.SEVERITY.ERROR, "c"), 0);
+    second.add(createNotification(Notification.SEVERITY.INFO, "d"), 0);
+    String body = templates.renderShort(first);
+    Assert.assertEquals("You have received 2 new notification(s).\nINFO: 1\nERROR: 1\n", body);
+    Assert.assertSame(body, templates.renderShort(second));
+    second.add(createNotification(Notification.SEVERITY.INFO, "e"), 0);
+    Assert.assertEquals("You have received 3 new notification(s).\nINFO: 2\nERROR: 1\n", templates.renderShort(second));
+  }
+
+  private static Notification createNotification(Notification.SEVERITY severity, String content){
+    Notification notification = new Notification();
+    notification.setSeverity(severity);
+    notification.setContent(content);
+    notification.setCreatedAt(Instant.now());
+    notification.setSenderType(Notification.SENDER_TYPE.SYSTEM);
+    notification.setSenderId("sender");
+    return notification;
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription.impl;
+
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author jejkal
+ */
+public class LogFileChannelsTest{
+
+  private final ByteBuffer header = ByteBuffer.wrap("header\n".getBytes(StandardCharsets.UTF_8));
+  private Path directory;
+  private ApplicationProperties properties;
+  private LogFileChannels channels;
+
+  @Before
+  public void setUp() throws Exception{
+    directory = Files.createTempDirectory("logfiles");
+    properties = new ApplicationProperties();
+    properties.setLogfileMaxOpenFiles(2);
+    properties.setLogfileIdleMillis(60000);
+    properties.setLogfileWriterThreads(2);
+    channels = new LogFileChannels(properties);
+  }
+
+  @After
+  public void tearDown() throws Exception{
+    channels.closeAll();
+    try(Stream<Path> files = Files.list(directory)){
+      for(Path file : (Iterable<Path>) files::iterator){
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void testHeaderWrittenOnce() throws Exception{
+    Path file = directory.resolve("log.txt");
+    Assert.assertTrue(channels.append(file, header, encode("a\nb\n")).get(10, TimeUnit.SECONDS));
+    Assert.assertTrue(channels.append(file, header, encode("c\n")).get(10, TimeUnit.SECONDS));
+    Assert.assertEquals("header\na\nb\nc\n", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    Assert.assertEquals(1, channels.getOpenFiles());
+  }
+
+  @Test
+  public void testOpenFilesBounded() throws Exception{
+    for(int i = 0; i < 5; i++){
+      Assert.assertTrue(channels.append(directory.resolve("log" + i + ".txt"), header, encode("line\n")).get(10, TimeUnit.SECONDS));
+    }
+    Assert.assertEquals(2, channels.getOpenFiles());
+    //evicted files are reopened and appended
+    Assert.assertTrue(channels.append(directory.resolve("log0.txt"), header, encode("line\n")).get(10, TimeUnit.SECONDS));
+    Assert.assertEquals("header\nline\nline\n", new String(Files.readAllBytes(directory.resolve("log0.txt")), StandardCharsets.UTF_8));
+    Assert.assertEquals(2, channels.getOpenFiles());
+  }
+
+  @Test
+  public void testIdleFilesClosed() throws Exception{
+    properties.setLogfileIdleMillis(0);
+    LogFileChannels idleChannels = new LogFileChannels(properties);
+    Assert.assertTrue(idleChannels.append(directory.resolve("idle.txt"), header, encode("line\n")).get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(1, idleChannels.getOpenFiles());
+    idleChannels.closeIdle();
+    Assert.assertEquals(0, idleChannels.getOpenFiles());
+    idleChannels.closeAll();
+  }
+
+  @Test
+  public void testConcurrentAppendsWritten() throws Exception{
+    properties.setLogfileFsyncPolicy("BATCH");
+    LogFileChannels batchChannels = new LogFileChannels(properties);
+    try{
+      Path file = directory.resolve("shared.txt");
+      List<CompletableFuture<Boolean>> results = new ArrayList<>();
+      for(int i = 0; i < 100; i++){
+        results.add(batchChannels.append(file, header, encode("line\n")));
+      }
+      for(CompletableFuture<Boolean> result : results){
+        Assert.assertTrue(result.get(10, TimeUnit.SECONDS));
+      }
+      Assert.assertEquals(101, Files.readAllLines(file).size());
+    } finally{
+      batchChannels.closeAll();
+    }
+  }
+
+  @Test
+  public void testIntervalPolicyCompletesAfterForce() throws Exception{
+    properties.setLogfileFsyncPolicy("INTERVAL");
+    properties.setLogfileFsyncIntervalMillis(60000);
+    LogFileChannels intervalChannels = new LogFileChannels(properties);
+    Path file = directory.resolve("interval.txt");
+    CompletableFuture<Boolean> result = intervalChannels.append(file, header, encode("line\n"));
+    //written, but not forced to disk yet
+    long deadline = System.currentTimeMillis() + 10000;
+    while(Files.size(file) == 0 && System.currentTimeMillis() < deadline){
+      Thread.sleep(10);
+    }
+    Assert.assertEquals("header\nline\n", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    Assert.assertFalse(result.isDone());
+    Assert.assertEquals(1, intervalChannels.getOpenFiles());
+    //files are forced when closed
+    intervalChannels.closeAll();
+    Assert.assertTrue(result.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testRollingBySize() throws Exception{
+    Map<String, String> props = new HashMap<>();
+    props.put(LogFileRolling.MAX_SIZE_KEY, "20B");
+    LogFileRolling rolling = LogFileRolling.fromProperties(props);
+    Path file = directory.resolve("rolling.txt");
+    Assert.assertTrue(channels.append(file, header, encode("line1\nline2\n"), rolling).get(10, TimeUnit.SECONDS));
+    //exceeds the max. size, so the file is rolled over before appending
+    Assert.assertTrue(channels.append(file, header, encode("line3\n"), rolling).get(10, TimeUnit.SECONDS));
+    Assert.assertEquals("header\nline3\n", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    //wait for the background compression
+    channels.closeAll();
+    List<Path> rolled = listFiles("rolling.txt.");
+    Assert.assertEquals(1, rolled.size());
+    Assert.assertEquals("rolling.txt." + Instant.now().atZone(ZoneOffset.UTC).toLocalDate() + ".1.gz", rolled.get(0).getFileName().toString());
+    Assert.assertEquals("header\nline1\nline2\n", gunzip(rolled.get(0)));
+  }
+
+  @Test
+  public void testRollingDaily() throws Exception{
+    MutableClock clock = new MutableClock(Instant.now());
+    LogFileChannels dailyChannels = new LogFileChannels(properties, clock);
+    Map<String, String> props = new HashMap<>();
+    props.put(LogFileRolling.ROLLOVER_KEY, "DAILY");
+    props.put(LogFileRolling.COMPRESS_KEY, "false");
+    LogFileRolling rolling = LogFileRolling.fromProperties(props);
+    try{
+      Path file = directory.resolve("daily.txt");
+      Assert.assertTrue(dailyChannels.append(file, header, encode("day1\n"), rolling).get(10, TimeUnit.SECONDS));
+      Assert.assertTrue(dailyChannels.append(file, header, encode("day1\n"), rolling).get(10, TimeUnit.SECONDS));
+      Assert.assertTrue(listFiles("daily.txt.").isEmpty());
+      clock.instant = clock.instant.plus(1, ChronoUnit.DAYS);
+      Assert.assertTrue(dailyChannels.append(file, header, encode("day2\n"), rolling).get(10, TimeUnit.SECONDS));
+      Assert.assertEquals("header\nday2\n", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+      List<Path> rolled = listFiles("daily.txt.");
+      Assert.assertEquals(1, rolled.size());
+      Assert.assertEquals("header\nday1\nday1\n", new String(Files.readAllBytes(rolled.get(0)), StandardCharsets.UTF_8));
+    } finally{
+      dailyChannels.closeAll();
+    }
+  }
+
+  @Test
+  public void testInvalidRollingProperties(){
+    Map<String, String> props = new HashMap<>();
+    Assert.assertFalse(LogFileRolling.fromProperties(props).isEnabled());
+    props.put(LogFileRolling.MAX_SIZE_KEY, "10MB");
+    Assert.assertTrue(LogFileRolling.fromProperties(props).isEnabled());
+    Assert.assertEquals(10l * 1024 * 1024, LogFileRolling.parseSize("10MB"));
+    for(String invalid : new String[]{"ten", "-1", "0KB"}){
+      props.put(LogFileRolling.MAX_SIZE_KEY, invalid);
+      try{
+        LogFileRolling.fromProperties(props);
+        Assert.fail("Size " + invalid + " should be invalid.");
+      } catch(IllegalArgumentException ex){
+        //expected
+      }
+    }
+    props.put(LogFileRolling.MAX_SIZE_KEY, "1KB");
+    props.put(LogFileRolling.ROLLOVER_KEY, "HOURLY");
+    try{
+      LogFileRolling.fromProperties(props);
+      Assert.fail("Rollover HOURLY should be invalid.");
+    } catch(IllegalArgumentException ex){
+      //expected
+    }
+  }
+
+  private List<Path> listFiles(String prefix) throws Exception{
+    try(Stream<Path> files = Files.list(directory)){
+      return files.filter((f) -> f.getFileName().toString().startsWith(prefix)).collect(Collectors.toList());
+    }
+  }
+
+  private static String gunzip(Path file) throws Exception{
+    try(InputStream in = new GZIPInputStream(Files.newInputStream(file))){
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while((read = in.read(buffer)) > 0){
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static final class MutableClock extends Clock{
+
+    private volatile Instant instant;
+
+    MutableClock(Instant instant){
+      this.instant = instant;
+    }
+
+    @Override
+    public ZoneId getZone(){
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone){
+      return this;
+    }
+
+    @Override
+    public Instant instant(){
+      return instant;
+    }
+  }
+
+  private static ByteBuffer encode(String content){
+    return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+  }
+}
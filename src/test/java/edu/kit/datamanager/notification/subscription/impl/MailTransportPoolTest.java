@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.notification.subscription.impl;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import edu.kit.datamanager.notification.configuration.ApplicationProperties;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+/**
+ *
+ * @author jejkal
+ */
+public class MailTransportPoolTest{
+
+  private GreenMail greenMail;
+  private MailTransportPool pool;
+
+  @Before
+  public void setUp(){
+    greenMail = new GreenMail(ServerSetupTest.SMTP);
+    greenMail.start();
+    JavaMailSenderImpl sender = new JavaMailSenderImpl();
+    sender.setHost(ServerSetupTest.SMTP.getBindAddress());
+    sender.setPort(ServerSetupTest.SMTP.getPort());
+    ApplicationProperties properties = new ApplicationProperties();
+    properties.setMailConnections(2);
+    properties.setMailBatchSize(10);
+    properties.setMailIdleMillis(60000);
+    pool = new MailTransportPool(Optional.of(sender), properties);
+  }
+
+  @After
+  public void tearDown(){
+    pool.stop();
+    greenMail.stop();
+  }
+
+  @Test
+  public void testMessagesSentViaPooledConnections() throws Exception{
+    List<CompletableFuture<Boolean>> results = new ArrayList<>();
+    for(int i = 0; i < 25; i++){
+      results.add(pool.send(createMessage("user" + i + "@localhost")));
+    }
+    for(CompletableFuture<Boolean> result : results){
+      Assert.assertTrue(result.get(10, TimeUnit.SECONDS));
+    }
+    Assert.assertTrue(greenMail.waitForIncomingEmail(10000, 25));
+    Assert.assertEquals(0, pool.getQueueSize());
+  }
+
+  @Test
+  public void testReconnectAfterConnectionLoss() throws Exception{
+    Assert.assertTrue(pool.send(createMessage("user@localhost")).get(10, TimeUnit.SECONDS));
+    //restart the server, which drops the open connection
+    greenMail.stop();
+    greenMail = new GreenMail(ServerSetupTest.SMTP);
+    greenMail.start();
+    Assert.assertTrue(pool.send(createMessage("user@localhost")).get(10, TimeUnit.SECONDS));
+    Assert.assertTrue(greenMail.waitForIncomingEmail(10000, 1));
+  }
+
+  @Test
+  public void testCancelledMessageNotSent() throws Exception{
+    JavaMailSenderImpl sender = new JavaMailSenderImpl();
+    sender.setHost(ServerSetupTest.SMTP.getBindAddress());
+    sender.setPort(ServerSetupTest.SMTP.getPort());
+    ApplicationProperties properties = new ApplicationProperties();
+    properties.setMailConnections(1);
+    properties.setMailBatchSize(1);
+    properties.setMailIdleMillis(60000);
+    MailTransportPool single = new MailTransportPool(Optional.of(sender), properties);
+    CountDownLatch sending = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    try{
+      //block the only sender while preparing the first message
+      MimeMessage blocking = new MimeMessage(sender.getSession()){
+        @Override
+        public void saveChanges() throws MessagingException{
+          sending.countDown();
+          try{
+            release.await();
+          } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+          }
+          super.saveChanges();
+        }
+      };
+      MimeMessageHelper helper = new MimeMessageHelper(blocking, "UTF-8");
+      helper.setFrom("service@localhost");
+      helper.setTo("first@localhost");
+      helper.setSubject("Test");
+      helper.setText("Test message");
+      CompletableFuture<Boolean> first = single.send(blocking);
+      Assert.assertTrue(sending.await(10, TimeUnit.SECONDS));
+      CompletableFuture<Boolean> second = single.send(createMessage("second@localhost"));
+      //e.g. cancelled due to a timeout of the handler call
+      second.cancel(false);
+      release.countDown();
+      Assert.assertTrue(first.get(10, TimeUnit.SECONDS));
+      Assert.assertTrue(single.send(createMessage("third@localhost")).get(10, TimeUnit.SECONDS));
+      Assert.assertTrue(greenMail.waitForIncomingEmail(10000, 2));
+      Assert.assertEquals(0, greenMail.getReceivedMessagesForDomain("second@localhost").length);
+      Assert.assertEquals(2, greenMail.getReceivedMessages().length);
+    } finally{
+      release.countDown();
+      single.stop();
+    }
+  }
+
+  @Test
+  public void testSendAfterStopFails() throws Exception{
+    pool.stop();
+    Assert.assertFalse(pool.send(createMessage("user@localhost")).get(10, TimeUnit.SECONDS));
+  }
+
+  private MimeMessage createMessage(String to) throws Exception{
+    MimeMessage message = pool.createMimeMessage();
+    MimeMessageHelper helper = new MimeMessageHelper(message, "UTF-8");
+    helper.setFrom("service@localhost");
+    helper.setTo(to);
+    helper.setSubject("Test");
+    helper.setText("Test message");
+    return message;
+  }
+}
@@ -21,6 +21,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import edu.kit.datamanager.notification.dao.INotificationDao;
+import edu.kit.datamanager.notification.domain.ImportSummary;
 import edu.kit.datamanager.notification.domain.Notification;
 import edu.kit.datamanager.notification.util.NotificationTestUtil;
 import java.time.Instant;
@@ -304,6 +305,72 @@ public class NotificationControllerTest{
 
   }
 
+  @Test
+  public void testBulkImportNdjson() throws Exception{
+    ObjectMapper map = new ObjectMapper();
+    StringBuilder body = new StringBuilder();
+    for(int i = 0; i < 5; i++){
+      body.append(map.writeValueAsString(NotificationTestUtil.createNotification(Notification.SEVERITY.INFO, "Notification " + i))).append("\n");
+    }
+    //no content
+    body.append("{\"receipientId\":\"test\"}\n");
+    //invalid severity
+    body.append("{\"content\":\"Invalid\",\"receipientId\":\"test\",\"severity\":\"UNKNOWN\"}\n");
+    //minimal notification
+    body.append("{\"content\":\"Minimal\",\"receipientId\":\"self\"}\n");
+
+    MvcResult result = this.mockMvc.perform(post("/api/v1/notifications/bulk").content(body.toString()).contentType("application/x-ndjson")).andDo(print()).andExpect(status().isOk()).andReturn();
+    ImportSummary summary = map.readValue(result.getResponse().getContentAsString(), ImportSummary.class);
+    Assert.assertEquals(6, summary.getAccepted());
+    Assert.assertEquals(2, summary.getRejected());
+    Assert.assertFalse(summary.isAborted());
+    Assert.assertEquals(2, summary.getErrors().size());
+    Assert.assertTrue(summary.getErrors().get(0).startsWith("Element #5"));
+    Assert.assertTrue(summary.getErrors().get(1).startsWith("Element #6"));
+    Assert.assertEquals(6, dao.count());
+
+    Notification template = new Notification();
+    template.setReceipientId("self");
+    result = this.mockMvc.perform(post("/api/v1/notifications/search").content(map.writeValueAsBytes(template)).contentType(MediaType.APPLICATION_JSON)).andDo(print()).andExpect(status().isOk()).andReturn();
+    Notification[] res = map.readValue(result.getResponse().getContentAsString(), Notification[].class);
+    Assert.assertEquals(1, res.length);
+    Assert.assertEquals(Notification.SEVERITY.INFO, res[0].getSeverity());
+    Assert.assertEquals("unknown", res[0].getSenderId());
+    Assert.assertEquals(Boolean.FALSE, res[0].getRecognized());
+    Assert.assertNotNull(res[0].getCreatedAt());
+  }
+
+  @Test
+  public void testBulkImportJsonArray() throws Exception{
+    Notification n1 = NotificationTestUtil.createNotification(Notification.SEVERITY.ERROR, "This is an error.");
+    Notification n2 = NotificationTestUtil.createNotification(Notification.SEVERITY.INFO, "This is an info.");
+    Notification n3 = NotificationTestUtil.createNotification(Notification.SEVERITY.WARN, "This is a warning.");
+
+    ObjectMapper map = new ObjectMapper();
+    MvcResult result = this.mockMvc.perform(post("/api/v1/notifications/bulk").content(map.writeValueAsBytes(new Notification[]{n1, n2, n3})).contentType(MediaType.APPLICATION_JSON)).andDo(print()).andExpect(status().isOk()).andReturn();
+    ImportSummary summary = map.readValue(result.getResponse().getContentAsString(), ImportSummary.class);
+    Assert.assertEquals(3, summary.getAccepted());
+    Assert.assertEquals(0, summary.getRejected());
+    Assert.assertEquals(3, dao.count());
+  }
+
+  @Test
+  public void testBulkImportMalformedInput() throws Exception{
+    ObjectMapper map = new ObjectMapper();
+    StringBuilder body = new StringBuilder();
+    for(int i = 0; i < 3; i++){
+      body.append(map.writeValueAsString(NotificationTestUtil.createNotification(Notification.SEVERITY.INFO, "Notification " + i))).append("\n");
+    }
+    body.append("{\"content\":\"Broken");
+
+    MvcResult result = this.mockMvc.perform(post("/api/v1/notifications/bulk").content(body.toString()).contentType("application/x-ndjson")).andDo(print()).andExpect(status().isBadRequest()).andReturn();
+    ImportSummary summary = map.readValue(result.getResponse().getContentAsString(), ImportSummary.class);
+    //notifications read before the malformed element are persisted
+    Assert.assertTrue(summary.isAborted());
+    Assert.assertEquals(3, summary.getAccepted());
+    Assert.assertEquals(3, dao.count());
+  }
+
   private ObjectMapper createObjectMapper(){
     return Jackson2ObjectMapperBuilder.json()
             .serializationInclusion(JsonInclude.Include.NON_EMPTY) // Don’t include null values
@@ -24,6 +24,7 @@ import edu.kit.datamanager.notification.dao.ISubscriptionDao;
 import edu.kit.datamanager.notification.domain.HandlerProperties;
 import edu.kit.datamanager.notification.domain.Subscription;
 import edu.kit.datamanager.notification.subscription.impl.LogFileHandler;
+import edu.kit.datamanager.notification.subscription.impl.LogFileRolling;
 import java.util.HashMap;
 import java.util.Map;
 import org.junit.Assert;
@@ -293,7 +294,9 @@ public class SubscriptionControllerTest{
 
     for(HandlerProperties props : res){
       if(props.getHandlerName().equals("logfile")){
-        Assert.assertEquals(1, props.getKeys().size());
+        Assert.assertEquals(4, props.getKeys().size());
+        Assert.assertTrue(props.getKeys().contains(LogFileHandler.FILENAME_KEY));
+        Assert.assertTrue(props.getKeys().contains(LogFileRolling.MAX_SIZE_KEY));
       }
     }
   }